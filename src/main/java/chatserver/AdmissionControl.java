@@ -0,0 +1,118 @@
+package chatserver;
+
+import util.Config;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether the {@link Chatserver} takes on new work, based on live
+ * load signals:
+ * <ul>
+ * <li>the number of connected sessions,</li>
+ * <li>the number of outbound queues waiting for or being drained by the
+ * executor,</li>
+ * <li>the recent latency of commands, as a moving average.</li>
+ * </ul>
+ * While any of them exceeds its limit, new connections and UDP requests are
+ * turned away at once with a {@code !busy <milliseconds>} reply telling the
+ * client when to retry. The thread accepting connections never waits for the
+ * load to drop, so even a reconnect storm gets its answers promptly. Existing
+ * sessions are served as usual, so their latency does not suffer from it.
+ */
+public class AdmissionControl {
+
+    /** Samples older than this no longer count, so an idle server recovers. */
+    private static final long LATENCY_HORIZON = 1000000000L;
+
+    private final SessionRegistry sessions;
+    private final int maxSessions;
+    private final int maxBacklog;
+    private final long maxLatency;
+    private final long retryAfter;
+    private final byte[] busyReply;
+
+    private final AtomicInteger backlog = new AtomicInteger();
+    private volatile long latency;
+    private volatile long lastSample;
+
+    public AdmissionControl(Config config, SessionRegistry sessions) {
+        this.sessions = sessions;
+        this.maxSessions = config.getInt("admission.max.sessions");
+        this.maxBacklog = config.getInt("admission.max.backlog");
+        this.maxLatency = config.getInt("admission.max.latency") * 1000000L;
+        this.retryAfter = config.getInt("admission.retry.after");
+        this.busyReply = ("!busy " + retryAfter + "\n").getBytes();
+    }
+
+    /**
+     * Returns whether any load signal exceeds its limit.
+     *
+     * @return {@code true} if no new work should be taken on
+     */
+    public boolean isOverloaded() {
+        if (maxSessions > 0 && sessions.getSessions().size() >= maxSessions) {
+            return true;
+        }
+        if (maxBacklog > 0 && backlog.get() >= maxBacklog) {
+            return true;
+        }
+        return maxLatency > 0 && System.nanoTime() - lastSample < LATENCY_HORIZON && latency >= maxLatency;
+    }
+
+    /**
+     * Accounts for the time a command took to process.
+     *
+     * @param nanos
+     *            the duration of the command
+     */
+    public void record(long nanos) {
+        long now = System.nanoTime();
+        long previous = now - lastSample < LATENCY_HORIZON ? latency : nanos;
+        // exponential moving average; losing a racing sample does not matter
+        latency = previous + (nanos - previous) / 8;
+        lastSample = now;
+    }
+
+    /**
+     * Wraps the given executor, so that its pending and running tasks count
+     * towards the backlog.
+     *
+     * @param executor
+     *            the executor
+     * @return the counting executor
+     */
+    public Executor track(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                backlog.incrementAndGet();
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                backlog.decrementAndGet();
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    backlog.decrementAndGet();
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the reply telling a client to retry later.<br/>
+     * The array is shared and must not be modified.
+     *
+     * @return the encoded {@code !busy} line
+     */
+    public byte[] getBusyReply() {
+        return busyReply;
+    }
+}
@@ -3,17 +3,17 @@ package chatserver;
 import shared.Command;
 import shared.CommandInterpreter;
 import util.Config;
+import util.Threads;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.*;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class Chatserver implements IChatserverCli, Runnable {
 
@@ -23,11 +23,24 @@ public class Chatserver implements IChatserverCli, Runnable {
 
 	private final ExecutorService pool;
 	private final ServerSocket serverSocket;
-	private final DatagramSocket datagramSocket;
+	private final Reactor reactor;
+	private final DatagramEngine datagramEngine;
 
 	private final Config config;
 	private final Config users;
-	private final List<ClientHandler> clientHandlers = new LinkedList<>();
+	private final SessionRegistry sessions = new SessionRegistry();
+	private final IdleTimer idleTimer;
+	private final RateLimiter rateLimiter;
+	private final int maxFrameSize;
+	private final boolean streamOversized;
+	private final AdmissionControl admission;
+	private final Executor outboundExecutor;
+	private final int outboundCapacity;
+	private final OutboundQueue.Policy outboundPolicy;
+	private final ExecutorService spiller;
+	private final int outputBatchSize;
+	private final int outputFlushWindow;
+	private final ScheduledExecutorService flusher;
 
 	public static final int UDP_BUFFER_SIZE = 8192;
 
@@ -49,94 +62,75 @@ public class Chatserver implements IChatserverCli, Runnable {
 		this.userResponseStream = userResponseStream;
 
 		users = new Config("user");
+		outboundCapacity = config.getInt("outbound.capacity");
+		rateLimiter = new RateLimiter(config);
+		maxFrameSize = config.getInt("input.max.frame");
+		streamOversized = config.getString("input.oversized").trim().equalsIgnoreCase("stream");
+		admission = new AdmissionControl(config, sessions);
+		idleTimer = new IdleTimer(config.getInt("session.idle.timeout"),
+				config.getInt("session.heartbeat.interval"), config.getInt("session.tick"), userResponseStream);
+		outboundPolicy = OutboundQueue.Policy.valueOf(config.getString("outbound.policy").trim().toUpperCase());
+		// spill files are written here, never on the threads broadcasting
+		spiller = outboundPolicy == OutboundQueue.Policy.SPILL ? Executors.newSingleThreadExecutor() : null;
+		outputBatchSize = config.getInt("output.batch.size");
+		outputFlushWindow = config.getInt("output.flush.window");
+		flusher = outputBatchSize > 0 && outputFlushWindow > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
 
 		ServerSocket tmpSocket = null;
+		Reactor tmpReactor = null;
 		try {
-			tmpSocket = new ServerSocket(config.getInt("tcp.port"));
+			if(config.getString("tcp.mode").equals("reactor")) {
+				tmpReactor = new Reactor(config.getInt("tcp.port"), config.getInt("reactor.threads"),
+						config.getInt("reactor.max.pending"), this);
+			} else {
+				tmpSocket = new ServerSocket(config.getInt("tcp.port"));
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		serverSocket = tmpSocket != null ? tmpSocket : null;
+		serverSocket = tmpSocket;
+		reactor = tmpReactor;
 
-		DatagramSocket tmpDatagramSocket = null;
+		DatagramEngine tmpDatagramEngine = null;
 		try {
-			tmpDatagramSocket = new DatagramSocket(config.getInt("udp.port"));
+			tmpDatagramEngine = new DatagramEngine(config.getInt("udp.port"), config.getInt("udp.threads"),
+					config.getInt("udp.fragment.size"), sessions, admission);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		datagramSocket = tmpDatagramSocket != null ? tmpDatagramSocket : null;
+		datagramEngine = tmpDatagramEngine;
 
-		pool = Executors.newCachedThreadPool();
+		pool = new Threads(config).newExecutor();
+		outboundExecutor = admission.track(pool);
 		CommandInterpreter shell = new CommandInterpreter(userRequestStream, userResponseStream);
 		shell.register(this);
 		pool.execute(shell);
 	}
 
-	private class DatagramHandler implements Runnable {
-		private byte[] buffer;
-		private InetAddress address;
-		private int port;
-
-		@Override
-		public void run() {
-			String message = new String(buffer);
-			if(message.trim().equals("!list")) {
-				Set<String> usersOnline = getUsersOnline();
-				StringBuilder builder = new StringBuilder();
-				for(String user : usersOnline) {
-					builder.append(user).append(System.lineSeparator());
-				}
-				byte[] reply = builder.toString().getBytes();
-				try {
-					datagramSocket.send(new DatagramPacket(reply, reply.length, address, port));
-				} catch (IOException e) {
-					userResponseStream.println("Could not respond to datagram");
-				}
-			}
-		}
-
-		// This does not reference the outside variable, because it would break thread-safety as it could be modified at any time
-		public DatagramHandler(byte[] data, InetAddress address, int port) {
-			this.buffer = data;
-			this.address = address;
-			this.port = port;
-		}
-	}
-
 	@Override
 	public void run() {
-		if(serverSocket == null || datagramSocket == null) {
+		if((serverSocket == null && reactor == null) || datagramEngine == null) {
 			userResponseStream.println("One or both sockets could not be instantiated!");
 			return;
 		}
-		pool.execute(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					byte[] buffer = new byte[UDP_BUFFER_SIZE];
-					DatagramPacket bufferPacket = new DatagramPacket(buffer, UDP_BUFFER_SIZE);
-					while(!Thread.currentThread().isInterrupted()) {
-						datagramSocket.receive(bufferPacket);
-						pool.execute(new DatagramHandler(
-								bufferPacket.getData().clone(),
-								bufferPacket.getAddress(),
-								bufferPacket.getPort()
-						));
-					}
-				} catch (IOException e) {
-					System.out.println("Could not receive from datagramSocket");
-					return;
-				}
+		datagramEngine.start(pool);
 
-			}
-		});
+		if(reactor != null) {
+			reactor.run();
+			userResponseStream.println("Socket closed");
+			return;
+		}
 
 		while(!Thread.currentThread().isInterrupted()) {
 			try {
 				Socket socket = serverSocket.accept();
+				if(admission.isOverloaded()) {
+					reject(socket);
+					continue;
+				}
 				ClientHandler clientHandler = new ClientHandler(socket, this);
+				accept(clientHandler);
 				pool.execute(clientHandler);
-				clientHandlers.add(clientHandler);
 			} catch (SocketException e) {
 				userResponseStream.println("Socket closed");
 				return;
@@ -147,14 +141,7 @@ public class Chatserver implements IChatserverCli, Runnable {
 	}
 
 	private Set<String> getUsersOnline() {
-		Set<String> usersOnline = new HashSet<>();
-		for(ClientHandler clientHandler : clientHandlers) {
-			String username = clientHandler.getUsername();
-			if(username != null) {
-				usersOnline.add(username);
-			}
-		}
-		return usersOnline;
+		return sessions.getUsersOnline();
 	}
 
 	@Override
@@ -183,11 +170,22 @@ public class Chatserver implements IChatserverCli, Runnable {
 	@Command
 	public String exit() throws IOException {
 		Thread.currentThread().interrupt();
-		for(ClientHandler clientHandler : clientHandlers) {
+		for(ClientHandler clientHandler : sessions.getSessions()) {
 			clientHandler.close();
 		}
-		serverSocket.close();
-		datagramSocket.close();
+		if(reactor != null) {
+			reactor.close();
+		} else {
+			serverSocket.close();
+		}
+		datagramEngine.close();
+		idleTimer.close();
+		if(flusher != null) {
+			flusher.shutdownNow();
+		}
+		if(spiller != null) {
+			spiller.shutdownNow();
+		}
 		pool.shutdownNow();
 		return null;
 	}
@@ -212,7 +210,50 @@ public class Chatserver implements IChatserverCli, Runnable {
 		return users;
 	}
 
-	public List<ClientHandler> getClientHandlers() {
-		return clientHandlers;
+	public SessionRegistry getSessions() {
+		return sessions;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	public AdmissionControl getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * Turns away a connection the chatserver has no capacity for, telling the
+	 * client when to retry.
+	 */
+	private void reject(Socket socket) {
+		try {
+			socket.getOutputStream().write(admission.getBusyReply());
+		} catch (IOException e) {
+			// the client learns about it by the closed connection
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("Could not close socket");
+		}
+	}
+
+	/**
+	 * Starts keeping track of a newly connected session.
+	 *
+	 * @param clientHandler
+	 *            the handler of the connection
+	 */
+	void accept(ClientHandler clientHandler) {
+		clientHandler.useCoalescing(outputBatchSize, outputFlushWindow, flusher);
+		clientHandler.useMaxFrameSize(maxFrameSize);
+		clientHandler.useStreaming(streamOversized);
+		sessions.add(clientHandler);
+		idleTimer.add(clientHandler);
+	}
+
+	OutboundQueue newOutboundQueue(ClientHandler clientHandler) {
+		return new OutboundQueue(clientHandler, outboundExecutor, spiller, outboundCapacity, outboundPolicy);
 	}
 }
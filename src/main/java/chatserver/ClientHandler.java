@@ -1,10 +1,16 @@
 package chatserver;
 
+import shared.BinaryProtocol;
+import shared.BufferSink;
 import shared.Command;
 import shared.CommandInterpreter;
+import shared.Frame;
 import shared.IClientForChatserver;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.Socket;
 import java.util.Objects;
 
@@ -13,18 +19,197 @@ import java.util.Objects;
  */
 public class ClientHandler extends CommandInterpreter implements IClientForChatserver {
 
-    private final Socket socket;
+    private static final byte[] SEND_PREFIX = "!send ".getBytes();
+
+    private final Closeable connection;
+    private final String address;
+    private final PushbackInputStream input;
     private final Chatserver callback;
-    private String username;
-    private String privateAddress;
+    private final OutboundQueue outbound;
+    private volatile String username;
+    private volatile String privateAddress;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile long lastPing;
+    private volatile boolean closed;
+    private volatile boolean streaming;
+    private boolean streamingSend;
 
     public ClientHandler(Socket socket, Chatserver callback) throws IOException {
-        super(socket.getInputStream(), socket.getOutputStream());
-        this.socket = socket;
+        this(socket, new PushbackInputStream(socket.getInputStream(), 1), callback);
+    }
+
+    private ClientHandler(Socket socket, PushbackInputStream input, Chatserver callback) throws IOException {
+        super(input, socket.getOutputStream());
+        this.connection = socket;
+        this.address = socket.getInetAddress().getHostAddress();
+        this.input = input;
         this.callback = callback;
+        this.outbound = callback.newOutboundQueue(this);
         this.register(this);
     }
 
+    /**
+     * Creates a handler that is fed its lines by a {@link Reactor} instead of
+     * reading them from a stream of its own.<br/>
+     * The reactor is then in charge of pausing the connection as demanded by
+     * {@link #charge(int, int)}.
+     */
+    ClientHandler(Closeable connection, String address, OutputStream out, Chatserver callback) {
+        super(out);
+        this.connection = connection;
+        this.address = address;
+        this.input = null;
+        this.callback = callback;
+        this.outbound = callback.newOutboundQueue(this);
+        this.register(this);
+    }
+
+    /**
+     * Detects whether the client speaks the {@link BinaryProtocol}, then
+     * serves its commands until the connection ends.
+     */
+    @Override
+    public void run() {
+        try {
+            if(BinaryProtocol.readPreface(input)) {
+                useBinary();
+                useBinaryInput(input, BinaryProtocol.Direction.TO_SERVER);
+            }
+        } catch (IOException e) {
+            disconnect();
+            return;
+        }
+        super.run();
+        disconnect();
+    }
+
+    /**
+     * Answers in frames of the {@link BinaryProtocol} from now on.
+     */
+    void useBinary() {
+        useBinaryOutput(BinaryProtocol.Direction.TO_CLIENT);
+    }
+
+    @Override
+    public void dispatch(String line) throws IOException {
+        long start = started();
+        super.dispatch(line);
+        finished(start, 1, line.length() + 1);
+    }
+
+    @Override
+    public void dispatch(byte[] data, int offset, int length) throws IOException {
+        long start = started();
+        super.dispatch(data, offset, length);
+        finished(start, 1, length + 1);
+    }
+
+    @Override
+    public void dispatch(Frame frame) throws IOException {
+        if(frame.getOpcode() == BinaryProtocol.TEXT) {
+            // accounted for as a line by dispatch(String)
+            super.dispatch(frame);
+            return;
+        }
+        long start = started();
+        super.dispatch(frame);
+        int size = BinaryProtocol.HEADER_SIZE;
+        for(String field : frame.getFields()) {
+            size += field.length() + 5;
+        }
+        finished(start, 1, size);
+    }
+
+    /**
+     * In streaming mode, the message of an oversized {@code !send} is passed
+     * on to the other users chunk by chunk, each chunk becoming a message of
+     * its own. Any other oversized line is rejected.
+     */
+    @Override
+    public void dispatchChunk(byte[] data, int offset, int length, boolean head, boolean tail) throws IOException {
+        long start = started();
+        int size = length;
+        if(head) {
+            streamingSend = streaming && username != null && startsWith(data, offset, length, SEND_PREFIX);
+            if(streamingSend) {
+                offset += SEND_PREFIX.length;
+                length -= SEND_PREFIX.length;
+            }
+        }
+        if(!streamingSend) {
+            super.dispatchChunk(data, offset, length, head, tail);
+        } else if(length > 0) {
+            broadcast(new String(data, offset, length));
+        }
+        // a line counts as a single command, however many chunks it takes
+        finished(start, head ? 1 : 0, size);
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if(length < prefix.length) {
+            return false;
+        }
+        for(int i = 0; i < prefix.length; i++) {
+            if(data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lets oversized {@code !send} lines through in chunks instead of
+     * rejecting them, see {@link #dispatchChunk}.
+     */
+    void useStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    private long started() {
+        lastActivity = System.currentTimeMillis();
+        return System.nanoTime();
+    }
+
+    /**
+     * Reports the latency of a command and, when reading the own input,
+     * paces the client.
+     */
+    private void finished(long start, int commands, int bytes) {
+        callback.getAdmission().record(System.nanoTime() - start);
+        if(input != null) {
+            pause(charge(commands, bytes));
+        }
+    }
+
+    /**
+     * Accounts for input read from the client with the {@link RateLimiter}
+     * of the chatserver.
+     *
+     * @param commands
+     *            the number of commands started by the input
+     * @param bytes
+     *            the size of the input
+     * @return the nanoseconds to stop reading from the client
+     */
+    long charge(int commands, int bytes) {
+        return callback.getRateLimiter().take(username, address, commands, bytes);
+    }
+
+    /**
+     * Stops reading the own input for the given time, leaving it to TCP to
+     * hold off the client.
+     */
+    private void pause(long nanos) {
+        if(nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private String checkForLogin() {
         if(username != null)
             return null;
@@ -38,6 +223,9 @@ public class ClientHandler extends CommandInterpreter implements IClientForChats
         if(tmp == null) {
             return "You are already logged in!";
         } else if(Objects.equals(callback.getUsers().getString(username + ".password"), password)) {
+            if(!callback.getSessions().login(username, this)) {
+                return username + " is already logged in on another connection.";
+            }
             this.username = username;
             return "Successfully logged in.";
         } else {
@@ -50,6 +238,7 @@ public class ClientHandler extends CommandInterpreter implements IClientForChats
     public String logout() throws IOException {
         String tmp = checkForLogin();
         if(tmp == null) {
+            callback.getSessions().logout(username, this);
             username = null;
             privateAddress = null;
             return "Successfully logged out.";
@@ -62,30 +251,35 @@ public class ClientHandler extends CommandInterpreter implements IClientForChats
     public String send(String message) throws IOException {
         String tmp = checkForLogin();
         if(tmp == null) {
-            for(ClientHandler clientHandler : callback.getClientHandlers()) {
-                if(clientHandler.username != null && !clientHandler.username.equals(this.username)) {
-                    clientHandler.writeLine("!send " + username + " " + message);
-                }
-            }
+            broadcast(message);
         }
         return tmp;
     }
 
+    private void broadcast(String message) {
+        Message shared = Message.shared("!send " + username + " " + message);
+        for(ClientHandler clientHandler : callback.getSessions().getLoggedIn()) {
+            if(clientHandler != this) {
+                clientHandler.deliver(shared);
+            }
+        }
+    }
+
     @Override
     @Command
     public String lookup(String username) throws IOException {
         String tmp = checkForLogin();
         if(tmp == null) {
-            for(ClientHandler clientHandler : callback.getClientHandlers()) {
-                if(clientHandler.username != null && clientHandler.username.equals(username)) {
-                    if(clientHandler.privateAddress != null) {
-                        return "!register " + username + " " + clientHandler.privateAddress;
-                    } else {
-                        return username + " didn't register yet!";
-                    }
-                }
+            ClientHandler clientHandler = callback.getSessions().lookup(username);
+            if(clientHandler == null) {
+                return "No user with name " + username + " online.";
+            }
+            String address = clientHandler.privateAddress;
+            if(address != null) {
+                return "!register " + username + " " + address;
+            } else {
+                return username + " didn't register yet!";
             }
-            return "No user with name " + username + " online.";
         }
         return tmp;
     }
@@ -101,17 +295,119 @@ public class ClientHandler extends CommandInterpreter implements IClientForChats
         return tmp;
     }
 
+    /**
+     * Answer to a heartbeat sent by {@link #ping(long)}; receiving it already
+     * counts as activity.
+     */
+    @Command
+    public String pong() {
+        return null;
+    }
+
     @Override
     public void close() {
+        // closing the socket first releases a reader blocked on the input
+        disconnect();
         super.close();
+    }
+
+    /**
+     * Logs out and closes the connection without touching the state of the
+     * current thread, so it can be used from a shared selector thread.
+     */
+    void disconnect() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
         try {
             logout();
-            socket.close();
+            callback.getSessions().remove(this);
+            connection.close();
         } catch (IOException e) {
             System.err.println("Could not close socket");
         }
     }
 
+    /**
+     * Asks the client to prove that it is still alive.
+     *
+     * @param now
+     *            the current time in milliseconds
+     */
+    void ping(long now) {
+        lastPing = now;
+        deliver("!ping");
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    long getLastPing() {
+        return lastPing;
+    }
+
+    /**
+     * Queues a line for this client without waiting for it to be written.
+     *
+     * @param line
+     *            the line to deliver
+     */
+    public void deliver(String line) {
+        outbound.offer(new Message(line));
+    }
+
+    /**
+     * Queues a message for this client without waiting for it to be written.
+     *
+     * @param message
+     *            the message to deliver, possibly shared with other clients
+     */
+    public void deliver(Message message) {
+        outbound.offer(message);
+    }
+
+    /**
+     * Writes the given message.<br/>
+     * Shared messages are written from their encoded form, which is the same
+     * for all recipients speaking the same protocol.
+     *
+     * @param message
+     *            the message
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    void write(Message message) throws IOException {
+        if (!message.isShared()) {
+            writeLine(message.getLine());
+        } else if (connection instanceof BufferSink) {
+            write(message.getBuffer(isBinaryOutput()));
+        } else {
+            write(message.getBytes(isBinaryOutput()));
+        }
+    }
+
+    /**
+     * Stops writing the queued messages, as the connection has too many bytes
+     * waiting to be sent already.
+     */
+    void holdOutput() {
+        outbound.hold();
+    }
+
+    /**
+     * Writes the queued messages again once the connection caught up.
+     */
+    void resumeOutput() {
+        outbound.resume();
+    }
+
     public String getUsername() {
         return username;
     }
@@ -0,0 +1,258 @@
+package chatserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Answers the UDP requests of the {@link Chatserver}.
+ * <p/>
+ * One or more receivers share a single {@link DatagramChannel}. Each of them
+ * owns a direct buffer that is reused for every datagram, matches the command
+ * on the raw bytes and replies straight from the pre-encoded
+ * {@link OnlineSnapshot}, so a request neither creates a task nor decodes a
+ * string.
+ * <p/>
+ * Besides the plain {@code !list}, which is answered with a single datagram
+ * and cut short if the list does not fit into one, the paged variant splits
+ * the list into fragments small enough to avoid IP fragmentation:
+ * <ul>
+ * <li>{@code !list <request>} asks for the first fragment of the current list,
+ * which tells how many there are,</li>
+ * <li>{@code !list <request> <version> <seq>...} asks for the given fragments,
+ * at most {@link #MAX_PAGES_PER_REQUEST} of them, or for the first fragment of
+ * the current list if the version is outdated.</li>
+ * </ul>
+ * Every fragment starts with the line
+ * {@code !list <request> <version> <seq> <total>} followed by its users.
+ * <p/>
+ * A request is thus answered with only a few datagrams, however many users
+ * are online. Since the sender of a datagram can be forged, the chatserver
+ * would otherwise flood whoever a small request claims to come from, and the
+ * burst of fragments would overrun the receive buffer of the client anyway.
+ * <p/>
+ * While the chatserver is overloaded (see {@link AdmissionControl}), requests
+ * are answered with {@code !busy <milliseconds>} instead.
+ */
+public class DatagramEngine implements Closeable {
+
+    private static final byte[] LIST = "!list".getBytes();
+    private static final byte[] LIST_PAGED = "!list ".getBytes();
+    private static final int HEADER_SIZE = 96;
+    /** The most fragments sent in reply to a single request. */
+    public static final int MAX_PAGES_PER_REQUEST = 16;
+
+    private final DatagramChannel channel;
+    private final SessionRegistry sessions;
+    private final AdmissionControl admission;
+    private final int receivers;
+    private final int fragmentSize;
+
+    public DatagramEngine(int port, int receivers, int fragmentSize, SessionRegistry sessions,
+            AdmissionControl admission) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(port));
+        this.sessions = sessions;
+        this.admission = admission;
+        this.receivers = Math.max(1, receivers);
+        this.fragmentSize = Math.max(HEADER_SIZE, fragmentSize) - HEADER_SIZE;
+    }
+
+    /**
+     * Starts the receivers on the given executor.
+     *
+     * @param executor
+     *            the executor to run the receive loops on
+     */
+    public void start(Executor executor) {
+        for (int i = 0; i < receivers; i++) {
+            executor.execute(new Receiver());
+        }
+    }
+
+    /**
+     * Returns the port this engine receives requests on.
+     *
+     * @return the local port
+     */
+    int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Checks whether the datagram in the buffer consists of the given command,
+     * ignoring surrounding whitespace.
+     */
+    static boolean matches(ByteBuffer buffer, byte[] command) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        while (start < end && isWhitespace(buffer.get(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(buffer.get(end - 1))) {
+            end--;
+        }
+        if (end - start != command.length) {
+            return false;
+        }
+        for (int i = 0; i < command.length; i++) {
+            if (buffer.get(start + i) != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the datagram in the buffer starts with the given prefix.
+     */
+    static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        if (buffer.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(buffer.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the next non-negative decimal number, advancing the buffer past
+     * it.
+     *
+     * @return the number, or {@code -1} if there is none
+     */
+    static long nextNumber(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && buffer.get(buffer.position()) == ' ') {
+            buffer.get();
+        }
+        long number = -1;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get(buffer.position());
+            if (b < '0' || b > '9') {
+                break;
+            }
+            number = (number < 0 ? 0 : number * 10) + (b - '0');
+            buffer.get();
+        }
+        return number;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        // trailing zeros are what is left of a fixed size packet buffer
+        return b <= ' ';
+    }
+
+    private class Receiver implements Runnable {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(Chatserver.UDP_BUFFER_SIZE);
+        private ByteBuffer fragment = ByteBuffer.allocateDirect(fragmentSize + HEADER_SIZE);
+        private OnlineSnapshot snapshot;
+        private ByteBuffer reply;
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    buffer.clear();
+                    SocketAddress sender = channel.receive(buffer);
+                    buffer.flip();
+                    if (admission.isOverloaded() && (matches(buffer, LIST) || startsWith(buffer, LIST_PAGED))) {
+                        channel.send(ByteBuffer.wrap(admission.getBusyReply()), sender);
+                    } else if (matches(buffer, LIST)) {
+                        channel.send(currentReply(), sender);
+                    } else if (startsWith(buffer, LIST_PAGED)) {
+                        buffer.position(buffer.position() + LIST_PAGED.length);
+                        sendPages(sender);
+                    }
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Could not respond to datagram: " + e.getMessage());
+                }
+            }
+        }
+
+        private void sendPages(SocketAddress sender) throws IOException {
+            long request = nextNumber(buffer);
+            if (request < 0) {
+                return;
+            }
+            OnlineSnapshot latest = sessions.getSnapshot();
+            byte[][] pages = latest.getPages(fragmentSize);
+            long version = nextNumber(buffer);
+            if (version != latest.getVersion()) {
+                // the client asks for the others once it knows how many there are
+                sendPage(sender, request, latest.getVersion(), 0, pages);
+                return;
+            }
+            int sent = 0;
+            for (long seq; sent < MAX_PAGES_PER_REQUEST && (seq = nextNumber(buffer)) >= 0;) {
+                if (seq < pages.length) {
+                    sendPage(sender, request, version, (int) seq, pages);
+                    sent++;
+                }
+            }
+        }
+
+        private void sendPage(SocketAddress sender, long request, long version, int seq, byte[][] pages)
+                throws IOException {
+            if (pages[seq].length + HEADER_SIZE > fragment.capacity()) {
+                // a single user exceeding the fragment size still gets a page of its own
+                fragment = ByteBuffer.allocateDirect(pages[seq].length + HEADER_SIZE);
+            }
+            fragment.clear();
+            fragment.put(LIST_PAGED);
+            putNumber(request);
+            fragment.put((byte) ' ');
+            putNumber(version);
+            fragment.put((byte) ' ');
+            putNumber(seq);
+            fragment.put((byte) ' ');
+            putNumber(pages.length);
+            fragment.put((byte) '\n');
+            fragment.put(pages[seq]);
+            fragment.flip();
+            channel.send(fragment, sender);
+        }
+
+        private void putNumber(long number) {
+            int start = fragment.position();
+            do {
+                fragment.put((byte) ('0' + number % 10));
+                number /= 10;
+            } while (number > 0);
+            // the digits were written in reverse order
+            for (int i = start, j = fragment.position() - 1; i < j; i++, j--) {
+                byte digit = fragment.get(i);
+                fragment.put(i, fragment.get(j));
+                fragment.put(j, digit);
+            }
+        }
+
+        /**
+         * Returns this receiver's own view of the latest reply, so it can be
+         * rewound without affecting the other receivers.
+         */
+        private ByteBuffer currentReply() {
+            OnlineSnapshot latest = sessions.getSnapshot();
+            if (latest != snapshot) {
+                snapshot = latest;
+                reply = latest.getReplyBuffer().duplicate();
+            }
+            reply.rewind();
+            return reply;
+        }
+    }
+}
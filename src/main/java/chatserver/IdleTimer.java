@@ -0,0 +1,170 @@
+package chatserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes idle sessions and sends heartbeats to quiet ones, using a hashed
+ * timing wheel.
+ * <p/>
+ * Every session sits in exactly one slot of the wheel, the one of the next
+ * moment it has to be looked at. Each tick only visits the slot under the
+ * cursor, and activity merely updates a timestamp in the {@link ClientHandler}:
+ * a session that has been active since it was scheduled is simply moved to a
+ * later slot once its slot comes up. This keeps the cost per session and tick
+ * at O(1), independent of the number of sessions.
+ */
+public class IdleTimer implements Runnable, Closeable {
+
+    private final long timeout;
+    private final long heartbeat;
+    private final long tick;
+    private final Queue<ClientHandler>[] wheel;
+    private final PrintStream log;
+    private final ScheduledExecutorService scheduler;
+    private long lastTick;
+
+    /**
+     * @param timeout
+     *            milliseconds without activity after which a session is
+     *            closed, {@code 0} to disable
+     * @param heartbeat
+     *            milliseconds without activity after which a session is sent
+     *            a {@code !ping}, {@code 0} to disable
+     * @param tick
+     *            the resolution of the timer in milliseconds
+     * @param log
+     *            the stream to report closed sessions to
+     */
+    public IdleTimer(long timeout, long heartbeat, long tick, PrintStream log) {
+        this.timeout = timeout;
+        this.heartbeat = heartbeat;
+        this.tick = Math.max(1, tick);
+        this.log = log;
+        // the wheel spans the longest interval, so every session is visited once per rotation
+        this.wheel = newWheel((int) (Math.max(timeout, heartbeat) / this.tick) + 2);
+        this.lastTick = System.currentTimeMillis() / this.tick;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "idle-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (isEnabled()) {
+            scheduler.scheduleAtFixedRate(this, this.tick, this.tick, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns whether idle timeouts or heartbeats are enabled at all.
+     *
+     * @return {@code true} if sessions are being watched
+     */
+    public boolean isEnabled() {
+        return timeout > 0 || heartbeat > 0;
+    }
+
+    /**
+     * Starts watching the given session.
+     *
+     * @param clientHandler
+     *            the session
+     */
+    public void add(ClientHandler clientHandler) {
+        if (isEnabled()) {
+            schedule(clientHandler, nextCheck(clientHandler), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Advances the cursor to the current time, processing every slot passed.
+     */
+    @Override
+    public void run() {
+        advance(System.currentTimeMillis());
+    }
+
+    /**
+     * Advances the cursor to the given time, processing every slot passed.
+     *
+     * @param now
+     *            the current time in milliseconds
+     */
+    void advance(long now) {
+        long currentTick = now / tick;
+        for (; lastTick < currentTick; lastTick++) {
+            Queue<ClientHandler> slot = wheel[(int) ((lastTick + 1) % wheel.length)];
+            // only the sessions present now, as rescheduled ones may land in the same slot
+            for (int i = slot.size(); i > 0; i--) {
+                ClientHandler clientHandler = slot.poll();
+                if (clientHandler == null) {
+                    break;
+                }
+                try {
+                    check(clientHandler, now);
+                } catch (RuntimeException e) {
+                    System.err.println("Could not check idle session: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+    }
+
+    private void check(ClientHandler clientHandler, long now) {
+        if (clientHandler.isClosed()) {
+            return;
+        }
+        long idle = now - clientHandler.getLastActivity();
+        if (timeout > 0 && idle >= timeout) {
+            String username = clientHandler.getUsername();
+            log.println("Closing idle session" + (username != null ? " of " + username : ""));
+            clientHandler.disconnect();
+            return;
+        }
+        if (heartbeat > 0 && idle >= heartbeat && now - clientHandler.getLastPing() >= heartbeat) {
+            clientHandler.ping(now);
+        }
+        long next = nextCheck(clientHandler);
+        schedule(clientHandler, next > now ? next : now + tick, now);
+    }
+
+    private long nextCheck(ClientHandler clientHandler) {
+        long lastActivity = clientHandler.getLastActivity();
+        long next = Long.MAX_VALUE;
+        if (timeout > 0) {
+            next = lastActivity + timeout;
+        }
+        if (heartbeat > 0) {
+            next = Math.min(next, Math.max(lastActivity, clientHandler.getLastPing()) + heartbeat);
+        }
+        return next;
+    }
+
+    private void schedule(ClientHandler clientHandler, long deadline, long now) {
+        // never the slot under the cursor, it might have been passed already
+        long deadlineTick = Math.max(deadline / tick, now / tick + 1);
+        wheel[(int) (deadlineTick % wheel.length)].add(clientHandler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<ClientHandler>[] newWheel(int size) {
+        Queue<ClientHandler>[] wheel = (Queue<ClientHandler>[]) new Queue<?>[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        return wheel;
+    }
+}
@@ -0,0 +1,109 @@
+package chatserver;
+
+import shared.BinaryProtocol;
+import shared.FrameEncoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A line waiting in the {@link OutboundQueue} of one or more recipients.
+ * <p/>
+ * A shared message, e.g. a public message sent to every user online, is
+ * encoded at most once per protocol, no matter how many recipients it has. All
+ * of them write from the same read-only buffer. Binary frames of shared
+ * messages intern no usernames, as interning depends on the state of a single
+ * connection. Other messages are encoded by their recipient like any other
+ * line.
+ */
+public class Message {
+
+    private static final FrameEncoder FRAMES = new FrameEncoder(BinaryProtocol.Direction.TO_CLIENT, false);
+
+    private final String line;
+    private final boolean shared;
+
+    private volatile byte[] text;
+    private volatile byte[] frame;
+    private volatile ByteBuffer textBuffer;
+    private volatile ByteBuffer frameBuffer;
+
+    public Message(String line) {
+        this(line, false);
+    }
+
+    private Message(String line, boolean shared) {
+        this.line = line;
+        this.shared = shared;
+    }
+
+    /**
+     * Creates a message to be delivered to many recipients.
+     *
+     * @param line
+     *            the line
+     * @return the message
+     */
+    public static Message shared(String line) {
+        return new Message(line, true);
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Returns the encoded message.<br/>
+     * The array is shared by all recipients and must not be modified.
+     *
+     * @param binary
+     *            whether to encode a frame of the {@link BinaryProtocol}
+     *            instead of a line of text
+     * @return the encoded message
+     */
+    public byte[] getBytes(boolean binary) {
+        // racing recipients may encode twice, but always to the same bytes
+        if (binary) {
+            byte[] tmp = frame;
+            if (tmp == null) {
+                frame = tmp = FRAMES.encode(line);
+            }
+            return tmp;
+        }
+        byte[] tmp = text;
+        if (tmp == null) {
+            text = tmp = (line.endsWith("\n") ? line : line + "\n").getBytes();
+        }
+        return tmp;
+    }
+
+    /**
+     * Returns the encoded message in a read-only direct buffer, ready to be
+     * written to a channel without further copies.<br/>
+     * The buffer is shared by all recipients, each of which has to write from
+     * a {@link ByteBuffer#duplicate() duplicate} of it.
+     *
+     * @param binary
+     *            whether to encode a frame of the {@link BinaryProtocol}
+     *            instead of a line of text
+     * @return the encoded message
+     */
+    public ByteBuffer getBuffer(boolean binary) {
+        ByteBuffer tmp = binary ? frameBuffer : textBuffer;
+        if (tmp == null) {
+            byte[] bytes = getBytes(binary);
+            tmp = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+            tmp.flip();
+            tmp = tmp.asReadOnlyBuffer();
+            if (binary) {
+                frameBuffer = tmp;
+            } else {
+                textBuffer = tmp;
+            }
+        }
+        return tmp;
+    }
+}
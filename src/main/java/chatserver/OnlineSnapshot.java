@@ -0,0 +1,117 @@
+package chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Immutable, sorted list of the users online at a certain version of the
+ * {@link SessionRegistry}, together with its pre-encoded {@code !list} reply.
+ * <p/>
+ * The plain reply has to fit into a single datagram. If the users do not,
+ * it ends with a line telling how many were left out instead.
+ */
+public final class OnlineSnapshot {
+
+    /** Leaves room for the line telling how many users were left out. */
+    private static final int MAX_REPLY_SIZE = Chatserver.UDP_BUFFER_SIZE - 128;
+
+    private final long version;
+    private final List<String> users;
+    private final ByteBuffer replyBuffer;
+    private volatile byte[][] pages;
+
+    OnlineSnapshot(long version, Collection<String> usersOnline) {
+        List<String> sorted = new ArrayList<>(usersOnline);
+        Collections.sort(sorted);
+        StringBuilder builder = new StringBuilder();
+        int listed = 0;
+        for (String user : sorted) {
+            int length = builder.length();
+            builder.append(user).append(System.lineSeparator());
+            if (builder.length() > MAX_REPLY_SIZE) {
+                builder.setLength(length);
+                break;
+            }
+            listed++;
+        }
+        if (listed < sorted.size()) {
+            builder.append("... ").append(sorted.size() - listed)
+                    .append(" more, ask for the paged list to get all of them").append(System.lineSeparator());
+        }
+        this.version = version;
+        this.users = Collections.unmodifiableList(sorted);
+        byte[] reply = builder.toString().getBytes();
+        ByteBuffer direct = ByteBuffer.allocateDirect(reply.length);
+        direct.put(reply).flip();
+        this.replyBuffer = direct.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the number of logins and logouts that happened before this
+     * snapshot was taken.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the online users in alphabetical order.
+     *
+     * @return the users
+     */
+    public List<String> getUsers() {
+        return users;
+    }
+
+    /**
+     * Returns the encoded reply to a {@code !list} request in a read-only
+     * direct buffer.<br/>
+     * Callers have to {@link ByteBuffer#duplicate()} it before reading.
+     *
+     * @return the reply
+     */
+    ByteBuffer getReplyBuffer() {
+        return replyBuffer;
+    }
+
+    /**
+     * Returns the reply split into pages for the paged {@code !list}
+     * protocol.<br/>
+     * Users are never split across pages, and there is always at least one,
+     * possibly empty, page. The pages are computed on first use and shared;
+     * they must not be modified.
+     *
+     * @param maxSize
+     *            the maximum number of bytes per page
+     * @return the pages
+     */
+    byte[][] getPages(int maxSize) {
+        byte[][] result = pages;
+        if (result == null) {
+            result = paginate(maxSize);
+            pages = result;
+        }
+        return result;
+    }
+
+    private byte[][] paginate(int maxSize) {
+        List<byte[]> result = new ArrayList<>();
+        ByteArrayOutputStream page = new ByteArrayOutputStream(maxSize);
+        for (String user : users) {
+            byte[] line = (user + System.lineSeparator()).getBytes();
+            if (page.size() > 0 && page.size() + line.length > maxSize) {
+                result.add(page.toByteArray());
+                page.reset();
+            }
+            page.write(line, 0, line.length);
+        }
+        result.add(page.toByteArray());
+        return result.toArray(new byte[result.size()][]);
+    }
+}
@@ -0,0 +1,372 @@
+package chatserver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Bounded queue of messages waiting to be written to one {@link ClientHandler}.
+ * <p/>
+ * Producers only enqueue, so a slow or stalled recipient never blocks the
+ * sender of a broadcast. The queue is drained by a single task on the given
+ * {@link Executor}, which is scheduled whenever the queue becomes non-empty
+ * and keeps the lines in order. What happens once the queue is full is
+ * decided by its {@link Policy}.
+ * <p/>
+ * Producers never touch the disk either: lines beyond the capacity of a
+ * spilling queue are kept in memory until a task on the spill executor
+ * appends them to the file, and the draining task reads them back.
+ * <p/>
+ * A connection that does not block its writer, like those of a
+ * {@link Reactor}, {@link #hold() holds} the queue while the bytes it could
+ * not send yet pile up, and {@link #resume() resumes} it once they are
+ * sent, so the policy applies to its recipient just the same.
+ */
+public class OutboundQueue implements Runnable {
+
+    /**
+     * Defines how to deal with a recipient that cannot keep up.
+     */
+    public enum Policy {
+        /** Discards the oldest queued line to make room for the new one. */
+        DROP_OLDEST,
+        /** Closes the connection of the recipient. */
+        DISCONNECT,
+        /** Appends further lines to a temporary file until the queue drains. */
+        SPILL
+    }
+
+    private final ClientHandler handler;
+    private final Executor executor;
+    private final Executor spiller;
+    private final int capacity;
+    private final Policy policy;
+    private final Runnable spillTask = new Runnable() {
+        @Override
+        public void run() {
+            spillOverflow();
+        }
+    };
+
+    private final Deque<Message> queue = new ArrayDeque<>();
+    /** Lines to be spilled, which come after all lines in the spill file. */
+    private final Deque<String> overflow = new ArrayDeque<>();
+    private Spill spill;
+    /** The number of lines in the spill file not read back yet. */
+    private int spilled;
+    private boolean spilling;
+    private boolean draining;
+    private boolean held;
+    private boolean closed;
+    private long dropped;
+
+    /**
+     * @param handler
+     *            the recipient
+     * @param executor
+     *            runs the task draining the queue
+     * @param spiller
+     *            runs the task writing the spill file, only needed for
+     *            {@link Policy#SPILL}
+     * @param capacity
+     *            the maximum number of lines kept in memory
+     * @param policy
+     *            what to do once the queue is full
+     */
+    public OutboundQueue(ClientHandler handler, Executor executor, Executor spiller, int capacity, Policy policy) {
+        this.handler = handler;
+        this.executor = executor;
+        this.spiller = spiller;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Enqueues the given message without blocking.
+     *
+     * @param message
+     *            the message to write to the recipient
+     */
+    public void offer(Message message) {
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (spilling || spilled > 0) {
+                // behind the lines spilled before
+                overflow(message);
+            } else if (queue.size() < capacity) {
+                queue.add(message);
+            } else if (policy == Policy.DROP_OLDEST) {
+                queue.poll();
+                queue.add(message);
+                dropped++;
+            } else if (policy == Policy.SPILL) {
+                overflow(message);
+            } else {
+                closed = true;
+                disconnect = true;
+            }
+            // overflowing lines are drained once the spill task wrote them
+            if (!draining && !held && !disconnect && (!queue.isEmpty() || spilled > 0)) {
+                draining = true;
+                executor.execute(this);
+            }
+        }
+        if (disconnect) {
+            System.err.println("Disconnecting slow consumer " + handler.getUsername());
+            handler.disconnect();
+        }
+    }
+
+    /**
+     * Writes queued messages until the queue is empty, ending the batch of
+     * coalesced lines afterwards.
+     */
+    @Override
+    public void run() {
+        Message message = null;
+        try {
+            while ((message = next()) != null) {
+                handler.write(message);
+            }
+            handler.endBatch();
+        } catch (IOException e) {
+            close();
+            handler.disconnect();
+        } finally {
+            if (message != null) {
+                // stopped before next() found the queue empty, let the next offer drain again
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops writing queued messages after the current one, until
+     * {@link #resume()}d. Messages keep being queued in the meantime.
+     */
+    public synchronized void hold() {
+        held = true;
+    }
+
+    /**
+     * Writes the queued messages again after {@link #hold()}.
+     */
+    public synchronized void resume() {
+        held = false;
+        if (!draining && !closed && (!queue.isEmpty() || spilled > 0)) {
+            draining = true;
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Discards all queued messages and rejects further ones.
+     */
+    public void close() {
+        Spill stale;
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+            overflow.clear();
+            stale = spill;
+            spill = null;
+            spilled = 0;
+        }
+        if (stale != null) {
+            stale.delete();
+        }
+    }
+
+    /**
+     * Returns the number of lines discarded by {@link Policy#DROP_OLDEST},
+     * or lost to a failing spill file.
+     *
+     * @return the number of dropped lines
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the next message to write, reading spilled lines back once the
+     * queue is empty. The spill file is read without holding the monitor, so
+     * producers are never kept waiting for the disk.
+     */
+    private Message next() {
+        while (true) {
+            Spill source;
+            int count;
+            synchronized (this) {
+                Message message = closed || held ? null : queue.poll();
+                if (message != null) {
+                    return message;
+                }
+                if (closed || held || spilled == 0) {
+                    // resume() or the spill task drains again
+                    draining = false;
+                    return null;
+                }
+                source = spill;
+                count = Math.min(capacity, spilled);
+            }
+            List<String> lines = new ArrayList<>(count);
+            IOException failure = null;
+            try {
+                source.poll(count, lines);
+            } catch (IOException e) {
+                failure = e;
+            }
+            Spill stale = null;
+            synchronized (this) {
+                if (spill == source) {
+                    if (failure != null) {
+                        System.err.println("Could not read spilled outbound messages: " + failure.getMessage());
+                        // lines spilled meanwhile are dropped by the spill task, as the file is gone
+                        dropped += spilled;
+                        spilled = 0;
+                    } else {
+                        spilled -= lines.size();
+                        for (String line : lines) {
+                            queue.add(new Message(line));
+                        }
+                    }
+                    if (failure != null || spilled == 0 && !spilling) {
+                        stale = spill;
+                        spill = null;
+                    }
+                }
+            }
+            if (stale != null) {
+                stale.delete();
+            }
+        }
+    }
+
+    private void overflow(Message message) {
+        // a spilled message is read back for this recipient only
+        overflow.add(message.getLine());
+        if (!spilling) {
+            spilling = true;
+            spiller.execute(spillTask);
+        }
+    }
+
+    /**
+     * Appends the overflowing lines to the spill file until there are none
+     * left, on the spill executor.
+     */
+    private void spillOverflow() {
+        while (true) {
+            String[] lines;
+            Spill target;
+            synchronized (this) {
+                if (closed || overflow.isEmpty()) {
+                    spilling = false;
+                    return;
+                }
+                lines = overflow.toArray(new String[overflow.size()]);
+                overflow.clear();
+                target = spill;
+            }
+            Spill written = target;
+            IOException failure = null;
+            try {
+                if (written == null) {
+                    written = new Spill();
+                }
+                written.add(lines);
+            } catch (IOException e) {
+                failure = e;
+            }
+            Spill stale = null;
+            synchronized (this) {
+                if (closed || spill != target) {
+                    // closed, or the file failed in the meantime
+                    stale = written;
+                    dropped += lines.length;
+                } else if (failure != null) {
+                    System.err.println("Could not spill outbound messages: " + failure.getMessage());
+                    stale = written;
+                    dropped += spilled + lines.length;
+                    spill = null;
+                    spilled = 0;
+                } else {
+                    spill = written;
+                    spilled += lines.length;
+                    if (!draining && !held) {
+                        draining = true;
+                        executor.execute(this);
+                    }
+                }
+            }
+            if (stale != null) {
+                stale.delete();
+            }
+        }
+    }
+
+    /**
+     * Lines that did not fit into the queue, kept in a temporary file.<br/>
+     * Each line is stored with its length in front, so a message spanning
+     * several lines is read back as a whole. Lines are appended by the spill
+     * task and read by the draining task, possibly at the same time.
+     */
+    private static class Spill {
+        private final File file;
+        private final DataOutputStream writer;
+        private DataInputStream reader;
+
+        Spill() throws IOException {
+            file = File.createTempFile("outbound", ".spill");
+            file.deleteOnExit();
+            writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        synchronized void add(String[] lines) throws IOException {
+            for (String line : lines) {
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                writer.writeInt(bytes.length);
+                writer.write(bytes);
+            }
+            writer.flush();
+        }
+
+        /**
+         * Reads the given number of lines, all of which have been added
+         * before.
+         */
+        synchronized void poll(int count, List<String> lines) throws IOException {
+            if (reader == null) {
+                reader = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[reader.readInt()];
+                reader.readFully(bytes);
+                lines.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+
+        synchronized void delete() {
+            try {
+                writer.close();
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not close spill file: " + e.getMessage());
+            }
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package chatserver;
+
+import util.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Paces the commands read from clients with one pair of {@link TokenBucket}s,
+ * for commands and bytes, per user and per IP address.
+ * <p/>
+ * A client exceeding any of its buckets is not disconnected. Instead, its
+ * connection stops being read for the returned pause, so TCP flow control
+ * pushes back on the client and a noisy sender cannot crowd out the others.
+ */
+public class RateLimiter {
+
+    /** The number of tracked keys above which full buckets are forgotten. */
+    private static final int PRUNE_THRESHOLD = 4096;
+
+    private final long userCommands;
+    private final long userBytes;
+    private final long addressCommands;
+    private final long addressBytes;
+    private final long burst;
+
+    private final Map<String, Buckets> users = new ConcurrentHashMap<>();
+    private final Map<String, Buckets> addresses = new ConcurrentHashMap<>();
+
+    public RateLimiter(Config config) {
+        userCommands = config.getInt("rate.user.commands");
+        userBytes = config.getInt("rate.user.bytes");
+        addressCommands = config.getInt("rate.ip.commands");
+        addressBytes = config.getInt("rate.ip.bytes");
+        burst = Math.max(1, config.getInt("rate.burst"));
+    }
+
+    /**
+     * Accounts for input read from a client.
+     *
+     * @param username
+     *            the user logged in on the connection, or {@code null}
+     * @param address
+     *            the IP address of the client
+     * @param commands
+     *            the number of commands started by the input
+     * @param bytes
+     *            the size of the input
+     * @return the nanoseconds to stop reading from the client, {@code 0} if it
+     *         is within its limits
+     */
+    public long take(String username, String address, int commands, int bytes) {
+        long pause = 0;
+        if (username != null) {
+            pause = take(users, username, userCommands, userBytes, commands, bytes);
+        }
+        if (address != null) {
+            pause = Math.max(pause, take(addresses, address, addressCommands, addressBytes, commands, bytes));
+        }
+        return pause;
+    }
+
+    private long take(Map<String, Buckets> map, String key, long commandRate, long byteRate, int commands,
+            int bytes) {
+        if (commandRate <= 0 && byteRate <= 0) {
+            return 0;
+        }
+        Buckets buckets = map.get(key);
+        if (buckets == null) {
+            if (map.size() >= PRUNE_THRESHOLD) {
+                prune(map);
+            }
+            buckets = new Buckets(commandRate, byteRate);
+            Buckets existing = map.putIfAbsent(key, buckets);
+            if (existing != null) {
+                buckets = existing;
+            }
+        }
+        return buckets.take(commands, bytes);
+    }
+
+    private static void prune(Map<String, Buckets> map) {
+        for (Map.Entry<String, Buckets> entry : map.entrySet()) {
+            if (entry.getValue().isFull()) {
+                map.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The buckets of a single user or address, {@code null} if disabled.
+     */
+    private class Buckets {
+        private final TokenBucket commands;
+        private final TokenBucket bytes;
+
+        Buckets(long commandRate, long byteRate) {
+            commands = commandRate > 0 ? new TokenBucket(commandRate, commandRate * burst) : null;
+            bytes = byteRate > 0 ? new TokenBucket(byteRate, byteRate * burst) : null;
+        }
+
+        long take(int commandCount, int size) {
+            long pause = commands != null && commandCount > 0 ? commands.take(commandCount) : 0;
+            return Math.max(pause, bytes != null ? bytes.take(size) : 0);
+        }
+
+        boolean isFull() {
+            return (commands == null || commands.isFull()) && (bytes == null || bytes.isFull());
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package chatserver;
+
+import shared.BinaryProtocol;
+import shared.BufferSink;
+import shared.Frame;
+import shared.FrameDecoder;
+import shared.LineReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Multiplexes the TCP connections of the {@link Chatserver} over a small fixed
+ * set of selector threads.
+ * <p/>
+ * The thread calling {@link #run()} accepts connections and hands them out
+ * round-robin to the event loops. Every event loop reads its non-blocking
+ * channels into one shared buffer, splits the bytes into lines and dispatches
+ * them to the {@link ClientHandler} of the connection. Only the unfinished tail
+ * of a line is kept per connection, so an idle session costs neither a thread
+ * nor a read buffer. Connections opening with the {@link BinaryProtocol}
+ * preface are split into frames instead of lines.
+ * <p/>
+ * Lines longer than the maximum frame size are handed to the
+ * {@link ClientHandler} in chunks as they arrive, so the bytes kept per
+ * connection never exceed that size plus one read.
+ * <p/>
+ * A client exceeding its rate (see {@link RateLimiter}) is paused: its channel
+ * is no longer selected for reading until the pause is over, and the commands
+ * it has already sent wait in the connection until then.
+ * <p/>
+ * Writes never block. Once more than the maximum of pending bytes wait for a
+ * client to take them, its {@link OutboundQueue} is held, so the broadcasts to
+ * it pile up there and are dealt with by the slow consumer policy, and its
+ * channel is no longer read, so its own commands cannot pile up replies. Both
+ * resume once half of the pending bytes have been sent.
+ */
+public class Reactor implements Runnable, Closeable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_LINE = 1024;
+    /** The most buffers handed to a single gathering write, as limited by most kernels. */
+    private static final int MAX_GATHER = 1024;
+
+    private final Chatserver callback;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final int maxPending;
+    private int next;
+
+    /**
+     * @param port
+     *            the port to listen on
+     * @param threads
+     *            the number of event loops
+     * @param maxPending
+     *            the number of bytes waiting to be written to a connection
+     *            beyond which it is held back
+     * @param callback
+     *            the chatserver the connections belong to
+     */
+    public Reactor(int port, int threads, int maxPending, Chatserver callback) throws IOException {
+        this.callback = callback;
+        this.maxPending = Math.max(1, maxPending);
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts connections until this reactor is
+     * closed.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "reactor-" + i).start();
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (callback.getAdmission().isOverloaded()) {
+                    reject(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].add(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Turns away a connection the chatserver has no capacity for, telling the
+     * client when to retry.
+     */
+    private void reject(SocketChannel channel) {
+        try {
+            channel.write(ByteBuffer.wrap(callback.getAdmission().getBusyReply()));
+        } catch (IOException e) {
+            // the client learns about it by the closed connection
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close channel");
+        }
+    }
+
+    /**
+     * Returns the port this reactor accepts connections on.
+     *
+     * @return the local port
+     */
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.selector.close();
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final PriorityQueue<Connection> paused = new PriorityQueue<>(16, new Comparator<Connection>() {
+            @Override
+            public int compare(Connection a, Connection b) {
+                return Long.compare(a.resumeAt, b.resumeAt);
+            }
+        });
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    selector.select(nextResume());
+                    registerAccepted();
+                    resumePaused();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushPending();
+                            }
+                            if (key.isValid() && key.isReadable() && !connection.paused && !connection.held) {
+                                read(connection);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.handler.disconnect();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // the reactor has been closed
+            }
+        }
+
+        private void registerAccepted() {
+            for (SocketChannel channel; (channel = accepted.poll()) != null;) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(channel, key, maxPending);
+                    String address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                    connection.handler = new ClientHandler(connection, address, connection, callback);
+                    key.attach(connection);
+                    callback.accept(connection.handler);
+                } catch (IOException e) {
+                    System.err.println("Could not register connection: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Returns how long to block in the selector, so the next paused
+         * connection is resumed on time.
+         */
+        private long nextResume() {
+            Connection next = paused.peek();
+            if (next == null) {
+                return 0;
+            }
+            return Math.max(1, (next.resumeAt - System.nanoTime()) / 1000000);
+        }
+
+        private void resumePaused() {
+            long now = System.nanoTime();
+            while (!paused.isEmpty() && paused.peek().resumeAt - now <= 0) {
+                Connection connection = paused.poll();
+                if (connection.handler.isClosed()) {
+                    continue;
+                }
+                try {
+                    connection.setPaused(false);
+                    // commands received before the pause come first
+                    process(connection);
+                } catch (IOException | CancelledKeyException e) {
+                    connection.handler.disconnect();
+                }
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            buffer.clear();
+            if (connection.channel.read(buffer) < 0) {
+                connection.handler.disconnect();
+                return;
+            }
+            buffer.flip();
+            int start = 0;
+            if (connection.isNew) {
+                connection.isNew = false;
+                if (buffer.hasRemaining() && buffer.get(0) == BinaryProtocol.PREFACE[0]) {
+                    connection.decoder = new FrameDecoder(BinaryProtocol.Direction.TO_SERVER,
+                            connection.handler.getMaxFrameSize());
+                    connection.preface = BinaryProtocol.PREFACE.length;
+                    connection.handler.useBinary();
+                }
+            }
+            // the preface may arrive in pieces
+            for (; connection.preface > 0 && start < buffer.limit(); start++, connection.preface--) {
+                if (buffer.get(start) != BinaryProtocol.PREFACE[BinaryProtocol.PREFACE.length - connection.preface]) {
+                    throw new IOException("Malformed protocol preface");
+                }
+            }
+            connection.append(buffer, start, buffer.limit());
+            process(connection);
+        }
+
+        /**
+         * Dispatches the complete commands received on the connection until
+         * it has to be paused.<br/>
+         * Lines are dispatched straight from the bytes of the connection.
+         */
+        private void process(Connection connection) throws IOException {
+            if (connection.decoder != null) {
+                processFrames(connection);
+            } else {
+                processLines(connection);
+            }
+        }
+
+        private void processLines(Connection connection) throws IOException {
+            byte[] data = connection.line;
+            int maxLength = connection.handler.getMaxFrameSize();
+            int start = 0;
+            int i = connection.scanned;
+            for (; i < connection.length && !connection.paused; i++) {
+                byte b = data[i];
+                if (connection.skipLineFeed) {
+                    // the second half of a CRLF, which may arrive in a later read
+                    connection.skipLineFeed = false;
+                    if (b == '\n') {
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    // lines end as with a LineReader, at LF, CR or CRLF
+                    int end = i;
+                    int lineStart = start;
+                    start = i + 1;
+                    connection.skipLineFeed = b == '\r';
+                    if (connection.oversized) {
+                        connection.oversized = false;
+                        connection.handler.dispatchChunk(data, lineStart, end - lineStart, false, true);
+                        charge(connection, 0, start - lineStart);
+                    } else {
+                        connection.handler.dispatch(data, lineStart, end - lineStart);
+                        charge(connection, 1, start - lineStart);
+                    }
+                } else if (i + 1 - start >= maxLength) {
+                    // hand out the line in pieces instead of buffering it
+                    int chunkStart = start;
+                    start = LineReader.boundary(data, start, i + 1);
+                    boolean head = !connection.oversized;
+                    connection.oversized = true;
+                    connection.handler.dispatchChunk(data, chunkStart, start - chunkStart, head, false);
+                    charge(connection, head ? 1 : 0, start - chunkStart);
+                }
+            }
+            connection.consume(start);
+            connection.scanned = i - start;
+        }
+
+        private void processFrames(Connection connection) throws IOException {
+            int start = 0;
+            while (!connection.paused && connection.length - start >= BinaryProtocol.HEADER_SIZE) {
+                byte[] data = connection.line;
+                int length = ((data[start + 1] & 0xff) << 24) | ((data[start + 2] & 0xff) << 16)
+                        | ((data[start + 3] & 0xff) << 8) | (data[start + 4] & 0xff);
+                connection.decoder.checkLength(length);
+                int total = BinaryProtocol.HEADER_SIZE + length;
+                if (connection.length - start < total) {
+                    break;
+                }
+                Frame frame = connection.decoder.decode(data[start] & 0xff, data, start + BinaryProtocol.HEADER_SIZE,
+                        length);
+                start += total;
+                connection.handler.dispatch(frame);
+                charge(connection, 1, total);
+            }
+            connection.consume(start);
+        }
+
+        /**
+         * Pauses reading from the connection if the client has exceeded its
+         * rate. Bytes read in the meantime stay in the connection until it is
+         * resumed, more are left to the flow control of TCP.
+         */
+        private void charge(Connection connection, int commands, int bytes) {
+            long pause = connection.handler.charge(commands, bytes);
+            if (pause > 0 && !connection.handler.isClosed()) {
+                connection.resumeAt = System.nanoTime() + pause;
+                connection.setPaused(true);
+                paused.add(connection);
+            }
+        }
+    }
+
+    /**
+     * The state of a single non-blocking connection.<br/>
+     * Doubles as the {@link OutputStream} of its {@link ClientHandler}: written
+     * bytes are queued until the next flush, which hands all of them to the
+     * channel in one gathering write. Shared buffers are queued as they are,
+     * without copying them. Whatever the channel does not take immediately is
+     * flushed by the event loop as soon as it becomes writable again; too much
+     * of it holds the connection back.
+     */
+    private static class Connection extends OutputStream implements BufferSink {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final int maxPending;
+        private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+        private long pendingBytes;
+        private volatile boolean held;
+        private ByteBuffer[] gather = new ByteBuffer[16];
+        private boolean waiting;
+        private boolean paused;
+        private long resumeAt;
+        private ClientHandler handler;
+        private boolean isNew = true;
+        private boolean oversized;
+        private boolean skipLineFeed;
+        private FrameDecoder decoder;
+        private int preface;
+
+        private byte[] line;
+        private int length;
+        private int scanned;
+
+        Connection(SocketChannel channel, SelectionKey key, int maxPending) {
+            this.channel = channel;
+            this.key = key;
+            this.maxPending = maxPending;
+        }
+
+        void append(ByteBuffer buffer, int from, int to) {
+            int count = to - from;
+            if (count <= 0) {
+                return;
+            }
+            if (line == null) {
+                line = new byte[Math.max(64, count)];
+            } else if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            buffer.position(from);
+            buffer.get(line, length, count);
+            length += count;
+        }
+
+        void consume(int count) {
+            if (count == 0) {
+                return;
+            }
+            length -= count;
+            System.arraycopy(line, count, line, 0, length);
+            if (length == 0 && line.length > MAX_RETAINED_LINE) {
+                line = null;
+            }
+        }
+
+        synchronized void setPaused(boolean paused) {
+            this.paused = paused;
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            key.interestOps((paused || held ? 0 : SelectionKey.OP_READ) | (waiting ? SelectionKey.OP_WRITE : 0));
+        }
+
+        /**
+         * Holds the connection back while too many bytes wait to be written,
+         * and resumes it once half of them are gone.
+         */
+        private void updateHeld() {
+            if (!held && pendingBytes > maxPending) {
+                held = true;
+                handler.holdOutput();
+                updateInterest();
+            } else if (held && pendingBytes <= maxPending / 2) {
+                held = false;
+                handler.resumeOutput();
+                updateInterest();
+                key.selector().wakeup();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int off, int len) throws IOException {
+            if (len > 0) {
+                pending.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, off, off + len)));
+                pendingBytes += len;
+                updateHeld();
+            }
+        }
+
+        @Override
+        public synchronized void write(ByteBuffer buffer) {
+            if (buffer.hasRemaining()) {
+                pendingBytes += buffer.remaining();
+                pending.add(buffer);
+                updateHeld();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                flushPending();
+            } catch (CancelledKeyException e) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        synchronized void flushPending() throws IOException {
+            while (!pending.isEmpty()) {
+                if (gather.length < pending.size() && gather.length < MAX_GATHER) {
+                    gather = new ByteBuffer[Math.min(MAX_GATHER, Math.max(gather.length * 2, pending.size()))];
+                }
+                int count = 0;
+                for (Iterator<ByteBuffer> it = pending.iterator(); it.hasNext() && count < gather.length;) {
+                    gather[count++] = it.next();
+                }
+                long written = channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+                pendingBytes -= written;
+                updateHeld();
+                while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                    pending.poll();
+                }
+                if (written == 0 && !pending.isEmpty()) {
+                    if (!waiting) {
+                        waiting = true;
+                        updateInterest();
+                        key.selector().wakeup();
+                    }
+                    return;
+                }
+            }
+            if (waiting) {
+                waiting = false;
+                updateInterest();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            key.cancel();
+            channel.close();
+        }
+    }
+}
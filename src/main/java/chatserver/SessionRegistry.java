@@ -0,0 +1,142 @@
+package chatserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of all connected {@link ClientHandler}s and of the users logged
+ * in on them.
+ * <p/>
+ * Lookups by username are O(1). All views are backed by concurrent
+ * collections, so iterating them is safe while connections, logins and
+ * logouts happen concurrently, and never blocks them.
+ * <p/>
+ * Every login and logout increments a version. The {@link OnlineSnapshot} is
+ * rebuilt at most once per version, on its first request, so bursts of
+ * {@code !list} requests in between cost nothing but sending the cached reply.
+ */
+public class SessionRegistry {
+
+    private final Set<ClientHandler> sessions = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, ClientHandler> online = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile OnlineSnapshot snapshot = new OnlineSnapshot(0, Collections.<String>emptySet());
+
+    /**
+     * Adds a newly connected session.
+     *
+     * @param clientHandler
+     *            the handler of the connection
+     */
+    public void add(ClientHandler clientHandler) {
+        sessions.add(clientHandler);
+    }
+
+    /**
+     * Removes a session, logging out its user if necessary.
+     *
+     * @param clientHandler
+     *            the handler of the connection
+     */
+    public void remove(ClientHandler clientHandler) {
+        sessions.remove(clientHandler);
+        String username = clientHandler.getUsername();
+        if (username != null) {
+            logout(username, clientHandler);
+        }
+    }
+
+    /**
+     * Marks the given user as online on the given session.
+     *
+     * @param username
+     *            the user logging in
+     * @param clientHandler
+     *            the session the user logs in on
+     * @return {@code false} if the user is already logged in on another session
+     */
+    public boolean login(String username, ClientHandler clientHandler) {
+        ClientHandler previous = online.putIfAbsent(username, clientHandler);
+        if (previous == null) {
+            version.incrementAndGet();
+        }
+        return previous == null || previous == clientHandler;
+    }
+
+    /**
+     * Marks the given user as offline, if it is still logged in on the given
+     * session.
+     *
+     * @param username
+     *            the user logging out
+     * @param clientHandler
+     *            the session the user logs out from
+     */
+    public void logout(String username, ClientHandler clientHandler) {
+        if (online.remove(username, clientHandler)) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the session the given user is logged in on.
+     *
+     * @param username
+     *            the user to look up
+     * @return the session, or {@code null} if the user is offline
+     */
+    public ClientHandler lookup(String username) {
+        return online.get(username);
+    }
+
+    /**
+     * Returns a live, read-only view of the names of all online users.
+     *
+     * @return the online users
+     */
+    public Set<String> getUsersOnline() {
+        return Collections.unmodifiableSet(online.keySet());
+    }
+
+    /**
+     * Returns the online users as of the latest login or logout.
+     *
+     * @return the current snapshot
+     */
+    public OnlineSnapshot getSnapshot() {
+        OnlineSnapshot current = snapshot;
+        if (current.getVersion() == version.get()) {
+            return current;
+        }
+        synchronized (this) {
+            // the version is read first, so a concurrent change always leaves the snapshot stale
+            long latest = version.get();
+            if (snapshot.getVersion() != latest) {
+                snapshot = new OnlineSnapshot(latest, online.keySet());
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Returns a live, read-only view of all sessions with a logged in user.
+     *
+     * @return the logged in sessions
+     */
+    public Collection<ClientHandler> getLoggedIn() {
+        return Collections.unmodifiableCollection(online.values());
+    }
+
+    /**
+     * Returns a live, read-only view of all connected sessions.
+     *
+     * @return the sessions
+     */
+    public Collection<ClientHandler> getSessions() {
+        return Collections.unmodifiableSet(sessions);
+    }
+}
@@ -0,0 +1,71 @@
+package chatserver;
+
+/**
+ * Token bucket admitting a sustained rate, with bursts of up to its capacity.
+ * <p/>
+ * Taking tokens never fails: taking more than are available drives the
+ * bucket into debt, and the caller is told how long to pause until the debt
+ * is paid off. That way a client is slowed down to the rate instead of being
+ * rejected.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long last;
+
+    /**
+     * @param perSecond
+     *            the sustained rate in tokens per second
+     * @param capacity
+     *            the most tokens the bucket holds, i.e. the largest burst
+     */
+    public TokenBucket(long perSecond, long capacity) {
+        this(perSecond, capacity, System.nanoTime());
+    }
+
+    TokenBucket(long perSecond, long capacity, long now) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.last = now;
+    }
+
+    /**
+     * Takes the given number of tokens.
+     *
+     * @param count
+     *            the number of tokens
+     * @return the nanoseconds to pause until the bucket is no longer in debt,
+     *         {@code 0} if it is not
+     */
+    public long take(long count) {
+        return take(count, System.nanoTime());
+    }
+
+    synchronized long take(long count, long now) {
+        refill(now);
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+    }
+
+    /**
+     * Returns whether the bucket is full, so forgetting it changes nothing.
+     *
+     * @return {@code true} if the bucket is full
+     */
+    public boolean isFull() {
+        return isFull(System.nanoTime());
+    }
+
+    synchronized boolean isFull(long now) {
+        refill(now);
+        return tokens >= capacity;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+        last = now;
+    }
+}
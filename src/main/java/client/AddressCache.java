@@ -0,0 +1,216 @@
+package client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Bounded cache of the private addresses of other users.
+ * <p/>
+ * Addresses are kept for a time to live, and the least recently used entry
+ * is dropped once the cache is full. Answers saying that a user is not
+ * online or did not register are cached as well, for a shorter time, so
+ * messaging an unreachable user does not ask the chatserver over and over.
+ * <p/>
+ * An address used often is refreshed in the background shortly before it
+ * expires, so a frequent contact never waits for a lookup. The cache itself
+ * sends no lookups; it asks its refresher to, and is told by
+ * {@link #refreshed(String)} once the refresh is over, whatever its outcome.
+ */
+public class AddressCache {
+
+    /** Share of the time to live before its end in which an address is refreshed. */
+    private static final double REFRESH_AHEAD = 0.25;
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final int refreshHits;
+    private final Consumer<String> refresher;
+    private final Map<String, Entry> entries;
+
+    /**
+     * @param maxSize
+     *            the maximum number of users kept
+     * @param ttl
+     *            milliseconds an address is considered valid
+     * @param negativeTtl
+     *            milliseconds a negative answer is considered valid
+     * @param refreshHits
+     *            the number of uses that make an address worth refreshing
+     * @param refresher
+     *            looks up the user given, eventually calling {@link #put} or
+     *            {@link #putNegative}
+     */
+    public AddressCache(final int maxSize, long ttl, long negativeTtl, int refreshHits, Consumer<String> refresher) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.refreshHits = refreshHits;
+        this.refresher = refresher;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the valid entry of the given user, counting it as used.
+     *
+     * @param username
+     *            the name of the user
+     * @return the entry, or {@code null} if the user has to be looked up
+     */
+    public Entry get(String username) {
+        Entry entry;
+        boolean refresh = false;
+        synchronized (this) {
+            entry = entries.get(username);
+            long now = System.currentTimeMillis();
+            if (entry == null || now >= entry.expires) {
+                return null;
+            }
+            entry.hits++;
+            if (entry.address != null && !entry.refreshing && entry.hits >= refreshHits
+                    && entry.expires - now < ttl * REFRESH_AHEAD) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+        if (refresh) {
+            refresher.accept(username);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the valid address of the given user without counting it as
+     * used.<br/>
+     * An address that has expired is refreshed, so messages waiting for it
+     * are resumed once the user is looked up again.
+     *
+     * @param username
+     *            the name of the user
+     * @return the address, or {@code null} if unknown or expired
+     */
+    public String peek(String username) {
+        synchronized (this) {
+            Entry entry = entries.get(username);
+            if (entry == null || entry.address == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() < entry.expires) {
+                return entry.address;
+            }
+            if (entry.refreshing) {
+                return null;
+            }
+            entry.refreshing = true;
+        }
+        refresher.accept(username);
+        return null;
+    }
+
+    /**
+     * Caches the address of the given user.
+     *
+     * @param username
+     *            the name of the user
+     * @param address
+     *            the private address
+     */
+    public synchronized void put(String username, String address) {
+        entries.put(username, new Entry(address, null, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Caches that the given user cannot be messaged right now.
+     *
+     * @param username
+     *            the name of the user
+     * @param reason
+     *            the answer of the chatserver
+     */
+    public synchronized void putNegative(String username, String reason) {
+        entries.put(username, new Entry(null, reason, System.currentTimeMillis() + negativeTtl));
+    }
+
+    /**
+     * Forgets the given address of the user, e.g. because it proved to be
+     * unreachable.
+     *
+     * @param username
+     *            the name of the user
+     * @param address
+     *            the address
+     */
+    public synchronized void invalidate(String username, String address) {
+        Entry entry = entries.get(username);
+        if (entry != null && address.equals(entry.address)) {
+            entries.remove(username);
+        }
+    }
+
+    /**
+     * Ends the refresh of the given user, so that a later use may start
+     * another one, e.g. after the lookup failed.
+     *
+     * @param username
+     *            the name of the user
+     */
+    public synchronized void refreshed(String username) {
+        Entry entry = entries.get(username);
+        if (entry != null) {
+            entry.refreshing = false;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The answer to a lookup, positive or negative.
+     */
+    public static class Entry {
+        private final String address;
+        private final String reason;
+        private final long expires;
+        private int hits;
+        private boolean refreshing;
+
+        Entry(String address, String reason, long expires) {
+            this.address = address;
+            this.reason = reason;
+            this.expires = expires;
+        }
+
+        /**
+         * Returns the address of the user.
+         *
+         * @return the address, or {@code null} for a negative answer
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * Returns how long the answer remains valid.
+         *
+         * @return the milliseconds until it expires
+         */
+        public long getRemaining() {
+            return Math.max(0, expires - System.currentTimeMillis());
+        }
+
+        /**
+         * Returns why the user cannot be messaged.
+         *
+         * @return the answer of the chatserver, or {@code null} if the user
+         *         has an address
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+}
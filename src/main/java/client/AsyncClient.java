@@ -0,0 +1,438 @@
+package client;
+
+import shared.BinaryProtocol;
+import shared.Command;
+import shared.CommandInterpreter;
+import shared.Correlation;
+import util.Config;
+import util.Threads;
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Headless client for embedding a chat user into other programs.
+ * <p/>
+ * Unlike {@link Client}, which reads commands from a console and prints
+ * whatever the chatserver answers, every operation returns a
+ * {@link CompletableFuture} of its result right away. Requests are pipelined
+ * over the TCP connection with {@link Correlation} tags, so no thread waits
+ * for a reply; only the UDP {@code !list} runs on the executor of the client,
+ * see {@link ListChannel}. Private messages to other users are pipelined as
+ * well, see {@link PeerConnectionPool}, and sent in the order of the calls by
+ * a thread of their own, so a slow user never stalls the chatserver. A
+ * request the chatserver refuses fails with an {@link IOException} carrying
+ * its answer.
+ * <p/>
+ * Public messages, and private ones once {@link #register(String)
+ * registered}, are published to the subscribers of {@link #messages()}. The
+ * connection is not read while a subscriber lags behind, so a slow subscriber
+ * holds off the chatserver instead of losing messages.
+ */
+public class AsyncClient implements Closeable {
+
+    private static final String LOGGED_IN = "Successfully logged in.";
+    private static final String LOGGED_OUT = "Successfully logged out.";
+    private static final String REGISTERED = "Successfully registered private IP address.";
+    private static final String ACK = "!ack";
+
+    private final Config config;
+    private final Threads threads;
+    private final ExecutorService executor;
+    private final ExecutorService sender = Executors.newSingleThreadExecutor();
+    private final PendingReplies replies = new PendingReplies();
+    private final SubmissionPublisher<Message> messages;
+    private final PeerConnectionPool peers;
+
+    private Socket serverSocket;
+    private ListChannel listChannel;
+    private CommandInterpreter toServer;
+    private PeerListener listener;
+    private volatile String username;
+
+    /**
+     * @param config
+     *            the configuration to use, with the same keys as the one of
+     *            {@link Client}
+     */
+    public AsyncClient(Config config) {
+        this.config = config;
+        this.threads = new Threads(config);
+        this.executor = threads.newExecutor();
+        this.messages = new SubmissionPublisher<>(executor, Flow.defaultBufferSize());
+        this.peers = new PeerConnectionPool(config.getInt("tcp.port"), config.getInt("peer.idle.timeout"),
+                config.getInt("peer.ack.timeout"), config.getInt("peer.window"));
+    }
+
+    /**
+     * Connects to the chatserver and starts reading from it.
+     *
+     * @throws IOException
+     *             if the chatserver cannot be reached
+     */
+    public void connect() throws IOException {
+        InetAddress serverAddress = InetAddress.getByName(config.getString("chatserver.host"));
+        serverSocket = new Socket(serverAddress, config.getInt("chatserver.tcp.port"));
+        // an ephemeral port, so that many clients may run side by side
+        listChannel = new ListChannel(new DatagramSocket(), serverAddress, config.getInt("chatserver.udp.port"),
+                config);
+        boolean binary = config.getString("protocol").trim().equals("binary");
+        if (binary) {
+            serverSocket.getOutputStream().write(BinaryProtocol.PREFACE);
+        }
+        // only ever writes, it reads no input of its own
+        toServer = new CommandInterpreter(serverSocket.getOutputStream()) {
+        };
+        Inbound fromServer = new Inbound(serverSocket.getInputStream());
+        if (binary) {
+            toServer.useBinaryOutput(BinaryProtocol.Direction.TO_SERVER);
+            fromServer.useBinaryInput(serverSocket.getInputStream(), BinaryProtocol.Direction.TO_CLIENT);
+        }
+        threads.start(fromServer);
+    }
+
+    /**
+     * Logs in with the given credentials.
+     *
+     * @param username
+     *            the name of the user
+     * @param password
+     *            the password of the user
+     * @return completes once logged in
+     */
+    public CompletableFuture<Void> login(final String username, String password) {
+        return expect(request("!login " + username + " " + password), LOGGED_IN).thenRun(new Runnable() {
+            @Override
+            public void run() {
+                AsyncClient.this.username = username;
+            }
+        });
+    }
+
+    /**
+     * Logs out.
+     *
+     * @return completes once logged out
+     */
+    public CompletableFuture<Void> logout() {
+        return expect(request("!logout"), LOGGED_OUT);
+    }
+
+    /**
+     * Sends a public message to all other users online.
+     *
+     * @param message
+     *            the message
+     * @return completes once the chatserver accepted the message
+     */
+    public CompletableFuture<Void> send(String message) {
+        return expect(request("!send " + message), "");
+    }
+
+    /**
+     * Looks up the private address of the given user.
+     *
+     * @param username
+     *            the name of the user
+     * @return the address in the form {@code host:port}
+     */
+    public CompletableFuture<String> lookup(final String username) {
+        return request("!lookup " + username).thenApply(new Function<String, String>() {
+            @Override
+            public String apply(String reply) {
+                String[] parts = reply.split("\\s+");
+                if (parts.length != 3 || !parts[0].equals("!register") || !parts[1].equals(username)) {
+                    throw new CompletionException(new IOException(reply));
+                }
+                return parts[2];
+            }
+        });
+    }
+
+    /**
+     * Accepts private messages at the given address and tells the chatserver
+     * about it.
+     *
+     * @param privateAddress
+     *            the address in the form {@code host} or {@code host:port},
+     *            the port being the one to listen on, {@code tcp.port} by
+     *            default
+     * @return completes once registered
+     */
+    public CompletableFuture<Void> register(String privateAddress) {
+        try {
+            int colon = privateAddress.lastIndexOf(':');
+            int port = colon >= 0 ? Integer.parseInt(privateAddress.substring(colon + 1).trim())
+                    : config.getInt("tcp.port");
+            listen(port);
+        } catch (IOException | NumberFormatException e) {
+            return failed(e instanceof IOException ? (IOException) e
+                    : new IOException("Illegal private address " + privateAddress));
+        }
+        return expect(request("!register " + privateAddress), REGISTERED);
+    }
+
+    /**
+     * Starts listening for private messages on the given port, unless
+     * listening already.
+     */
+    private synchronized void listen(int port) throws IOException {
+        if (listener == null) {
+            listener = new PeerListener(port, config.getInt("peer.max.message"), new PeerListener.Receiver() {
+                @Override
+                public void received(String line) {
+                    int separator = line.indexOf(": ");
+                    publish(separator < 0 ? new Message(null, line, true)
+                            : new Message(line.substring(0, separator), line.substring(separator + 2), true));
+                }
+
+                @Override
+                public void failed(IOException cause) {
+                    System.err.println("Could not read the private message: " + cause.getMessage());
+                }
+            });
+            threads.start(listener);
+        }
+    }
+
+    /**
+     * Sends a private message to the given user, looking up its address
+     * first.
+     *
+     * @param username
+     *            the name of the user
+     * @param message
+     *            the message
+     * @return completes once the user acknowledged the message
+     */
+    public CompletableFuture<Void> msg(final String username, final String message) {
+        return lookup(username).thenComposeAsync(new Function<String, CompletableFuture<String>>() {
+            @Override
+            public CompletableFuture<String> apply(String address) {
+                // one at a time in the order the lookups are answered; may
+                // block on connecting or while the window to the user is full
+                return peers.send(username, address, AsyncClient.this.username + ": " + message);
+            }
+        }, sender).thenAccept(new Consumer<String>() {
+            @Override
+            public void accept(String response) {
+                if (!response.trim().equals(ACK)) {
+                    throw new CompletionException(new IOException(username + " did not acknowledge the message"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the chatserver for the users online.
+     *
+     * @return the lines of the list, one per user
+     */
+    public CompletableFuture<List<String>> list() {
+        return CompletableFuture.supplyAsync(new Supplier<List<String>>() {
+            @Override
+            public List<String> get() {
+                ListAssembler assembler;
+                try {
+                    assembler = listChannel.list();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                if (!assembler.isComplete()) {
+                    throw new CompletionException(new IOException(Client.busy(assembler.getRetryAfter())));
+                }
+                List<String> users = new ArrayList<>();
+                for (String line : assembler.getList().split("\n")) {
+                    if (!line.trim().isEmpty()) {
+                        users.add(line.trim());
+                    }
+                }
+                return users;
+            }
+        }, executor);
+    }
+
+    /**
+     * Returns the messages received, public ones as well as private ones.
+     *
+     * @return the publisher of the messages
+     */
+    public Flow.Publisher<Message> messages() {
+        return messages;
+    }
+
+    /**
+     * Sends the given command tagged with a correlation id.
+     *
+     * @param command
+     *            the command
+     * @return the untagged reply
+     */
+    public CompletableFuture<String> request(String command) {
+        return replies.request(toServer, command);
+    }
+
+    /**
+     * Closes the connections, failing the requests still pending, and
+     * completes the subscriptions of {@link #messages()}.
+     */
+    @Override
+    public void close() {
+        try {
+            PeerListener listener;
+            synchronized (this) {
+                listener = this.listener;
+            }
+            if (listener != null) {
+                listener.close();
+            }
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (listChannel != null) {
+                listChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not close socket: " + e.getMessage());
+        }
+        peers.close();
+        replies.close(new IOException("Client closed."));
+        messages.close();
+        sender.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * Hands the given message to the subscribers, blocking while any of them
+     * is too far behind.
+     */
+    private void publish(Message message) {
+        try {
+            messages.submit(message);
+        } catch (IllegalStateException e) {
+            // closed, nobody is listening anymore
+        }
+    }
+
+    private static CompletableFuture<Void> expect(CompletableFuture<String> reply, final String expected) {
+        return reply.thenAccept(new Consumer<String>() {
+            @Override
+            public void accept(String line) {
+                if (!line.equals(expected)) {
+                    throw new CompletionException(new IOException(line));
+                }
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(IOException cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * A message received from another user.
+     */
+    public static class Message {
+        private final String sender;
+        private final String text;
+        private final boolean isPrivate;
+
+        public Message(String sender, String text, boolean isPrivate) {
+            this.sender = sender;
+            this.text = text;
+            this.isPrivate = isPrivate;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Returns whether the message was sent to this user alone.
+         *
+         * @return {@code true} for a private message
+         */
+        public boolean isPrivate() {
+            return isPrivate;
+        }
+
+        @Override
+        public String toString() {
+            return sender + ": " + text;
+        }
+    }
+
+    /**
+     * Reads the lines of the chatserver, handing replies to the requests
+     * waiting for them and publishing messages.
+     */
+    private class Inbound extends CommandInterpreter {
+
+        Inbound(InputStream in) {
+            // nothing is ever answered, the results are discarded
+            super(in, OutputStream.nullOutputStream());
+            register(this);
+        }
+
+        @Override
+        public void run() {
+            super.run();
+            replies.close(new IOException("Connection to the chatserver closed."));
+            messages.close();
+        }
+
+        @Override
+        public void dispatch(byte[] data, int offset, int length) throws IOException {
+            if (Correlation.tagLength(data, offset, offset + length) > 0) {
+                dispatch(new String(data, offset, length));
+            } else {
+                super.dispatch(data, offset, length);
+            }
+        }
+
+        @Override
+        public void dispatch(String line) throws IOException {
+            if (!replies.route(line)) {
+                super.dispatch(line);
+            }
+        }
+
+        @Command
+        public String send(String username, String message) {
+            publish(new Message(username, message, false));
+            return null;
+        }
+
+        @Command
+        public String ping() throws IOException {
+            toServer.writeLine("!pong");
+            return null;
+        }
+
+        /**
+         * The chatserver turned the connection away.
+         */
+        @Command
+        public String busy(long retryAfter) {
+            replies.close(new IOException(Client.busy(retryAfter)));
+            return null;
+        }
+    }
+}
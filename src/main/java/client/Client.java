@@ -1,24 +1,37 @@
 package client;
 
-import chatserver.Chatserver;
+import shared.BinaryProtocol;
 import shared.Command;
 import shared.CommandInterpreter;
+import shared.Correlation;
 import util.Config;
+import util.Threads;
 
 import java.io.*;
 import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class Client implements IClientCli, Runnable {
 
 	private final String componentName;
 	private final Config config;
+	private final Threads threads;
+	private final PeerConnectionPool peers;
 	private final InputStream userRequestStream;
 	private final PrintStream userResponseStream;
 
 	private Socket serverSocket;
-	private ServerSocket socket;
+	private PeerListener listener;
 	private CommandInterpreter userToServer;
 	private ServerHandler serverToUser;
 
@@ -30,15 +43,24 @@ public class Client implements IClientCli, Runnable {
 
 	private String name;
 
-	private final Map<String, String> userAddressMap = new HashMap<>();
-	private final Map<String, List<String>> pendingMessages = new HashMap<>();
+	private ListChannel listChannel;
 
-	public Map<String, String> getUserAddressMap() {
-		return userAddressMap;
+	private final AddressCache addressCache;
+	private final Set<String> lookups = ConcurrentHashMap.newKeySet();
+	private final ExecutorService deliveryExecutor;
+	private final PeerOutbox outbox;
+	private final PendingReplies pendingReplies = new PendingReplies();
+
+	public AddressCache getAddressCache() {
+		return addressCache;
+	}
+
+	public PeerOutbox getOutbox() {
+		return outbox;
 	}
 
-	public Map<String, List<String>> getPendingMessages() {
-		return pendingMessages;
+	public PendingReplies getPendingReplies() {
+		return pendingReplies;
 	}
 
 	/**
@@ -55,6 +77,7 @@ public class Client implements IClientCli, Runnable {
 			InputStream userRequestStream, PrintStream userResponseStream) {
 		this.componentName = componentName;
 		this.config = config;
+		this.threads = new Threads(config);
 		this.userRequestStream = userRequestStream;
 		this.userResponseStream = userResponseStream;
 
@@ -67,6 +90,19 @@ public class Client implements IClientCli, Runnable {
 		this.serverDatagramPort = config.getInt("chatserver.udp.port");
 		this.port = config.getInt("tcp.port");
 		this.datagramPort = config.getInt("udp.port");
+		this.peers = new PeerConnectionPool(port, config.getInt("peer.idle.timeout"),
+				config.getInt("peer.ack.timeout"), config.getInt("peer.window"));
+		this.addressCache = new AddressCache(config.getInt("address.cache.size"), config.getInt("address.cache.ttl"),
+				config.getInt("address.cache.negative.ttl"), config.getInt("address.cache.refresh.hits"),
+				new Consumer<String>() {
+					@Override
+					public void accept(String username) {
+						lookup(username, true);
+					}
+				});
+		this.deliveryExecutor = Executors.newFixedThreadPool(config.getInt("peer.delivery.threads"));
+		this.outbox = new PeerOutbox(this, deliveryExecutor, config.getInt("peer.message.ttl"),
+				config.getInt("peer.pending.max"));
 	}
 
 	@Override
@@ -76,12 +112,20 @@ public class Client implements IClientCli, Runnable {
 		}
 		try {
 			serverSocket = new Socket(serverAddress, serverPort);
+			boolean binary = config.getString("protocol").trim().equals("binary");
+			if(binary) {
+				serverSocket.getOutputStream().write(BinaryProtocol.PREFACE);
+			}
 			userToServer = new CommandInterpreter(userRequestStream, serverSocket.getOutputStream());
 			userToServer.register(this);
-			new Thread(userToServer).start();
 			serverToUser = new ServerHandler(serverSocket.getInputStream(), userResponseStream, this);
 			serverToUser.register(serverToUser);
-			new Thread(serverToUser).start();
+			if(binary) {
+				userToServer.useBinaryOutput(BinaryProtocol.Direction.TO_SERVER);
+				serverToUser.useBinaryInput(serverSocket.getInputStream(), BinaryProtocol.Direction.TO_CLIENT);
+			}
+			threads.start(userToServer);
+			threads.start(serverToUser);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -109,57 +153,31 @@ public class Client implements IClientCli, Runnable {
 		return null;
 	}
 
-	private class ClientHandler implements Runnable {
-		private final Socket otherClient;
-
-		public ClientHandler(Socket otherClient) {
-			this.otherClient = otherClient;
-		}
-
-		@Override
-		public void run() {
-			try {
-				String message = new BufferedReader(new InputStreamReader(
-						otherClient.getInputStream())).readLine();
-
-				serverToUser.writeLine(message);
-
-				Writer out = new OutputStreamWriter(otherClient.getOutputStream());
-				out.write("!ack" + System.lineSeparator());
-				out.flush();
-			} catch (IOException e) {
-				try {
-					serverToUser.writeLine("Could not read the private message");
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
-			}
-		}
-	}
-
 	@Override
 	@Command
 	public String register(String privateAddress) throws IOException {
-		socket = new ServerSocket(port);
+		if(listener == null) {
+			listener = new PeerListener(port, config.getInt("peer.max.message"), new PeerListener.Receiver() {
+				@Override
+				public void received(String message) {
+					try {
+						serverToUser.writeLine(message);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
 
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				while(!Thread.currentThread().isInterrupted()) {
+				@Override
+				public void failed(IOException cause) {
 					try {
-						Socket otherClient = socket.accept();
-						new Thread(new ClientHandler(otherClient)).start();
+						serverToUser.writeLine("Could not read the private message: " + cause.getMessage());
 					} catch (IOException e) {
-						try {
-							serverToUser.writeLine("Cannot accept any inbound connections anymore.");
-						} catch (IOException e1) {
-							e1.printStackTrace();
-						}
-						return;
+						e.printStackTrace();
 					}
 				}
-			}
-		}).start();
+			});
+			threads.start(listener);
+		}
 
 		return "!register " + privateAddress;
 	}
@@ -167,86 +185,243 @@ public class Client implements IClientCli, Runnable {
 	@Override
 	@Command
 	public String list() throws IOException {
-		DatagramSocket datagramSocket = new DatagramSocket(datagramPort);
-		String command = "!list";
-		DatagramPacket packet = new DatagramPacket(
-				command.getBytes(),
-				command.getBytes().length,
-				serverAddress,
-				serverDatagramPort);
-		datagramSocket.connect(
-				serverAddress, serverDatagramPort);
-		datagramSocket.send(packet);
-
-		byte[] buffer = new byte[Chatserver.UDP_BUFFER_SIZE];
-		packet = new DatagramPacket(buffer, Chatserver.UDP_BUFFER_SIZE);
-		datagramSocket.receive(packet);
-
-		datagramSocket.close();
-
-		return new String(packet.getData());
+		ListAssembler assembler;
+		try {
+			assembler = getListChannel().list();
+		} catch (SocketTimeoutException | PortUnreachableException e) {
+			return "Could not receive the list of online users.";
+		}
+		return assembler.isComplete() ? assembler.getList() : busy(assembler.getRetryAfter());
+	}
+
+	/**
+	 * Returns the channel to fetch the list over, opening it on the own UDP
+	 * port when first used.
+	 */
+	private synchronized ListChannel getListChannel() throws IOException {
+		if(listChannel == null) {
+			DatagramSocket datagramSocket;
+			try {
+				datagramSocket = new DatagramSocket(datagramPort);
+			} catch (BindException e) {
+				// taken by another client on this host, any port will do
+				datagramSocket = new DatagramSocket();
+			}
+			listChannel = new ListChannel(datagramSocket, serverAddress, serverDatagramPort, config);
+		}
+		return listChannel;
+	}
+
+	/**
+	 * Describes a request turned away by an overloaded chatserver.
+	 */
+	static String busy(long retryAfter) {
+		return "Chatserver busy, retry after " + retryAfter + " ms.";
 	}
 
 	@Override
 	@Command
 	public String msg(final String username, final String message) throws IOException {
-
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				sendMsg(username, message);
-			}
-		}).start();
+		sendMsg(username, message);
 		return "";
 	}
 
+	/**
+	 * Queues a private message for delivery by the {@link PeerOutbox}, asking
+	 * the chatserver for the address of the user first if it is unknown.
+	 */
 	void sendMsg(String username, String message) {
-
-		final String address = userAddressMap.get(username);
-
-		if(address == null) {
-			if(pendingMessages.get(username) == null)
-				pendingMessages.put(username, new LinkedList<String>());
-
-			synchronized (pendingMessages.get(username)) {
-				List<String> messages = pendingMessages.get(username);
-				messages.add("[" + new SimpleDateFormat("HH:mm:ss.SSS").format(new Date())
-						+ "] " + message);
+		AddressCache.Entry cached = addressCache.get(username);
+		boolean known = cached != null && cached.getAddress() != null;
+		if(!known) {
+			message = "[" + new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()) + "] " + message;
+		}
+		try {
+			if(!outbox.offer(username, message)) {
+				serverToUser.writeLine("Too many private messages waiting, the message to " + username + " was dropped.");
+				return;
 			}
-
-			try {
-				userToServer.writeLine("!lookup " + username);
+			if(!known) {
+				if(cached == null) {
+					lookup(username, false);
+				} else {
+					// asked just now, the answer still holds
+					serverToUser.writeLine(cached.getReason());
+					// ask again once it is outdated, so the message is not left waiting
+					CompletableFuture.delayedExecutor(cached.getRemaining(), TimeUnit.MILLISECONDS).execute(new Runnable() {
+						@Override
+						public void run() {
+							lookup(username, true);
+						}
+					});
+				}
 				serverToUser.writeLine("Could not send message, will deliver as soon as address to " + username + " is known.");
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Asks the chatserver for the address of the given user and caches the
+	 * answer, negative ones included.<br/>
+	 * While a lookup of the user is underway, no other one is sent.
+	 *
+	 * @param quiet
+	 *            whether to keep the answer from the user, e.g. when
+	 *            refreshing an address in the background
+	 */
+	private void lookup(final String username, final boolean quiet) {
+		if(!lookups.add(username)) {
 			return;
 		}
-
-		synchronized (pendingMessages.get(username)) {
-			try {
-				Socket otherClient = new Socket(InetAddress.getByName(address), port);
-				otherClient.getOutputStream().write((
-						name + ": " + message + System.lineSeparator()).getBytes()
-				);
-				String response = new BufferedReader(new InputStreamReader(
-						otherClient.getInputStream())).readLine();
-				if(response.trim().equals("!ack")) {
-					serverToUser.writeLine(username + " replied with !ack");
+		request("!lookup " + username).whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String reply, Throwable failure) {
+				lookups.remove(username);
+				// answers replace the entry, anything else leaves the old one to be refreshed again
+				addressCache.refreshed(username);
+				if(failure != null) {
+					return;
+				}
+				try {
+					String[] parts = reply.split("\\s+");
+					if(parts.length == 3 && parts[0].equals("!register") && parts[1].equals(username)) {
+						if(quiet) {
+							addressCache.put(username, parts[2]);
+							outbox.resume(username);
+						} else {
+							// answered just like an untagged lookup
+							serverToUser.dispatch(reply);
+						}
+						return;
+					}
+					if(isUnreachable(username, reply)) {
+						addressCache.putNegative(username, reply);
+					}
+					if(!quiet) {
+						serverToUser.writeLine(reply);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-				otherClient.close();
-			} catch (Exception ex) {
+			}
+		});
+	}
+
+	private static boolean isUnreachable(String username, String reply) {
+		return reply.equals("No user with name " + username + " online.")
+				|| reply.equals(username + " didn't register yet!");
+	}
+
+	/**
+	 * Returns the address to deliver private messages to, see
+	 * {@link AddressCache#peek(String)}.<br/>
+	 * Like {@link #sendMsg(String, String)}, it only trusts addresses that
+	 * have not expired.
+	 */
+	String getAddress(String username) {
+		return addressCache.peek(username);
+	}
+
+	/**
+	 * Delivers a private message, called by the {@link PeerOutbox} in the
+	 * order the messages to the user were sent.<br/>
+	 * Returns as soon as the message is sent, unless the window of messages
+	 * awaiting acknowledgement is full.
+	 */
+	void deliver(final String username, final String address, String message) {
+		peers.send(username, address, name + ": " + message).whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String response, Throwable failure) {
 				try {
-					serverToUser.writeLine("Could not communicate to " + username);
+					if(failure != null) {
+						serverToUser.writeLine("Could not communicate to " + username);
+						addressCache.invalidate(username, address);
+					} else if(response.trim().equals("!ack")) {
+						serverToUser.writeLine(username + " replied with !ack");
+					}
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
-				userAddressMap.remove(username);
 			}
+		});
+	}
+
+	/**
+	 * Reports a private message that could not be delivered in time.
+	 */
+	void expired(String username, String message) {
+		try {
+			serverToUser.writeLine("Could not deliver message to " + username + " in time: " + message);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Sends a command to the chatserver tagged with a fresh correlation id,
+	 * without waiting for the reply.<br/>
+	 * Any number of requests may be in flight at once; each future is
+	 * completed with the reply to its own request, see {@link Correlation}.
+	 *
+	 * @param command
+	 *            the command, e.g. {@code !lookup bill.de}
+	 * @return the future reply, empty if the command has no result
+	 */
+	public CompletableFuture<String> request(String command) {
+		return pendingReplies.request(userToServer, command);
+	}
+
+	/**
+	 * Looks up the private addresses of the given users, with all lookups in
+	 * flight at once, so resolving many users takes a single round trip.<br/>
+	 * The addresses found are remembered for {@link #msg(String, String)}.
+	 *
+	 * @param usernames
+	 *            the users to look up
+	 * @return the addresses of the users that are online and registered
+	 * @throws IOException
+	 *             if the chatserver cannot be reached or does not reply in
+	 *             time
+	 */
+	public Map<String, String> resolve(Collection<String> usernames) throws IOException {
+		Map<String, CompletableFuture<String>> replies = new LinkedHashMap<>();
+		for(String username : usernames) {
+			replies.put(username, request("!lookup " + username));
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getInt("request.timeout"));
+		Map<String, String> addresses = new LinkedHashMap<>();
+		for(Map.Entry<String, CompletableFuture<String>> entry : replies.entrySet()) {
+			String reply;
+			try {
+				reply = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while resolving " + entry.getKey());
+			} catch (ExecutionException e) {
+				throw new IOException("Could not resolve " + entry.getKey(), e.getCause());
+			} catch (TimeoutException e) {
+				throw new IOException("Chatserver did not reply in time to the lookup of " + entry.getKey());
+			}
+			String[] parts = reply.split("\\s+");
+			if(parts.length == 3 && parts[0].equals("!register") && parts[1].equals(entry.getKey())) {
+				addresses.put(parts[1], parts[2]);
+				addressCache.put(parts[1], parts[2]);
+			} else if(isUnreachable(entry.getKey(), reply)) {
+				addressCache.putNegative(entry.getKey(), reply);
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Writes a line to the chatserver directly, bypassing the user.
+	 */
+	void sendToServer(String line) throws IOException {
+		userToServer.writeLine(line);
+	}
+
 	@Override
 	@Command
 	public String lastMsg() throws IOException {
@@ -257,7 +432,17 @@ public class Client implements IClientCli, Runnable {
 	@Command
 	public String exit() throws IOException {
 		serverSocket.close();
-		socket.close();
+		if(listener != null) {
+			listener.close();
+		}
+		synchronized(this) {
+			if(listChannel != null) {
+				listChannel.close();
+			}
+		}
+		peers.close();
+		outbox.close();
+		deliveryExecutor.shutdown();
 		userToServer.close();
 		serverToUser.close();
 		return null;
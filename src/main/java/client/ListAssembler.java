@@ -0,0 +1,179 @@
+package client;
+
+import chatserver.DatagramEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Reassembles the fragments of a paged {@code !list} reply.
+ * <p/>
+ * Each fragment starts with the line
+ * {@code !list <request> <version> <seq> <total>}, followed by the users it
+ * contains. Fragments of other requests are ignored. A fragment of a newer
+ * version means the list changed on the chatserver in the meantime, so the
+ * fragments collected so far are discarded. An overloaded chatserver replies
+ * with {@code !busy <milliseconds>} instead.
+ * <p/>
+ * The chatserver answers a request with a few fragments only, so the others
+ * are asked for window by window, see {@link #nextRequest()}.
+ */
+public class ListAssembler {
+
+    private final long request;
+    private long version = -1;
+    private byte[][] fragments;
+    private int received;
+    /** The fragments asked for so far are those before this one. */
+    private int asked;
+    private long retryAfter = -1;
+
+    /**
+     * @param request
+     *            the id of the request whose fragments are collected
+     */
+    public ListAssembler(long request) {
+        this.request = request;
+    }
+
+    /**
+     * Returns the datagram asking for all fragments of the current list.
+     *
+     * @return the request
+     */
+    public String request() {
+        return "!list " + request;
+    }
+
+    /**
+     * Returns the datagram asking for the next window of fragments, once all
+     * fragments asked for before have arrived.
+     *
+     * @return the request, or {@code null} if fragments are still on their
+     *         way or all of them have been asked for
+     */
+    public String nextRequest() {
+        if (fragments == null || received < asked || asked >= fragments.length) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(request()).append(' ').append(version);
+        int end = Math.min(fragments.length, asked + DatagramEngine.MAX_PAGES_PER_REQUEST);
+        for (; asked < end; asked++) {
+            builder.append(' ').append(asked);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the datagram asking again for the fragments asked for but still
+     * missing, or for the first one if none have arrived yet.
+     *
+     * @return the retransmit request
+     */
+    public String retransmitRequest() {
+        if (fragments == null) {
+            return request();
+        }
+        StringBuilder builder = new StringBuilder(request()).append(' ').append(version);
+        int count = 0;
+        for (int seq = 0; seq < asked && count < DatagramEngine.MAX_PAGES_PER_REQUEST; seq++) {
+            if (fragments[seq] == null) {
+                builder.append(' ').append(seq);
+                count++;
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Adds a received datagram.
+     *
+     * @param data
+     *            the buffer containing the datagram
+     * @param length
+     *            the length of the datagram
+     * @return {@code true} if the datagram was a new fragment of this request
+     */
+    public boolean add(byte[] data, int length) {
+        int newline = 0;
+        while (newline < length && data[newline] != '\n') {
+            newline++;
+        }
+        String[] header = new String(data, 0, newline).trim().split(" ");
+        if (header.length == 2 && header[0].equals("!busy")) {
+            try {
+                retryAfter = Long.parseLong(header[1]);
+            } catch (NumberFormatException e) {
+                // not a reply of the chatserver
+            }
+            return false;
+        }
+        if (header.length != 5 || !header[0].equals("!list")) {
+            return false;
+        }
+        long fragmentVersion;
+        int seq;
+        int total;
+        try {
+            if (Long.parseLong(header[1]) != request) {
+                return false;
+            }
+            fragmentVersion = Long.parseLong(header[2]);
+            seq = Integer.parseInt(header[3]);
+            total = Integer.parseInt(header[4]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (fragmentVersion < version || seq < 0 || seq >= total) {
+            return false;
+        }
+        if (fragmentVersion > version || fragments == null || fragments.length != total) {
+            version = fragmentVersion;
+            fragments = new byte[total][];
+            received = 0;
+            asked = 0;
+        }
+        // also counts fragments sent without being asked for, e.g. by an older chatserver
+        asked = Math.max(asked, seq + 1);
+        if (fragments[seq] != null) {
+            return false;
+        }
+        int start = Math.min(newline + 1, length);
+        fragments[seq] = Arrays.copyOfRange(data, start, length);
+        received++;
+        return true;
+    }
+
+    /**
+     * Returns when the chatserver asked to retry, if it turned the request
+     * away.
+     *
+     * @return the milliseconds to wait, or {@code -1} if the chatserver did
+     *         not reply {@code !busy}
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Returns whether all fragments have been received.
+     *
+     * @return {@code true} if the list is complete
+     */
+    public boolean isComplete() {
+        return fragments != null && received == fragments.length;
+    }
+
+    /**
+     * Returns the reassembled list of users, one per line.
+     *
+     * @return the list
+     */
+    public String getList() {
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        for (byte[] fragment : fragments) {
+            list.write(fragment, 0, fragment.length);
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,176 @@
+package client;
+
+import chatserver.Chatserver;
+import util.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fetches the list of online users over a single long-lived UDP socket,
+ * connected to the chatserver.
+ * <p/>
+ * Each request has an id of its own, so fragments still arriving for an
+ * earlier request are told apart and ignored, see {@link ListAssembler}.
+ * The first fragment tells how many there are, and the others are asked for
+ * a window at a time, each window once the previous one is complete.
+ * Should the chatserver not answer within {@code udp.timeout}, the missing
+ * fragments are asked for again, each time waiting twice as long, up to
+ * {@code udp.timeout.max}; after {@code udp.retries} attempts without progress
+ * the request fails.
+ * <p/>
+ * Callers asking at the same time share a single request, and a complete
+ * list is reused for {@code list.cache.ttl}, so polling the list costs the
+ * chatserver little and never blocks on the socket of another caller.
+ */
+public class ListChannel implements Closeable {
+
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    private final DatagramSocket socket;
+    private final int timeout;
+    private final int maxTimeout;
+    private final int retries;
+    private final long cacheTtl;
+    private final byte[] buffer = new byte[Chatserver.UDP_BUFFER_SIZE];
+    private long requests;
+    private CompletableFuture<ListAssembler> inFlight;
+    private ListAssembler cached;
+    private long cachedAt;
+
+    /**
+     * @param socket
+     *            the socket to use, connected to the chatserver afterwards
+     * @param serverAddress
+     *            the address of the chatserver
+     * @param serverPort
+     *            the UDP port of the chatserver
+     * @param config
+     *            the configuration containing the {@code udp.*} and
+     *            {@code list.cache.ttl} settings
+     * @throws IOException
+     *             if the socket cannot be set up
+     */
+    public ListChannel(DatagramSocket socket, InetAddress serverAddress, int serverPort, Config config)
+            throws IOException {
+        this.socket = socket;
+        this.timeout = config.getInt("udp.timeout");
+        this.maxTimeout = Math.max(timeout, config.getInt("udp.timeout.max"));
+        this.retries = config.getInt("udp.retries");
+        this.cacheTtl = config.getInt("list.cache.ttl");
+        socket.connect(serverAddress, serverPort);
+        socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the list of online users, asking the chatserver unless a recent
+     * one is at hand or another caller is asking already.
+     *
+     * @return the assembler of the request, either complete or telling when
+     *         to retry an overloaded chatserver
+     * @throws SocketTimeoutException
+     *             if the chatserver stopped answering
+     * @throws IOException
+     *             if another I/O error occurs
+     */
+    public ListAssembler list() throws IOException {
+        CompletableFuture<ListAssembler> request;
+        ListAssembler assembler = null;
+        synchronized (this) {
+            if (cached != null && System.currentTimeMillis() - cachedAt < cacheTtl) {
+                return cached;
+            }
+            if (inFlight == null) {
+                inFlight = new CompletableFuture<>();
+                assembler = new ListAssembler(++requests);
+            }
+            request = inFlight;
+        }
+        if (assembler != null) {
+            try {
+                fetch(assembler);
+                finished(assembler);
+                request.complete(assembler);
+            } catch (IOException | RuntimeException e) {
+                finished(null);
+                request.completeExceptionally(e);
+                throw e;
+            }
+            return assembler;
+        }
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the list");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SocketTimeoutException) {
+                throw new SocketTimeoutException(e.getCause().getMessage());
+            }
+            throw new IOException("Could not receive the list", e.getCause());
+        }
+    }
+
+    private synchronized void finished(ListAssembler assembler) {
+        inFlight = null;
+        if (assembler != null && assembler.isComplete()) {
+            cached = assembler;
+            cachedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Collects the fragments of the reply, asking again for the missing ones
+     * with a growing timeout as long as there is progress.
+     */
+    private void fetch(ListAssembler assembler) throws IOException {
+        int wait = timeout;
+        int attempts = retries;
+        socket.setSoTimeout(wait);
+        send(assembler.request());
+
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!assembler.isComplete()) {
+            try {
+                socket.receive(packet);
+                if (assembler.add(packet.getData(), packet.getLength())) {
+                    String next = assembler.nextRequest();
+                    if (next != null) {
+                        send(next);
+                    }
+                    if (wait != timeout) {
+                        wait = timeout;
+                        socket.setSoTimeout(wait);
+                    }
+                    attempts = retries;
+                } else if (assembler.getRetryAfter() >= 0) {
+                    return;
+                }
+            } catch (SocketTimeoutException e) {
+                if (attempts-- <= 0) {
+                    throw e;
+                }
+                wait = Math.min(wait * 2, maxTimeout);
+                socket.setSoTimeout(wait);
+                send(assembler.retransmitRequest());
+            }
+        }
+    }
+
+    private void send(String command) throws IOException {
+        byte[] data = command.getBytes();
+        socket.send(new DatagramPacket(data, data.length));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
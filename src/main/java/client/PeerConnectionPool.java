@@ -0,0 +1,515 @@
+package client;
+
+import shared.Correlation;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived connections to other users for private messages, one per user.
+ * <p/>
+ * A connection carries any number of messages, so a conversation pays for the
+ * TCP handshake once. Up to a window of messages are sent without waiting for
+ * their acknowledgements, which fills the connection even when the other user
+ * is far away; sending blocks only while the window is full. The most recently
+ * used resolved addresses are kept, so the host name of a user is looked up
+ * only once.
+ * <p/>
+ * The messages to a user form a stream, announced as {@code !stream <id>}
+ * when a connection opens. Each message is tagged with its sequence number in
+ * the stream (see {@link Correlation}), and {@code #<n> !ack} acknowledges all
+ * messages up to {@code n} at once. Should no acknowledgement arrive within the
+ * timeout, or should the connection fail, a fresh connection is opened once
+ * and all messages not acknowledged yet are sent again; {@link PeerListener}
+ * drops the ones it has received already, so no message arrives twice. Only
+ * if the second connection fails as well are the messages given up.
+ * <p/>
+ * Connections idle for longer than the idle timeout are closed by a
+ * background sweep, which also drops connections the other side has closed
+ * in the meantime.
+ */
+public class PeerConnectionPool implements Closeable {
+
+    /** The most resolved addresses kept, the least recently used are dropped. */
+    private static final int MAX_RESOLVED = 1024;
+
+    private final int defaultPort;
+    private final long idleTimeout;
+    private final int ackTimeout;
+    private final int window;
+    private final String session = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong streams = new AtomicLong();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Map<String, InetSocketAddress> resolved = Collections.synchronizedMap(
+            new LinkedHashMap<String, InetSocketAddress>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, InetSocketAddress> eldest) {
+                    return size() > MAX_RESOLVED;
+                }
+            });
+    private final ScheduledExecutorService sweeper;
+    private final ExecutorService readers;
+    private boolean closed;
+
+    /**
+     * @param defaultPort
+     *            the port of addresses that do not name one
+     * @param idleTimeout
+     *            milliseconds after which an unused connection is closed,
+     *            {@code 0} to close it as soon as all its messages are
+     *            acknowledged
+     * @param ackTimeout
+     *            milliseconds to wait for the next acknowledgement before
+     *            sending the messages again
+     * @param window
+     *            the maximum number of messages to a user awaiting their
+     *            acknowledgement
+     */
+    public PeerConnectionPool(int defaultPort, long idleTimeout, int ackTimeout, int window) {
+        this.defaultPort = defaultPort;
+        this.idleTimeout = idleTimeout;
+        this.ackTimeout = ackTimeout;
+        this.window = Math.max(1, window);
+        ThreadFactory daemons = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "peer-connections");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(daemons);
+        this.readers = Executors.newCachedThreadPool(daemons);
+        if (idleTimeout > 0) {
+            long interval = Math.max(1, idleTimeout / 2);
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends a line to the given user, blocking only while the window of
+     * messages awaiting acknowledgement is full.<br/>
+     * Lines sent to the same user are received in the order of the calls.
+     *
+     * @param username
+     *            the name of the user
+     * @param address
+     *            the private address of the user, {@code host} or
+     *            {@code host:port}
+     * @param line
+     *            the line to send
+     * @return the acknowledgement, failing with an {@link IOException} if
+     *         the user cannot be reached or does not answer in time
+     */
+    public CompletableFuture<String> send(String username, String address, String line) {
+        while (true) {
+            Peer peer = checkOut(username, address);
+            if (peer == null) {
+                CompletableFuture<String> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("Connection pool closed"));
+                return failed;
+            }
+            CompletableFuture<String> ack;
+            synchronized (peer) {
+                ack = peer.send(line);
+            }
+            // unless evicted in the meantime
+            if (ack != null) {
+                return ack;
+            }
+        }
+    }
+
+    /**
+     * Returns the connection to the given user, replacing the one to an old
+     * address of the user, or {@code null} once the pool is closed.
+     */
+    private Peer checkOut(String username, String address) {
+        Peer stale;
+        Peer peer;
+        synchronized (peers) {
+            if (closed) {
+                return null;
+            }
+            peer = peers.get(username);
+            if (peer != null && peer.address.equals(address)) {
+                return peer;
+            }
+            stale = peer;
+            peer = new Peer(username, address);
+            peers.put(username, peer);
+        }
+        if (stale != null) {
+            synchronized (stale) {
+                stale.shutdown(new IOException(username + " moved to another address"));
+            }
+        }
+        return peer;
+    }
+
+    /**
+     * Closes the connection to the given user, if any, failing the messages
+     * not acknowledged yet.
+     *
+     * @param username
+     *            the name of the user
+     */
+    public void evict(String username) {
+        Peer peer = peers.remove(username);
+        if (peer != null) {
+            synchronized (peer) {
+                peer.shutdown(new IOException("Connection to " + username + " closed"));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of users with an open connection.
+     *
+     * @return the number of pooled connections
+     */
+    public int size() {
+        int open = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public void close() {
+        synchronized (peers) {
+            // no connections are opened from now on, so all are evicted below
+            closed = true;
+        }
+        sweeper.shutdownNow();
+        for (String username : peers.keySet()) {
+            evict(username);
+        }
+        readers.shutdown();
+    }
+
+    /**
+     * Closes connections that are idle for too long or no longer healthy.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            synchronized (peer) {
+                if (peer.isIdle() && (now - peer.lastUsed >= idleTimeout || !peer.isHealthy())) {
+                    // nothing is outstanding, so nothing fails
+                    peer.shutdown(null);
+                    peers.remove(entry.getKey(), peer);
+                }
+            }
+        }
+    }
+
+    private InetSocketAddress resolve(String address) {
+        InetSocketAddress socketAddress = resolved.get(address);
+        if (socketAddress == null) {
+            int colon = address.lastIndexOf(':');
+            String host = colon >= 0 ? address.substring(0, colon) : address;
+            int port = colon >= 0 ? Integer.parseInt(address.substring(colon + 1).trim()) : defaultPort;
+            socketAddress = new InetSocketAddress(host.trim(), port);
+            if (!socketAddress.isUnresolved()) {
+                resolved.put(address, socketAddress);
+            }
+        }
+        return socketAddress;
+    }
+
+    /**
+     * A message sent but not acknowledged yet.
+     */
+    private static class Outstanding {
+        final long seq;
+        final byte[] data;
+        final CompletableFuture<String> ack = new CompletableFuture<>();
+
+        Outstanding(long seq, String line) {
+            this.seq = seq;
+            this.data = (Correlation.tag(seq) + " " + line + System.lineSeparator()).getBytes();
+        }
+    }
+
+    /**
+     * The stream of messages to a single user and its current connection,
+     * guarded by its own monitor.<br/>
+     * While messages are outstanding, a reader on the executor of the pool
+     * waits for their acknowledgements.
+     */
+    private class Peer implements Runnable {
+        private final String username;
+        private final String address;
+        private final byte[] header;
+        private final Deque<Outstanding> unacked = new ArrayDeque<>();
+        private long nextSeq = 1;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private boolean reading;
+        private boolean retried;
+        private boolean closed;
+        private long lastUsed = System.currentTimeMillis();
+
+        Peer(String username, String address) {
+            this.username = username;
+            this.address = address;
+            this.header = ("!stream " + session + "-" + streams.incrementAndGet() + System.lineSeparator()).getBytes();
+        }
+
+        boolean isOpen() {
+            return socket != null && !socket.isClosed();
+        }
+
+        boolean isIdle() {
+            return unacked.isEmpty() && !reading;
+        }
+
+        /**
+         * Sends a line over this connection, waiting while the window is
+         * full.
+         *
+         * @return the acknowledgement, or {@code null} if the connection was
+         *         closed before the line could be sent, so it has to be sent
+         *         over a fresh one
+         */
+        CompletableFuture<String> send(String line) {
+            while (unacked.size() >= window && !closed) {
+                try {
+                    // the reader makes room, or gives up on the messages
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    CompletableFuture<String> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(new IOException("Interrupted while sending to " + username));
+                    return failed;
+                }
+            }
+            if (closed) {
+                // evicted, a connection opened now would belong to no one
+                return null;
+            }
+            Outstanding message = new Outstanding(nextSeq++, line);
+            unacked.add(message);
+            lastUsed = System.currentTimeMillis();
+            if (isOpen()) {
+                try {
+                    out.write(message.data);
+                } catch (IOException e) {
+                    failed(socket, e);
+                }
+            } else {
+                try {
+                    connect();
+                } catch (IOException e) {
+                    // a fresh connection, not worth trying again
+                    retried = true;
+                    failed(socket, e);
+                }
+            }
+            if (!unacked.isEmpty() && !reading) {
+                reading = true;
+                try {
+                    readers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    reading = false;
+                    shutdown(new IOException("Connection pool closed"));
+                }
+            }
+            return message.ack;
+        }
+
+        /**
+         * Waits for acknowledgements until all messages are acknowledged.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Socket current;
+                InputStream input;
+                synchronized (this) {
+                    if (unacked.isEmpty() || !isOpen()) {
+                        reading = false;
+                        if (idleTimeout <= 0) {
+                            disconnect();
+                        }
+                        return;
+                    }
+                    current = socket;
+                    input = in;
+                }
+                try {
+                    current.setSoTimeout(ackTimeout);
+                    String line = readLine(input);
+                    synchronized (this) {
+                        acknowledged(line);
+                    }
+                } catch (IOException e) {
+                    synchronized (this) {
+                        failed(current, e);
+                    }
+                }
+            }
+        }
+
+        private void acknowledged(String line) {
+            int tagLength = Correlation.tagLength(line);
+            // an untagged acknowledgement is for the oldest message
+            long seq = tagLength > 0 ? Correlation.id(line, tagLength)
+                    : unacked.isEmpty() ? 0 : unacked.peek().seq;
+            String ack = tagLength > 0 ? Correlation.untag(line, tagLength) : line;
+            while (!unacked.isEmpty() && unacked.peek().seq <= seq) {
+                unacked.poll().ack.complete(ack);
+            }
+            retried = false;
+            lastUsed = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        /**
+         * Sends all messages not acknowledged yet over a fresh connection, or
+         * gives them up if that has been tried already.
+         *
+         * @param failed
+         *            the connection that failed, unless replaced already
+         */
+        private void failed(Socket failed, IOException cause) {
+            if (closed || failed != socket) {
+                return;
+            }
+            disconnect();
+            if (!retried) {
+                retried = true;
+                try {
+                    connect();
+                    return;
+                } catch (IOException e) {
+                    cause = e;
+                    disconnect();
+                }
+            }
+            // the address may resolve differently by now
+            resolved.remove(address);
+            peers.remove(username, this);
+            shutdown(cause);
+        }
+
+        void shutdown(IOException cause) {
+            closed = true;
+            disconnect();
+            for (Outstanding message; (message = unacked.poll()) != null;) {
+                message.ack.completeExceptionally(cause);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Checks an idle connection for having been closed by the other side,
+         * without blocking.
+         */
+        boolean isHealthy() {
+            if (!isOpen()) {
+                return false;
+            }
+            try {
+                socket.setSoTimeout(1);
+                // an idle peer sends nothing, so anything but a timeout is bad news
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Opens a connection and sends the header of the stream and all
+         * messages not acknowledged yet.
+         */
+        private void connect() throws IOException {
+            InetSocketAddress socketAddress;
+            try {
+                socketAddress = resolve(address);
+            } catch (NumberFormatException e) {
+                throw new IOException("Illegal private address " + address);
+            }
+            Socket socket = new Socket();
+            try {
+                socket.connect(socketAddress, ackTimeout);
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+            ByteArrayOutputStream pending = new ByteArrayOutputStream();
+            pending.write(header);
+            for (Outstanding message : unacked) {
+                pending.write(message.data);
+            }
+            pending.writeTo(out);
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(16);
+            for (int b; (b = in.read()) != '\n';) {
+                if (b < 0) {
+                    throw new EOFException("Connection closed by peer");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString();
+        }
+
+        void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close peer connection: " + e.getMessage());
+                }
+                socket = null;
+                in = null;
+                out = null;
+            }
+        }
+    }
+}
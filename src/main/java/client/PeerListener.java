@@ -0,0 +1,327 @@
+package client;
+
+import shared.Correlation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Accepts the connections of other users and receives their private messages
+ * on a single selector thread.
+ * <p/>
+ * Each connection may carry any number of messages, each a single line,
+ * see {@link PeerConnectionPool}. Messages tagged with their sequence number
+ * in a stream are acknowledged cumulatively, and those of a stream received
+ * before, over an earlier connection, are acknowledged but dropped. Untagged
+ * messages are acknowledged one by one.
+ * <p/>
+ * The channels are read into one shared buffer, and only the unfinished tail
+ * of a line is kept per connection, so a user receiving from hundreds of
+ * others needs neither a thread nor a read buffer for each of them.
+ * <p/>
+ * The acknowledgements of all the messages of a read are written at once.
+ * While a connection does not take its acknowledgements, it is not read any
+ * further. A line longer than the maximum length closes its connection.
+ */
+public class PeerListener implements Runnable, Closeable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final String ACK = "!ack";
+    private static final String STREAM = "!stream ";
+    /** Streams whose last message is remembered, to recognize messages sent again. */
+    private static final int MAX_STREAMS = 4096;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final int maxLength;
+    private final Receiver receiver;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Map<String, Long> delivered = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+    private volatile boolean closed;
+
+    /**
+     * Binds the listener to the given port; it starts accepting once
+     * {@link #run()}.
+     *
+     * @param port
+     *            the port to listen on
+     * @param maxLength
+     *            the maximum length of a message in bytes
+     * @param receiver
+     *            is handed the messages, on the thread of the listener
+     * @throws IOException
+     *             if the port cannot be bound
+     */
+    public PeerListener(int port, int maxLength, Receiver receiver) throws IOException {
+        this.maxLength = maxLength;
+        this.receiver = receiver;
+        this.selector = Selector.open();
+        try {
+            this.serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Serves the connections of other users until this listener is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                        receiver.failed(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                receiver.failed(e);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    System.err.println("Could not close private connection");
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Could not close selector");
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        for (SocketChannel channel; (channel = serverChannel.accept()) != null;) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        buffer.clear();
+        if (connection.channel.read(buffer) < 0) {
+            connection.close();
+            return;
+        }
+        buffer.flip();
+        connection.append(buffer);
+        byte[] data = connection.line;
+        int start = 0;
+        for (int i = connection.scanned; i < connection.length; i++) {
+            if (data[i] == '\n') {
+                int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+                process(connection, new String(data, start, end - start));
+                start = i + 1;
+            }
+        }
+        connection.consume(start);
+        if (connection.length > maxLength) {
+            connection.close();
+            throw new IOException("Private message longer than " + maxLength + " bytes");
+        }
+        connection.scanned = connection.length;
+        connection.acknowledge();
+    }
+
+    /**
+     * Hands a message to the receiver unless it is a duplicate of one sent
+     * again over a new connection, and notes what to acknowledge.
+     */
+    private void process(Connection connection, String line) {
+        if (line.startsWith(STREAM)) {
+            connection.stream = line.substring(STREAM.length()).trim();
+            return;
+        }
+        int tagLength = Correlation.tagLength(line);
+        if (tagLength == 0) {
+            // a sender that waits for each acknowledgement
+            receiver.received(line);
+            connection.untaggedAcks++;
+            return;
+        }
+        long seq = Correlation.id(line, tagLength);
+        Long last = connection.stream != null ? delivered.get(connection.stream) : null;
+        if (last == null || seq > last) {
+            receiver.received(Correlation.untag(line, tagLength));
+            if (connection.stream != null) {
+                delivered.put(connection.stream, seq);
+            }
+        }
+        connection.ackSeq = Math.max(connection.ackSeq, seq);
+    }
+
+    /**
+     * Returns the port this listener accepts connections on.
+     *
+     * @return the local port
+     */
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting; the connections are closed by the thread of the
+     * listener as it ends.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        selector.wakeup();
+    }
+
+    /**
+     * Is handed what arrives from other users.
+     */
+    public interface Receiver {
+
+        /**
+         * Called for each private message, before it is acknowledged.
+         *
+         * @param message
+         *            the message, without a line terminator
+         */
+        void received(String message);
+
+        /**
+         * Called when a connection or the listener itself failed.
+         *
+         * @param cause
+         *            the error
+         */
+        void failed(IOException cause);
+    }
+
+    /**
+     * The state of a single connection of another user.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+        private SelectionKey key;
+        private String stream;
+        private long ackSeq;
+        private int untaggedAcks;
+
+        private byte[] line;
+        private int length;
+        private int scanned;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void append(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            if (line == null) {
+                line = new byte[Math.max(64, count)];
+            } else if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            buffer.get(line, length, count);
+            length += count;
+        }
+
+        void consume(int count) {
+            if (count == 0) {
+                return;
+            }
+            length -= count;
+            System.arraycopy(line, count, line, 0, length);
+            if (length == 0 && line.length > READ_BUFFER_SIZE) {
+                line = null;
+            }
+        }
+
+        /**
+         * Writes the acknowledgements of the messages read so far in one go,
+         * leaving the rest to {@link #flush()}.<br/>
+         * Tagged messages are acknowledged all at once by the highest
+         * sequence number received.
+         */
+        void acknowledge() throws IOException {
+            if (untaggedAcks == 0 && ackSeq == 0) {
+                return;
+            }
+            StringBuilder acks = new StringBuilder();
+            for (; untaggedAcks > 0; untaggedAcks--) {
+                acks.append(ACK).append(System.lineSeparator());
+            }
+            if (ackSeq > 0) {
+                acks.append(Correlation.tag(ackSeq)).append(' ').append(ACK).append(System.lineSeparator());
+                ackSeq = 0;
+            }
+            pending.add(ByteBuffer.wrap(acks.toString().getBytes()));
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!pending.isEmpty()) {
+                ByteBuffer head = pending.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    // stop reading until the other user takes the acknowledgements
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                pending.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Could not close private connection");
+            }
+        }
+    }
+}
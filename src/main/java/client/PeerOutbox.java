@@ -0,0 +1,274 @@
+package client;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Private messages waiting to be delivered, in one ordered queue per user.
+ * <p/>
+ * Each queue is drained by at most one task at a time on a shared, bounded
+ * executor, so messages to the same user keep their order while different
+ * users are served in parallel, and a burst of messages costs no threads of
+ * its own. A message is appended to the queue of its user, and a drain task
+ * is scheduled only if none is running yet. A queue is forgotten once it is
+ * empty, so users messaged once cost nothing afterwards.
+ * <p/>
+ * A queue whose user has no known address is parked until
+ * {@link #resume(String)} is called. Messages waiting for longer than their
+ * time to live are dropped by a periodic sweep, and new ones are dropped
+ * while the messages waiting in all queues together exceed the memory cap.
+ */
+public class PeerOutbox implements Closeable {
+
+    /** Messages delivered per task, so busy users do not starve the others. */
+    private static final int BATCH = 64;
+
+    private final Client callback;
+    private final Executor executor;
+    private final long ttl;
+    private final long maxBytes;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param callback
+     *            the client delivering the messages
+     * @param executor
+     *            the bounded executor draining the queues
+     * @param ttl
+     *            milliseconds a message may wait for delivery, {@code 0} for
+     *            no limit
+     * @param maxBytes
+     *            the maximum size of all waiting messages together, in
+     *            characters
+     */
+    public PeerOutbox(Client callback, Executor executor, long ttl, long maxBytes) {
+        this.callback = callback;
+        this.executor = executor;
+        this.ttl = ttl;
+        this.maxBytes = maxBytes;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "peer-outbox");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (ttl > 0) {
+            long interval = Math.max(1, ttl / 2);
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    purgeExpired();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queues a message for the given user.
+     *
+     * @param username
+     *            the recipient
+     * @param message
+     *            the message
+     * @return {@code false} if the memory cap is reached and the message was
+     *         dropped
+     */
+    public boolean offer(String username, String message) {
+        if (!reserve(message.length())) {
+            purgeExpired();
+            if (!reserve(message.length())) {
+                return false;
+            }
+        }
+        final Pending pending = new Pending(message, System.currentTimeMillis());
+        // atomic with forgetting an empty queue, see Mailbox#release()
+        Mailbox mailbox = mailboxes.compute(username, new BiFunction<String, Mailbox, Mailbox>() {
+            @Override
+            public Mailbox apply(String username, Mailbox mailbox) {
+                if (mailbox == null) {
+                    mailbox = new Mailbox(username);
+                }
+                mailbox.queue.offer(pending);
+                return mailbox;
+            }
+        });
+        mailbox.schedule();
+        return true;
+    }
+
+    /**
+     * Continues delivering to the given user, e.g. once its address is known.
+     *
+     * @param username
+     *            the recipient
+     * @return {@code true} if messages are waiting for the user
+     */
+    public boolean resume(String username) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null || mailbox.queue.isEmpty()) {
+            return false;
+        }
+        mailbox.schedule();
+        return true;
+    }
+
+    private boolean reserve(int size) {
+        if (pendingBytes.addAndGet(size) > maxBytes) {
+            pendingBytes.addAndGet(-size);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the expired messages of all queues not being drained right now,
+     * parked ones in particular.
+     */
+    private void purgeExpired() {
+        for (Mailbox mailbox : mailboxes.values()) {
+            if (mailbox.scheduled.compareAndSet(false, true)) {
+                mailbox.expire();
+                mailbox.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of all waiting messages together.
+     *
+     * @return the number of characters waiting
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Returns the number of users with messages waiting.
+     *
+     * @return the number of queues
+     */
+    public int size() {
+        return mailboxes.size();
+    }
+
+    /**
+     * Stops sweeping expired messages.
+     */
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private static class Pending {
+        final String message;
+        final long queued;
+
+        Pending(String message, long queued) {
+            this.message = message;
+            this.queued = queued;
+        }
+    }
+
+    /**
+     * The queue of a single user and the task draining it.
+     */
+    private class Mailbox implements Runnable {
+        private final String username;
+        private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Mailbox(String username) {
+            this.username = username;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the client is shutting down
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            drain();
+            release();
+        }
+
+        /**
+         * Lets the next drain task be scheduled, scheduling it right away if
+         * a message or an address arrived after the last look, and forgets
+         * the queue once it is empty.
+         */
+        void release() {
+            scheduled.set(false);
+            if (queue.isEmpty()) {
+                mailboxes.computeIfPresent(username, new BiFunction<String, Mailbox, Mailbox>() {
+                    @Override
+                    public Mailbox apply(String username, Mailbox mailbox) {
+                        // unless a message arrived in the meantime
+                        return mailbox == Mailbox.this && queue.isEmpty() ? null : mailbox;
+                    }
+                });
+            } else if (callback.getAddress(username) != null) {
+                schedule();
+            }
+        }
+
+        void expire() {
+            for (Pending pending; (pending = queue.peek()) != null && isExpired(pending);) {
+                remove(pending);
+                callback.expired(username, pending.message);
+            }
+        }
+
+        private boolean isExpired(Pending pending) {
+            return ttl > 0 && System.currentTimeMillis() - pending.queued > ttl;
+        }
+
+        private void drain() {
+            for (int i = 0; i < BATCH; i++) {
+                Pending pending = queue.peek();
+                if (pending == null) {
+                    return;
+                }
+                if (isExpired(pending)) {
+                    remove(pending);
+                    callback.expired(username, pending.message);
+                    continue;
+                }
+                String address = callback.getAddress(username);
+                if (address == null) {
+                    // parked until resumed
+                    return;
+                }
+                remove(pending);
+                callback.deliver(username, address, pending.message);
+            }
+        }
+
+        private void remove(Pending pending) {
+            queue.poll();
+            pendingBytes.addAndGet(-pending.message.length());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package client;
+
+import shared.CommandInterpreter;
+import shared.Correlation;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests sent to the chatserver with a {@link Correlation} tag that are
+ * still waiting for their reply.
+ * <p/>
+ * Each request gets a fresh id, and the reply carrying it completes the
+ * future of that request, in whatever order the replies arrive.
+ */
+public class PendingReplies {
+
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private volatile IOException closed;
+
+    /**
+     * Sends the given command tagged with a fresh id, without waiting for the
+     * reply.
+     *
+     * @param out
+     *            the interpreter writing to the chatserver
+     * @param command
+     *            the command, e.g. {@code !lookup bill.de}
+     * @return the future reply, empty if the command has no result
+     */
+    public CompletableFuture<String> request(CommandInterpreter out, String command) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        long id = open(reply);
+        try {
+            out.writeLine(Correlation.tag(id) + " " + command);
+        } catch (IOException e) {
+            fail(id, e);
+        }
+        return reply;
+    }
+
+    /**
+     * Registers a new request.
+     *
+     * @param reply
+     *            the future to complete with the reply
+     * @return the id to tag the request with
+     */
+    public long open(CompletableFuture<String> reply) {
+        long id = ids.incrementAndGet();
+        pending.put(id, reply);
+        if (closed != null) {
+            fail(id, closed);
+        }
+        return id;
+    }
+
+    /**
+     * Completes the request with the given id.
+     *
+     * @param id
+     *            the id of the request
+     * @param reply
+     *            the untagged reply
+     * @return {@code false} if no such request is pending
+     */
+    public boolean complete(long id, String reply) {
+        CompletableFuture<String> future = pending.remove(id);
+        return future != null && future.complete(reply);
+    }
+
+    /**
+     * Completes the request the given line replies to, if it is tagged.
+     *
+     * @param line
+     *            the line received from the chatserver
+     * @return {@code true} if the line was the reply to a pending request
+     */
+    public boolean route(String line) {
+        int tagLength = Correlation.tagLength(line);
+        return tagLength > 0 && complete(Correlation.id(line, tagLength), Correlation.untag(line, tagLength));
+    }
+
+    /**
+     * Fails the request with the given id, e.g. because it could not be sent.
+     *
+     * @param id
+     *            the id of the request
+     * @param cause
+     *            the reason
+     */
+    public void fail(long id, IOException cause) {
+        CompletableFuture<String> future = pending.remove(id);
+        if (future != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Fails all pending and future requests, as no reply is going to arrive
+     * anymore.
+     *
+     * @param cause
+     *            the reason
+     */
+    public void close(IOException cause) {
+        closed = cause;
+        for (Long id : pending.keySet()) {
+            fail(id, cause);
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for their reply.
+     *
+     * @return the number of pending requests
+     */
+    public int size() {
+        return pending.size();
+    }
+}
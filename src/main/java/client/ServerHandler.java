@@ -2,11 +2,11 @@ package client;
 
 import shared.Command;
 import shared.CommandInterpreter;
+import shared.Correlation;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.List;
 
 /**
  * Created by benja on 02.11.2015.
@@ -22,22 +22,44 @@ public class ServerHandler extends CommandInterpreter {
         lastMessage = "No message received yet!";
     }
 
+    /**
+     * Serves the lines of the chatserver until the connection ends, then
+     * gives up on the replies still pending.
+     */
+    @Override
+    public void run() {
+        super.run();
+        callback.getPendingReplies().close(new IOException("Connection to the chatserver closed."));
+    }
+
+    @Override
+    public void dispatch(byte[] data, int offset, int length) throws IOException {
+        if(Correlation.tagLength(data, offset, offset + length) > 0) {
+            dispatch(new String(data, offset, length));
+        } else {
+            super.dispatch(data, offset, length);
+        }
+    }
+
+    /**
+     * Hands a tagged reply to the request waiting for it instead of
+     * interpreting it.
+     */
+    @Override
+    public void dispatch(String line) throws IOException {
+        if(!callback.getPendingReplies().route(line)) {
+            super.dispatch(line);
+        }
+    }
+
     @Command
     public String register(String username, String address) {
-        callback.getUserAddressMap().put(username, address);
-        List<String> pending = callback.getPendingMessages().get(username);
-        if(pending != null && !pending.isEmpty()) {
+        callback.getAddressCache().put(username, address);
+        if(callback.getOutbox().resume(username)) {
             try {
-                    for(String message : pending) {
-                        callback.sendMsg(username, message);
-                    }
                 writeLine("Pending messages for " + username + " are being sent.");
-            } catch (IOException ex) {
-                try {
-                    writeLine("Pending messages for " + username + " could not be sent.");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
         return username + " registered under " + address;
@@ -50,6 +72,20 @@ public class ServerHandler extends CommandInterpreter {
         return out;
     }
 
+    @Command
+    public String ping() throws IOException {
+        callback.sendToServer("!pong");
+        return null;
+    }
+
+    /**
+     * Reports that an overloaded chatserver turned the connection away.
+     */
+    @Command
+    public String busy(long retryAfter) {
+        return Client.busy(retryAfter);
+    }
+
     public String getLastMessage() {
         return lastMessage;
     }
@@ -0,0 +1,137 @@
+package shared;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+
+/**
+ * Constants of the length-prefixed binary wire protocol.
+ * <p/>
+ * A client opts in by sending {@link #PREFACE} as the very first bytes of the
+ * connection. From then on both directions exchange frames consisting of a one
+ * byte opcode, a four byte payload length and the payload. The payload is a
+ * sequence of fields, each introduced by a tag:
+ * <ul>
+ * <li>{@link #STRING}: a four byte length followed by UTF-8 bytes,</li>
+ * <li>{@link #DEFINE}: a four byte id followed by a string, binding the id to
+ * the string for the rest of the connection,</li>
+ * <li>{@link #REFERENCE}: a four byte id bound earlier.</li>
+ * </ul>
+ * Usernames sent by the chatserver are interned that way, so every name only
+ * crosses the wire once per connection.
+ */
+public final class BinaryProtocol {
+
+    /** Starts a binary connection; text lines never start with a zero byte. */
+    public static final byte[] PREFACE = { 0, 'B', 'I', 'N' };
+
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    public static final byte STRING = 0;
+    public static final byte DEFINE = 1;
+    public static final byte REFERENCE = 2;
+
+    public static final int TEXT = 0;
+    public static final int LOGIN = 1;
+    public static final int LOGOUT = 2;
+    public static final int SEND = 3;
+    public static final int LOOKUP = 4;
+    public static final int REGISTER = 5;
+    public static final int PING = 6;
+    public static final int PONG = 7;
+
+    private static final String[] NAMES = { null, "!login", "!logout", "!send", "!lookup", "!register",
+            "!ping", "!pong" };
+
+    /**
+     * The commands understood in either direction, together with their number
+     * of fields and the field holding an internable username.
+     */
+    public enum Direction {
+        TO_SERVER(new int[] { 1, 2, 0, 1, 1, 1, -1, 0 }, new int[] { -1, -1, -1, -1, -1, -1, -1, -1 }),
+        TO_CLIENT(new int[] { 1, -1, -1, 2, -1, 2, 0, -1 }, new int[] { -1, -1, -1, 0, -1, 0, -1, -1 });
+
+        private final int[] arity;
+        private final int[] interned;
+
+        Direction(int[] arity, int[] interned) {
+            this.arity = arity;
+            this.interned = interned;
+        }
+
+        /**
+         * Returns the number of fields of the given command in this direction.
+         *
+         * @return the number of fields, or {@code -1} if it is not sent this way
+         */
+        public int arity(int opcode) {
+            return arity[opcode];
+        }
+
+        /**
+         * Returns the index of the field holding a username to intern.
+         *
+         * @return the field index, or {@code -1} if there is none
+         */
+        public int interned(int opcode) {
+            return interned[opcode];
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Returns the command name of the given opcode, including the leading
+     * {@code !}.
+     *
+     * @param opcode
+     *            the opcode
+     * @return the name, or {@code null} for {@link #TEXT}
+     */
+    public static String name(int opcode) {
+        return opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : null;
+    }
+
+    /**
+     * Returns the opcode of the given command name.
+     *
+     * @param name
+     *            the command name including the leading {@code !}
+     * @return the opcode, or {@link #TEXT} if there is none
+     */
+    public static int opcode(String name) {
+        for (int i = 1; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return TEXT;
+    }
+
+    /**
+     * Consumes the {@link #PREFACE} if the stream starts with it.<br/>
+     * Otherwise the stream is left untouched.
+     *
+     * @param in
+     *            the stream, able to push back at least one byte
+     * @return {@code true} if the peer speaks the binary protocol
+     * @throws IOException
+     *             if an I/O error occurs or the preface is malformed
+     */
+    public static boolean readPreface(PushbackInputStream in) throws IOException {
+        int first = in.read();
+        if (first != PREFACE[0]) {
+            if (first >= 0) {
+                in.unread(first);
+            }
+            return false;
+        }
+        for (int i = 1; i < PREFACE.length; i++) {
+            if (in.read() != PREFACE[i]) {
+                throw new IOException("Malformed protocol preface");
+            }
+        }
+        return true;
+    }
+}
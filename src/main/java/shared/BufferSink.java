@@ -0,0 +1,26 @@
+package shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A destination of bytes taking whole buffers without copying them.
+ * <p/>
+ * Buffers passed to {@link #write(ByteBuffer)} are kept until they have been
+ * written, so their contents must not change afterwards. Their position and
+ * limit belong to the sink, so callers sharing a buffer pass a
+ * {@link ByteBuffer#duplicate() duplicate} of it.
+ */
+public interface BufferSink {
+
+    /**
+     * Queues the remaining bytes of the given buffer.<br/>
+     * They are written at the latest on the next flush.
+     *
+     * @param buffer
+     *            the buffer
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    void write(ByteBuffer buffer) throws IOException;
+}
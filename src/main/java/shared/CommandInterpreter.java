@@ -4,11 +4,19 @@ import org.springframework.core.convert.ConversionService;
 import org.springframework.core.convert.support.DefaultConversionService;
 
 import java.io.*;
-import java.lang.reflect.InvocationHandler;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by benja on 01.11.2015.
@@ -17,15 +25,45 @@ public class CommandInterpreter implements Runnable, Closeable {
     private static final PrintStream stdout = System.out;
     private static final InputStream stdin = System.in;
     private static final char[] EMPTY = new char[0];
+    private static final String[] NO_ARGUMENTS = new String[0];
 
-    private ShellCommandInvocationHandler invocationHandler = new ShellCommandInvocationHandler();
     private Map<String, ShellCommandDefinition> commandMap = new ConcurrentHashMap<>();
     private ConversionService conversionService = new DefaultConversionService();
 
     private OutputStream out;
+    private volatile CommandTrie<ShellCommandDefinition> commandTrie = new CommandTrie<>(commandMap);
+
+    private LineReader lines;
     private BufferedReader in;
     private Closeable readMonitor;
 
+    private FrameEncoder encoder;
+    private FrameDecoder decoder;
+    private int maxFrameSize = BinaryProtocol.MAX_FRAME_SIZE;
+    private DataInputStream frameIn;
+
+    private int batchSize;
+    private long flushWindow;
+    private ScheduledExecutorService flusher;
+    private byte[] batch;
+    private int batched;
+    private boolean flushScheduled;
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CommandInterpreter.this) {
+                flushScheduled = false;
+                try {
+                    flush();
+                } catch (IOException e) {
+                    System.err.println("Could not flush output: " + e.getMessage());
+                }
+                // the burst is over, an idle connection keeps no buffer
+                batch = null;
+            }
+        }
+    };
+
     /**
      * Creates a new {@code Shell} instance.
      *
@@ -37,7 +75,19 @@ public class CommandInterpreter implements Runnable, Closeable {
     public CommandInterpreter(InputStream in, OutputStream out) {
         this.out = out;
         this.readMonitor = in;
-        this.in = new BufferedReader(new InputStreamReader(in));
+        this.lines = new LineReader(in);
+    }
+
+    /**
+     * Creates a new {@code CommandInterpreter} without an input stream.<br/>
+     * The lines have to be fed in by the owner using {@link #dispatch(String)},
+     * e.g. by a selector thread reading from a non-blocking channel.
+     *
+     * @param out
+     *            the {@code OutputStream} to write messages to
+     */
+    protected CommandInterpreter(OutputStream out) {
+        this.out = out;
     }
 
     /**
@@ -55,20 +105,22 @@ public class CommandInterpreter implements Runnable, Closeable {
     @Override
     public void run() {
         try {
-            for (String line; !Thread.currentThread().isInterrupted()
-                    && (line = readLine()) != null;) {
-                Object result = null;
-                try {
-                    result = invoke(line);
-                } catch (IllegalArgumentException ex) {
-                    result = line;
-                } catch (Throwable throwable) {
-                    ByteArrayOutputStream str = new ByteArrayOutputStream(1024);
-                    throwable.printStackTrace(new PrintStream(str, true));
-                    result = str.toString();
+            if (frameIn != null) {
+                for (Frame frame; !Thread.currentThread().isInterrupted()
+                        && (frame = readFrame()) != null;) {
+                    dispatch(frame);
                 }
-                if (result != null) {
-                    print(result);
+                return;
+            }
+            if (lines == null) {
+                return;
+            }
+            while (!Thread.currentThread().isInterrupted() && lines.next()) {
+                if (lines.isHead() && lines.isTail()) {
+                    dispatch(lines.buffer(), lines.start(), lines.end() - lines.start());
+                } else {
+                    dispatchChunk(lines.buffer(), lines.start(), lines.end() - lines.start(),
+                            lines.isHead(), lines.isTail());
                 }
             }
         } catch (IOException e) {
@@ -77,18 +129,209 @@ public class CommandInterpreter implements Runnable, Closeable {
         }
     }
 
+    /**
+     * Invokes the command matching the given line and prints its result.<br/>
+     * Lines not matching any registered command are passed through to the
+     * output. If the line starts with a {@link Correlation} tag, the result is
+     * tagged alike, and printed even if empty.
+     *
+     * @param line
+     *            the line to interpret
+     * @throws IOException
+     *             if an I/O error occurs while writing the result
+     */
+    public void dispatch(String line) throws IOException {
+        String tag = null;
+        int tagLength = Correlation.tagLength(line);
+        if (tagLength > 0) {
+            tag = line.substring(0, tagLength);
+            line = Correlation.untag(line, tagLength);
+        }
+        Object result = null;
+        try {
+            result = invoke(line);
+        } catch (IllegalArgumentException ex) {
+            result = line;
+        } catch (Throwable throwable) {
+            result = stackTrace(throwable);
+        }
+        reply(result, tag);
+    }
+
+    /**
+     * Invokes the command matching the line in the given buffer and prints its
+     * result, just like {@link #dispatch(String)}.<br/>
+     * The command is found without decoding the line, and only its arguments
+     * are turned into strings.
+     *
+     * @param data
+     *            the buffer containing the line
+     * @param offset
+     *            the start of the line in the buffer
+     * @param length
+     *            the length of the line, without its terminator
+     * @throws IOException
+     *             if an I/O error occurs while writing the result
+     */
+    public void dispatch(byte[] data, int offset, int length) throws IOException {
+        String tag = null;
+        int tagLength = Correlation.tagLength(data, offset, offset + length);
+        if (tagLength > 0) {
+            tag = new String(data, offset, tagLength);
+            offset += Math.min(tagLength + 1, length);
+            length -= Math.min(tagLength + 1, length);
+        }
+        Object result = null;
+        try {
+            result = invoke(data, offset, offset + length);
+        } catch (IllegalArgumentException ex) {
+            result = new String(data, offset, length);
+        } catch (Throwable throwable) {
+            result = stackTrace(throwable);
+        }
+        reply(result, tag);
+    }
+
+    /**
+     * Handles a chunk of a line exceeding the maximum frame size, see
+     * {@link #useMaxFrameSize(int)}.<br/>
+     * Such lines are rejected: the client is told so once the line starts,
+     * and its chunks are discarded as they arrive.
+     *
+     * @param data
+     *            the buffer containing the chunk
+     * @param offset
+     *            the start of the chunk in the buffer
+     * @param length
+     *            the length of the chunk
+     * @param head
+     *            whether the chunk starts the line
+     * @param tail
+     *            whether the chunk ends the line
+     * @throws IOException
+     *             if an I/O error occurs while writing the reply
+     */
+    public void dispatchChunk(byte[] data, int offset, int length, boolean head, boolean tail) throws IOException {
+        if (head) {
+            int tagLength = Correlation.tagLength(data, offset, offset + length);
+            print("Line exceeds " + maxFrameSize + " bytes and is ignored.",
+                    tagLength > 0 ? new String(data, offset, tagLength) : null);
+            endBatch();
+        }
+    }
+
+    /**
+     * Invokes the command carried by the given frame and prints its
+     * result.<br/>
+     * Text frames are treated like lines, see {@link #dispatch(String)}.
+     *
+     * @param frame
+     *            the frame to interpret
+     * @throws IOException
+     *             if an I/O error occurs while writing the result
+     */
+    public void dispatch(Frame frame) throws IOException {
+        if (frame.getOpcode() == BinaryProtocol.TEXT) {
+            dispatch(frame.toLine());
+            return;
+        }
+        Object result = null;
+        try {
+            result = invoke(frame.getName(), frame.getFields());
+        } catch (IllegalArgumentException ex) {
+            result = frame.toLine();
+        } catch (Throwable throwable) {
+            result = stackTrace(throwable);
+        }
+        if (result != null) {
+            print(result);
+            endBatch();
+        }
+    }
+
+    /**
+     * Prints the result of a command, if any.<br/>
+     * A tagged request is always answered, so its caller is not left waiting.
+     */
+    private void reply(Object result, String tag) throws IOException {
+        if (result == null && tag != null) {
+            result = "";
+        }
+        if (result != null) {
+            print(result, tag);
+            endBatch();
+        }
+    }
+
+    private static String stackTrace(Throwable throwable) {
+        ByteArrayOutputStream str = new ByteArrayOutputStream(1024);
+        throwable.printStackTrace(new PrintStream(str, true));
+        return str.toString();
+    }
+
+    /**
+     * Switches the output to the {@link BinaryProtocol}: every line written
+     * from now on is encoded into a frame.
+     *
+     * @param direction
+     *            the direction the frames are sent in
+     */
+    public synchronized void useBinaryOutput(BinaryProtocol.Direction direction) {
+        encoder = new FrameEncoder(direction);
+    }
+
+    /**
+     * Switches the input to the {@link BinaryProtocol}: {@link #run()} reads
+     * frames from the given stream from now on.<br/>
+     * The stream must not have been read from through {@link #readLine()}.
+     *
+     * @param in
+     *            the raw stream to read frames from
+     * @param direction
+     *            the direction the frames are received in
+     */
+    public void useBinaryInput(InputStream in, BinaryProtocol.Direction direction) {
+        decoder = new FrameDecoder(direction, maxFrameSize);
+        frameIn = FrameDecoder.wrap(in);
+    }
+
+    /**
+     * Reads the next frame, see {@link #useBinaryInput(InputStream, BinaryProtocol.Direction)}.
+     *
+     * @return the frame, or {@code null} if the end of the stream has been
+     *         reached
+     * @throws IOException
+     *             if an I/O error occurs or the frame is malformed
+     */
+    public Frame readFrame() throws IOException {
+        synchronized (frameIn) {
+            return decoder.read(frameIn);
+        }
+    }
+
     protected void print(Object result) throws IOException {
+        print(result, null);
+    }
+
+    private void print(Object result, String tag) throws IOException {
         if (result instanceof Iterable) {
             for (Object e : ((Iterable) result)) {
-                print(e);
+                print(e, tag);
             }
         } else if (result instanceof Map) {
             for (Map.Entry<?, ?> entry : ((Map<?, ?>) result).entrySet()) {
-                writeLine(entry.getKey() + "\t" + entry.getValue());
+                writeLine(tagged(tag, entry.getKey() + "\t" + entry.getValue()));
             }
         } else {
-            writeLine(String.valueOf(result));
+            writeLine(tagged(tag, String.valueOf(result)));
+        }
+    }
+
+    private static String tagged(String tag, String line) {
+        if (tag == null) {
+            return line;
         }
+        return line.isEmpty() ? tag : tag + " " + line;
     }
 
     /**
@@ -100,6 +343,13 @@ public class CommandInterpreter implements Runnable, Closeable {
      *             if an I/O error occurs
      */
     public void writeLine(String line) throws IOException {
+        synchronized (this) {
+            if (encoder != null) {
+                // encoding and writing at once keeps interned names in order
+                write(encoder.encode(line));
+                return;
+            }
+        }
         String tmp = line + (line.endsWith("\n") ? "" : "\n");
         write(tmp.getBytes());
     }
@@ -114,12 +364,166 @@ public class CommandInterpreter implements Runnable, Closeable {
      *             if an I/O error occurs.
      */
     public synchronized void write(byte[] bytes) throws IOException {
-        out.write(bytes);
+        if (batchSize <= 0) {
+            out.write(bytes);
+            out.flush();
+            return;
+        }
+        if (batched + bytes.length > batchSize) {
+            flush();
+        }
+        if (bytes.length >= batchSize) {
+            out.write(bytes);
+            out.flush();
+            return;
+        }
+        if (batch == null) {
+            batch = new byte[batchSize];
+        }
+        System.arraycopy(bytes, 0, batch, batched, bytes.length);
+        batched += bytes.length;
+        scheduleFlush();
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer to the provided
+     * {@link OutputStream}.<br/>
+     * If the stream is a {@link BufferSink}, it is handed a duplicate of the
+     * buffer instead of a copy of its contents, so the same buffer can be
+     * written to many streams at once. The buffer itself is left untouched.
+     *
+     * @param buffer
+     *            the data
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public synchronized void write(ByteBuffer buffer) throws IOException {
+        if (!(out instanceof BufferSink)) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            write(bytes);
+            return;
+        }
+        writeBatch();
+        ((BufferSink) out).write(buffer.duplicate());
+        if (batchSize <= 0) {
+            out.flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        if (batched > 0) {
+            try {
+                out.write(batch, 0, batched);
+            } finally {
+                // lines that failed once must not be written again
+                batched = 0;
+            }
+        }
+    }
+
+    private void scheduleFlush() throws IOException {
+        if (flushWindow > 0 && !flushScheduled) {
+            try {
+                flusher.schedule(scheduledFlush, flushWindow, TimeUnit.MILLISECONDS);
+                flushScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // shutting down, nobody is going to flush later
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes all coalesced lines to the provided {@link OutputStream} and
+     * flushes it.
+     *
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public synchronized void flush() throws IOException {
+        writeBatch();
         out.flush();
     }
 
+    /**
+     * Marks the end of a group of lines belonging together, e.g. the result
+     * of a command.<br/>
+     * Without a flush window, this is where coalesced lines are flushed.
+     *
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public synchronized void endBatch() throws IOException {
+        if (batchSize > 0 && flushWindow <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Limits the size of the lines and frames read, so the memory a
+     * connection takes for its input has a fixed upper bound.<br/>
+     * Longer lines are handed to {@link #dispatchChunk} in pieces, longer
+     * frames end the connection as soon as their header arrives. Has to be
+     * called before the input is read.
+     *
+     * @param maxFrameSize
+     *            the maximum size of a line or frame payload in bytes
+     */
+    public void useMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        if (lines != null) {
+            lines.setMaxLength(maxFrameSize);
+        }
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Returns whether output is encoded in frames of the
+     * {@link BinaryProtocol}.
+     *
+     * @return {@code true} after {@link #useBinaryOutput}
+     */
+    protected synchronized boolean isBinaryOutput() {
+        return encoder != null;
+    }
+
+    /**
+     * Coalesces written lines instead of flushing each of them on its own.
+     * <p/>
+     * Lines are collected in a buffer of {@code batchSize} bytes, which is
+     * written at once when it is full, and otherwise
+     * <ul>
+     * <li>at the end of each batch (see {@link #endBatch()}) if
+     * {@code flushWindow} is {@code 0}, adding no latency,</li>
+     * <li>at the latest {@code flushWindow} milliseconds after the first line
+     * was buffered otherwise, trading latency for fewer writes.</li>
+     * </ul>
+     *
+     * @param batchSize
+     *            the size of the buffer in bytes, {@code 0} to disable
+     * @param flushWindow
+     *            the maximum delay of a line in milliseconds
+     * @param flusher
+     *            the executor running delayed flushes, only used if
+     *            {@code flushWindow} is positive
+     */
+    public synchronized void useCoalescing(int batchSize, long flushWindow, ScheduledExecutorService flusher) {
+        this.batchSize = batchSize;
+        this.flushWindow = flushWindow;
+        this.flusher = flusher;
+    }
+
     /**
      * Reads a line of text.<br/>
+     * Lines are read from a {@link LineReader} without any locking, so only
+     * one thread may read them, usually the one executing {@link #run()}.
+     * <p/>
      * A line is considered to be terminated by any one of a line feed (
      * {@code '\n'}), a carriage return ({@code '\r'}), or a carriage return
      * followed immediately by a linefeed.
@@ -131,9 +535,10 @@ public class CommandInterpreter implements Runnable, Closeable {
      *             if an I/O error occurs
      */
     public String readLine() throws IOException {
-        synchronized (readMonitor) {
-            return in.readLine();
+        if (lines == null) {
+            return null;
         }
+        return lines.next() ? lines.line() : null;
     }
 
     /**
@@ -153,10 +558,13 @@ public class CommandInterpreter implements Runnable, Closeable {
      *             if an I/O error occurs
      */
     public char[] read(int len) throws IOException {
+        if (lines == null) {
+            return EMPTY;
+        }
         synchronized (readMonitor) {
             len = len < 0 ? 4096 : len;
             char[] cbuf = new char[len];
-            int read = in.read(cbuf, 0, len);
+            int read = getIn().read(cbuf, 0, len);
             return read <= 0 ? EMPTY : Arrays.copyOfRange(cbuf, 0, read);
         }
     }
@@ -183,7 +591,7 @@ public class CommandInterpreter implements Runnable, Closeable {
     @Override
     public void close() {
         Thread.currentThread().interrupt();
-        if (readMonitor != stdin) {
+        if (readMonitor != null && readMonitor != stdin) {
             try {
                 readMonitor.close();
             } catch (IOException e) {
@@ -226,6 +634,7 @@ public class CommandInterpreter implements Runnable, Closeable {
                 }
                 method.setAccessible(true);
                 commandMap.put(name, new ShellCommandDefinition(obj, method));
+                commandTrie = new CommandTrie<>(commandMap);
             }
         }
     }
@@ -253,15 +662,147 @@ public class CommandInterpreter implements Runnable, Closeable {
                     "Command '%s' not registered.", cmdName));
         }
 
-        String[] parts = cmd.split("\\s+",
-                cmdDef.targetMethod.getParameterTypes().length + 1);
-        Object[] args = new Object[parts.length - 1];
-        for (int i = 1; i < parts.length; i++) {
-            args[i - 1] = conversionService.convert(parts[i],
-                    cmdDef.targetMethod.getParameterTypes()[i - 1]);
+        String[] parts = pos >= 0 ? tokenize(cmd, pos, cmdDef.converters.length) : NO_ARGUMENTS;
+        return invoke(cmdDef, parts);
+    }
+
+    /**
+     * Invokes the command with the given name using already separated
+     * arguments.
+     *
+     * @param cmdName
+     *            the name of the command including the leading {@code !}
+     * @param parts
+     *            the arguments
+     * @return the result of the executed command
+     * @throws Throwable
+     *             any exception that might occur during invocation
+     */
+    public Object invoke(String cmdName, String[] parts) throws Throwable {
+        ShellCommandDefinition cmdDef = commandMap.get(cmdName);
+        if (cmdDef == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Command '%s' not registered.", cmdName));
+        }
+        return invoke(cmdDef, parts);
+    }
+
+    private Object invoke(ShellCommandDefinition cmdDef, String[] parts) throws Throwable {
+        Converter[] converters = cmdDef.converters;
+        if (parts.length != converters.length) {
+            throw new IllegalArgumentException("wrong number of arguments");
+        }
+        Object[] args = new Object[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            args[i] = converters[i].convert(parts[i], cmdDef.parameterTypes[i], conversionService);
+        }
+        try {
+            return (Object) cmdDef.invoker.invokeExact(args);
+        } catch (Throwable throwable) {
+            // report failures of the command itself just like Method#invoke did
+            throw new InvocationTargetException(throwable);
+        }
+    }
+
+    private Object invoke(byte[] data, int start, int end) throws Throwable {
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
         }
-        return invocationHandler.invoke(cmdDef.targetObject,
-                cmdDef.targetMethod, args);
+        if (start == end) {
+            return null;
+        }
+        int nameEnd = start;
+        while (nameEnd < end && data[nameEnd] != ' ') {
+            nameEnd++;
+        }
+        ShellCommandDefinition cmdDef = commandTrie.match(data, start, nameEnd);
+        if (cmdDef == null) {
+            throw new IllegalArgumentException("Command not registered.");
+        }
+        return invoke(cmdDef, tokenize(data, nameEnd, end, cmdDef.converters.length));
+    }
+
+    /**
+     * Splits the arguments following the command name in the given buffer,
+     * see {@link #tokenize(String, int, int)}.
+     */
+    static String[] tokenize(byte[] data, int from, int end, int limit) {
+        if (limit == 0) {
+            return NO_ARGUMENTS;
+        }
+        String[] parts = new String[limit];
+        int count = 0;
+        int pos = from;
+        while (count < limit) {
+            while (pos < end && isWhitespace((char) data[pos])) {
+                pos++;
+            }
+            if (pos == end) {
+                break;
+            }
+            int start = pos;
+            if (count == limit - 1) {
+                pos = end;
+            } else {
+                while (pos < end && !isWhitespace((char) data[pos])) {
+                    pos++;
+                }
+            }
+            parts[count++] = new String(data, start, pos - start);
+        }
+        return count == limit ? parts : Arrays.copyOf(parts, count);
+    }
+
+    /**
+     * Splits the arguments following the command name into at most
+     * {@code limit} parts separated by whitespace.<br/>
+     * Like {@code String.split("\\s+", limit)}, the last part keeps the rest of
+     * the line, including its whitespace.
+     *
+     * @param cmd
+     *            the trimmed command string
+     * @param from
+     *            the index to start at, i.e. the end of the command name
+     * @param limit
+     *            the number of arguments of the command
+     * @return the arguments, fewer than {@code limit} if the line is too short
+     */
+    static String[] tokenize(String cmd, int from, int limit) {
+        if (limit == 0) {
+            return NO_ARGUMENTS;
+        }
+        String[] parts = new String[limit];
+        int count = 0;
+        int end = cmd.length();
+        int pos = from;
+        while (count < limit) {
+            while (pos < end && isWhitespace(cmd.charAt(pos))) {
+                pos++;
+            }
+            if (pos == end) {
+                break;
+            }
+            int start = pos;
+            if (count == limit - 1) {
+                pos = end;
+            } else {
+                while (pos < end && !isWhitespace(cmd.charAt(pos))) {
+                    pos++;
+                }
+            }
+            parts[count++] = cmd.substring(start, pos);
+        }
+        return count == limit ? parts : Arrays.copyOf(parts, count);
+    }
+
+    /**
+     * Matches the characters of the regular expression {@code \\s}.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
     }
 
     /**
@@ -273,7 +814,10 @@ public class CommandInterpreter implements Runnable, Closeable {
      *
      * @return the input
      */
-    public BufferedReader getIn() {
+    public synchronized BufferedReader getIn() {
+        if (in == null && lines != null) {
+            in = new BufferedReader(new InputStreamReader(lines));
+        }
         return in;
     }
 
@@ -292,44 +836,101 @@ public class CommandInterpreter implements Runnable, Closeable {
 
     /**
      * Defines a {@link Method} to be invoked on a certain object.
+     * <p/>
+     * The method is compiled into a {@link MethodHandle} bound to the object
+     * once, when the command is registered, and every parameter gets a
+     * converter picked by its type, so invoking the command involves neither
+     * reflection nor looking up conversions.
      */
     static class ShellCommandDefinition {
         protected Object targetObject;
         protected Method targetMethod;
+        final Class<?>[] parameterTypes;
+        final Converter[] converters;
+        /** Takes the converted arguments as {@code Object[]} and returns {@code Object}. */
+        final MethodHandle invoker;
 
         ShellCommandDefinition(Object targetObject, Method targetMethod) {
             this.targetObject = targetObject;
             this.targetMethod = targetMethod;
+            this.parameterTypes = targetMethod.getParameterTypes();
+            this.converters = new Converter[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                converters[i] = Converter.of(parameterTypes[i]);
+            }
+            try {
+                MethodHandle handle = MethodHandles.lookup().unreflect(targetMethod);
+                if (!Modifier.isStatic(targetMethod.getModifiers())) {
+                    handle = handle.bindTo(targetObject);
+                }
+                this.invoker = handle.asType(MethodType.genericMethodType(parameterTypes.length))
+                        .asSpreader(Object[].class, parameterTypes.length);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException(String.format(
+                        "Command '%s' is not accessible.", targetMethod.getName()), e);
+            }
         }
     }
 
     /**
-     * Invokes the given method represented on the specified object with the
-     * specified parameters.
-     * <p/>
-     * If the method is static, then the specified obj argument is ignored. It
-     * may be {@code null}.<br/>
-     * If the number of formal parameters required by the underlying method is
-     * {@code 0}, the supplied {@code args} array may be of length {@code 0} or
-     * {@code null}.
-     * <p/>
-     * If the method is an instance method, it is invoked using dynamic method
-     * lookup as documented in <i>The Java Language Specification, Second
-     * Edition</i>, section 15.12.4.4; in particular, overriding based on the
-     * runtime type of the target object will occur.
-     * <p/>
-     * If the method completes normally, the value it returns is returned to the
-     * caller. If the method return type is {@code void}, the invocation returns
-     * {@code null}.
-     *
-     * @see Method#invoke(Object, Object...)
+     * Converts a single argument from its string representation.<br/>
+     * Strings and primitives, as used by all commands, are parsed directly;
+     * any other type is left to a {@link ConversionService}.
      */
-    static class ShellCommandInvocationHandler implements InvocationHandler {
-        @Override
-        public Object invoke(Object target, Method method, Object... args)
-                throws Throwable {
-            return method.invoke(target, args);
+    enum Converter {
+        STRING {
+            @Override
+            Object convert(String value, Class<?> type, ConversionService fallback) {
+                return value;
+            }
+        },
+        INT {
+            @Override
+            Object convert(String value, Class<?> type, ConversionService fallback) {
+                return Integer.valueOf(Integer.parseInt(value.trim()));
+            }
+        },
+        LONG {
+            @Override
+            Object convert(String value, Class<?> type, ConversionService fallback) {
+                return Long.valueOf(Long.parseLong(value.trim()));
+            }
+        },
+        DOUBLE {
+            @Override
+            Object convert(String value, Class<?> type, ConversionService fallback) {
+                return Double.valueOf(Double.parseDouble(value.trim()));
+            }
+        },
+        BOOLEAN {
+            @Override
+            Object convert(String value, Class<?> type, ConversionService fallback) {
+                return fallback.convert(value, Boolean.class);
+            }
+        },
+        OTHER {
+            @Override
+            Object convert(String value, Class<?> type, ConversionService fallback) {
+                return fallback.convert(value, type);
+            }
+        };
+
+        abstract Object convert(String value, Class<?> type, ConversionService fallback);
+
+        static Converter of(Class<?> type) {
+            if (type == String.class || type == Object.class) {
+                return STRING;
+            } else if (type == int.class || type == Integer.class) {
+                return INT;
+            } else if (type == long.class || type == Long.class) {
+                return LONG;
+            } else if (type == double.class || type == Double.class) {
+                return DOUBLE;
+            } else if (type == boolean.class || type == Boolean.class) {
+                // accepts "yes", "on" and the like, as before
+                return BOOLEAN;
+            }
+            return OTHER;
         }
     }
-    }
-
+}
@@ -0,0 +1,81 @@
+package shared;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Immutable trie mapping command names to values, matched on raw bytes.
+ * <p/>
+ * Looking up a command this way neither decodes nor copies the line. Command
+ * names are few and short, so each node simply keeps its children in a pair
+ * of parallel arrays.
+ *
+ * @param <T>
+ *            the type of the values
+ */
+class CommandTrie<T> {
+
+    private final Node<T> root = new Node<>();
+
+    /**
+     * @param commands
+     *            the command names and their values
+     */
+    CommandTrie(Map<String, T> commands) {
+        for (Map.Entry<String, T> entry : commands.entrySet()) {
+            Node<T> node = root;
+            for (byte b : entry.getKey().getBytes(StandardCharsets.UTF_8)) {
+                node = node.child(b, true);
+            }
+            node.value = entry.getValue();
+        }
+    }
+
+    /**
+     * Returns the value of the command named exactly by the given bytes.
+     *
+     * @param data
+     *            the buffer containing the name
+     * @param start
+     *            the start of the name in the buffer
+     * @param end
+     *            the end of the name in the buffer
+     * @return the value, or {@code null} if there is no such command
+     */
+    T match(byte[] data, int start, int end) {
+        Node<T> node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.child(data[i], false);
+        }
+        return node != null ? node.value : null;
+    }
+
+    private static class Node<T> {
+        private byte[] keys = new byte[0];
+        private Node<T>[] children = newArray(0);
+        private T value;
+
+        Node<T> child(byte key, boolean create) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            Node<T> child = new Node<>();
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            keys[keys.length - 1] = key;
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newArray(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+    }
+}
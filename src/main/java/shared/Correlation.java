@@ -0,0 +1,113 @@
+package shared;
+
+/**
+ * Correlation ids tying replies to the requests they answer.
+ * <p/>
+ * A request line may be prefixed with a tag {@code #<id>}, e.g.
+ * {@code #7 !lookup bill.de}. The reply is then prefixed with the same tag,
+ * so a client can have any number of requests in flight on one connection
+ * and still tell which reply belongs to which request, even with broadcasts
+ * in between. Untagged lines are answered just as before.<br/>
+ * Tagged lines are always sent as text frames by the {@link BinaryProtocol}.
+ */
+public final class Correlation {
+
+    /** Starts a tag. */
+    public static final char MARK = '#';
+
+    /** Longest id, so that it always fits into a {@code long}. */
+    private static final int MAX_DIGITS = 18;
+
+    private Correlation() {
+    }
+
+    /**
+     * Returns the tag for the given id.
+     *
+     * @param id
+     *            the non-negative id
+     * @return the tag
+     */
+    public static String tag(long id) {
+        return MARK + Long.toString(id);
+    }
+
+    /**
+     * Returns the length of the tag starting the given line.<br/>
+     * A tag is followed by a single space, or ends the line.
+     *
+     * @param line
+     *            the line
+     * @return the length of the tag, or {@code 0} if the line is untagged
+     */
+    public static int tagLength(CharSequence line) {
+        int end = line.length();
+        if (end < 2 || line.charAt(0) != MARK) {
+            return 0;
+        }
+        int pos = 1;
+        while (pos < end && pos <= MAX_DIGITS && isDigit(line.charAt(pos))) {
+            pos++;
+        }
+        return pos > 1 && (pos == end || line.charAt(pos) == ' ') ? pos : 0;
+    }
+
+    /**
+     * Returns the length of the tag starting the line in the given buffer, see
+     * {@link #tagLength(CharSequence)}.
+     *
+     * @param data
+     *            the buffer containing the line
+     * @param offset
+     *            the start of the line in the buffer
+     * @param end
+     *            the end of the line in the buffer
+     * @return the length of the tag, or {@code 0} if the line is untagged
+     */
+    public static int tagLength(byte[] data, int offset, int end) {
+        if (end - offset < 2 || data[offset] != MARK) {
+            return 0;
+        }
+        int pos = offset + 1;
+        while (pos < end && pos - offset <= MAX_DIGITS && isDigit((char) data[pos])) {
+            pos++;
+        }
+        return pos > offset + 1 && (pos == end || data[pos] == ' ') ? pos - offset : 0;
+    }
+
+    /**
+     * Returns the id of the tag starting the given line.
+     *
+     * @param line
+     *            the line
+     * @param tagLength
+     *            the length of the tag, as returned by
+     *            {@link #tagLength(CharSequence)}
+     * @return the id
+     */
+    public static long id(CharSequence line, int tagLength) {
+        long id = 0;
+        for (int i = 1; i < tagLength; i++) {
+            id = id * 10 + (line.charAt(i) - '0');
+        }
+        return id;
+    }
+
+    /**
+     * Returns the rest of the given tagged line, following the tag and its
+     * space.
+     *
+     * @param line
+     *            the line
+     * @param tagLength
+     *            the length of the tag
+     * @return the untagged line
+     */
+    public static String untag(String line, int tagLength) {
+        return tagLength < line.length() ? line.substring(tagLength + 1) : "";
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,48 @@
+package shared;
+
+/**
+ * A decoded frame of the {@link BinaryProtocol}.
+ */
+public class Frame {
+
+    private final int opcode;
+    private final String[] fields;
+
+    public Frame(int opcode, String[] fields) {
+        this.opcode = opcode;
+        this.fields = fields;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public String[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Returns the command name including the leading {@code !}.
+     *
+     * @return the name, or {@code null} for a text frame
+     */
+    public String getName() {
+        return BinaryProtocol.name(opcode);
+    }
+
+    /**
+     * Returns the equivalent line of the text protocol.
+     *
+     * @return the line
+     */
+    public String toLine() {
+        if (opcode == BinaryProtocol.TEXT) {
+            return fields.length > 0 ? fields[0] : "";
+        }
+        StringBuilder builder = new StringBuilder(getName());
+        for (String field : fields) {
+            builder.append(' ').append(field);
+        }
+        return builder.toString();
+    }
+}
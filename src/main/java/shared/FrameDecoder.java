@@ -0,0 +1,159 @@
+package shared;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes frames of the {@link BinaryProtocol}.
+ * <p/>
+ * The decoder keeps the usernames interned by the peer, so it is bound to a
+ * single connection and frames have to be decoded in the order they arrive.
+ * Interned fields are only accepted where the direction of the frames interns
+ * usernames, so a peer cannot make the decoder remember anything else.
+ */
+public class FrameDecoder {
+
+    private final BinaryProtocol.Direction direction;
+    private final List<String> names = new ArrayList<>();
+    private final int maxFrameSize;
+
+    public FrameDecoder(BinaryProtocol.Direction direction) {
+        this(direction, BinaryProtocol.MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param direction
+     *            the direction of the frames
+     * @param maxFrameSize
+     *            the largest payload accepted, in bytes
+     */
+    public FrameDecoder(BinaryProtocol.Direction direction, int maxFrameSize) {
+        this.direction = direction;
+        this.maxFrameSize = Math.min(maxFrameSize, BinaryProtocol.MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Reads the next frame from the given stream, blocking until it is
+     * complete.
+     *
+     * @param in
+     *            the stream to read from
+     * @return the frame, or {@code null} if the end of the stream has been
+     *         reached
+     * @throws IOException
+     *             if an I/O error occurs or the frame is malformed
+     */
+    public Frame read(DataInputStream in) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(opcode, payload, 0, length);
+    }
+
+    /**
+     * Decodes the payload of a frame whose header has already been read.
+     *
+     * @param opcode
+     *            the opcode of the frame
+     * @param payload
+     *            the buffer containing the payload
+     * @param offset
+     *            the start of the payload in the buffer
+     * @param length
+     *            the length of the payload
+     * @return the frame
+     * @throws IOException
+     *             if the frame is malformed
+     */
+    public Frame decode(int opcode, byte[] payload, int offset, int length) throws IOException {
+        List<String> fields = new ArrayList<>(2);
+        int interned = BinaryProtocol.name(opcode) != null ? direction.interned(opcode) : -1;
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            byte tag = payload[pos++];
+            if ((tag == BinaryProtocol.DEFINE || tag == BinaryProtocol.REFERENCE) && fields.size() != interned) {
+                throw new IOException("Unexpected interned field in opcode " + opcode);
+            }
+            if (tag == BinaryProtocol.REFERENCE) {
+                int id = readInt(payload, pos, end);
+                pos += 4;
+                if (id < 0 || id >= names.size()) {
+                    throw new IOException("Unknown username id " + id);
+                }
+                fields.add(names.get(id));
+            } else {
+                int id = -1;
+                if (tag == BinaryProtocol.DEFINE) {
+                    id = readInt(payload, pos, end);
+                    pos += 4;
+                } else if (tag != BinaryProtocol.STRING) {
+                    throw new IOException("Unknown field tag " + tag);
+                }
+                int size = readInt(payload, pos, end);
+                pos += 4;
+                if (size < 0 || pos + size > end) {
+                    throw new IOException("Malformed field");
+                }
+                String value = new String(payload, pos, size, StandardCharsets.UTF_8);
+                pos += size;
+                if (id >= 0) {
+                    define(id, value);
+                }
+                fields.add(value);
+            }
+        }
+        return new Frame(opcode, fields.toArray(new String[fields.size()]));
+    }
+
+    /**
+     * Checks the payload length announced by a frame header, before any of
+     * the payload is buffered.
+     *
+     * @param length
+     *            the announced length
+     * @throws IOException
+     *             if the length is negative or too large
+     */
+    public void checkLength(int length) throws IOException {
+        if (length < 0 || length > maxFrameSize) {
+            throw new IOException("Illegal frame length " + length);
+        }
+    }
+
+    private void define(int id, String name) throws IOException {
+        if (id != names.size()) {
+            throw new IOException("Unexpected username id " + id);
+        }
+        names.add(name);
+    }
+
+    private static int readInt(byte[] data, int pos, int end) throws IOException {
+        if (pos + 4 > end) {
+            throw new EOFException("Truncated frame");
+        }
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8)
+                | (data[pos + 3] & 0xff);
+    }
+
+    /**
+     * Wraps the given stream for {@link #read(DataInputStream)}.
+     *
+     * @param in
+     *            the stream
+     * @return the wrapped stream
+     */
+    public static DataInputStream wrap(InputStream in) {
+        return in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+    }
+}
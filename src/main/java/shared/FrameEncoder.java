@@ -0,0 +1,121 @@
+package shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes lines of the text protocol into frames of the
+ * {@link BinaryProtocol}.
+ * <p/>
+ * Lines starting with a command known in the encoder's direction are split
+ * into the fields of that command, everything else is sent as a text frame.
+ * The encoder remembers which usernames it has interned, so it is bound to a
+ * single connection and frames have to be written in the order they were
+ * encoded.
+ */
+public class FrameEncoder {
+
+    private final BinaryProtocol.Direction direction;
+    private final Map<String, Integer> ids;
+
+    public FrameEncoder(BinaryProtocol.Direction direction) {
+        this(direction, true);
+    }
+
+    /**
+     * Creates an encoder that optionally interns no usernames.<br/>
+     * Such an encoder keeps no state, so its frames can be shared by any
+     * number of connections.
+     *
+     * @param direction
+     *            the direction of the frames
+     * @param interning
+     *            whether usernames are interned
+     */
+    public FrameEncoder(BinaryProtocol.Direction direction, boolean interning) {
+        this.direction = direction;
+        this.ids = interning ? new HashMap<String, Integer>() : null;
+    }
+
+    /**
+     * Encodes the given line into a frame.
+     *
+     * @param line
+     *            the line of the text protocol
+     * @return the frame
+     */
+    public byte[] encode(String line) {
+        String trimmed = line.trim();
+        int pos = trimmed.indexOf(' ');
+        int opcode = BinaryProtocol.opcode(pos >= 0 ? trimmed.substring(0, pos) : trimmed);
+        int arity = direction.arity(opcode);
+        if (opcode != BinaryProtocol.TEXT && arity >= 0) {
+            String[] fields = CommandInterpreter.tokenize(trimmed, pos >= 0 ? pos : trimmed.length(), arity);
+            if (fields.length == arity) {
+                return encode(opcode, fields);
+            }
+        }
+        return encode(BinaryProtocol.TEXT, line.endsWith("\n") ? line.substring(0, line.length() - 1) : line);
+    }
+
+    /**
+     * Encodes the given fields into a frame.
+     *
+     * @param opcode
+     *            the opcode of the frame
+     * @param fields
+     *            the fields
+     * @return the frame
+     */
+    public byte[] encode(int opcode, String... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(opcode);
+            out.writeInt(0);
+            int interned = direction.interned(opcode);
+            for (int i = 0; i < fields.length; i++) {
+                if (i == interned && ids != null) {
+                    writeInterned(out, fields[i]);
+                } else {
+                    out.writeByte(BinaryProtocol.STRING);
+                    writeString(out, fields[i]);
+                }
+            }
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - BinaryProtocol.HEADER_SIZE;
+            frame[1] = (byte) (length >>> 24);
+            frame[2] = (byte) (length >>> 16);
+            frame[3] = (byte) (length >>> 8);
+            frame[4] = (byte) length;
+            return frame;
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeInterned(DataOutputStream out, String name) throws IOException {
+        Integer id = ids.get(name);
+        if (id != null) {
+            out.writeByte(BinaryProtocol.REFERENCE);
+            out.writeInt(id);
+        } else {
+            id = ids.size();
+            ids.put(name, id);
+            out.writeByte(BinaryProtocol.DEFINE);
+            out.writeInt(id);
+            writeString(out, name);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+}
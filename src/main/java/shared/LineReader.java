@@ -0,0 +1,234 @@
+package shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits an {@link InputStream} into lines of raw bytes, kept in a single
+ * buffer that is reused from line to line.
+ * <p/>
+ * After {@link #next()} returned {@code true}, the current line is found in
+ * {@link #buffer()} between {@link #start()} and {@link #end()}, without any
+ * line terminator. Like {@link java.io.BufferedReader#readLine()}, a line is
+ * terminated by a line feed, a carriage return, or both. The line stays valid
+ * until the next call of {@code next()}.
+ * <p/>
+ * A line longer than the maximum length is not buffered as a whole. It is
+ * handed out in chunks of at most that length instead, the first one marked
+ * as {@link #isHead() head}, the last one as {@link #isTail() tail}. A line
+ * within the limit is both. Chunks never split a UTF-8 encoded character.
+ * <p/>
+ * The reader is meant to be used by a single thread. It is an
+ * {@link InputStream} itself, returning the bytes it has not handed out as
+ * lines yet.
+ */
+public class LineReader extends InputStream {
+
+    private static final int INITIAL_SIZE = 8192;
+
+    private final InputStream in;
+    private int maxLength = Integer.MAX_VALUE;
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int pos;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+    private boolean skipLF;
+    private boolean head = true;
+    private boolean tail = true;
+
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Limits the length of a line kept in the buffer, and with it the size of
+     * the buffer.
+     *
+     * @param maxLength
+     *            the maximum length of a line or chunk in bytes
+     */
+    public void setMaxLength(int maxLength) {
+        this.maxLength = Math.max(4, maxLength);
+    }
+
+    /**
+     * Reads the next line, blocking until it is complete.
+     *
+     * @return {@code false} if the end of the stream has been reached
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public boolean next() throws IOException {
+        int scan = pos;
+        while (true) {
+            if (skipLF && pos < limit) {
+                if (buffer[pos] == '\n') {
+                    pos++;
+                }
+                skipLF = false;
+                scan = Math.max(scan, pos);
+            }
+            for (; scan < limit; scan++) {
+                byte b = buffer[scan];
+                if (b == '\n' || b == '\r') {
+                    lineStart = pos;
+                    lineEnd = scan;
+                    pos = scan + 1;
+                    skipLF = b == '\r';
+                    head = tail;
+                    tail = true;
+                    return true;
+                }
+                if (scan + 1 - pos >= maxLength) {
+                    lineStart = pos;
+                    lineEnd = boundary(buffer, pos, scan + 1);
+                    pos = lineEnd;
+                    head = tail;
+                    tail = false;
+                    return true;
+                }
+            }
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                scan -= pos;
+                limit -= pos;
+                pos = 0;
+            }
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, maxLength + 1L));
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                if (limit > pos) {
+                    lineStart = pos;
+                    lineEnd = limit;
+                    pos = limit;
+                    head = tail;
+                    tail = true;
+                    return true;
+                }
+                return false;
+            }
+            limit += read;
+        }
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int start() {
+        return lineStart;
+    }
+
+    public int end() {
+        return lineEnd;
+    }
+
+    /**
+     * Returns whether the current line or chunk starts a line.
+     *
+     * @return {@code true} unless it continues an oversized line
+     */
+    public boolean isHead() {
+        return head;
+    }
+
+    /**
+     * Returns whether the current line or chunk ends a line.
+     *
+     * @return {@code true} unless more chunks of an oversized line follow
+     */
+    public boolean isTail() {
+        return tail;
+    }
+
+    /**
+     * Moves the end of a chunk back to the start of a UTF-8 encoded
+     * character, unless the chunk would become empty.
+     *
+     * @param data
+     *            the buffer
+     * @param start
+     *            the start of the chunk
+     * @param end
+     *            the intended end of the chunk
+     * @return the end of the chunk
+     */
+    public static int boundary(byte[] data, int start, int end) {
+        int lead = end - 1;
+        // continuation bytes look like 10xxxxxx
+        while (lead > start && end - lead < 4 && (data[lead] & 0xc0) == 0x80) {
+            lead--;
+        }
+        int b = data[lead] & 0xff;
+        int length = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+        return lead > start && lead + length > end ? lead : end;
+    }
+
+    /**
+     * Decodes the current line.
+     *
+     * @return the line
+     */
+    public String line() {
+        return new String(buffer, lineStart, lineEnd - lineStart);
+    }
+
+    @Override
+    public int read() throws IOException {
+        skipLineFeed();
+        if (pos < limit) {
+            return buffer[pos++] & 0xff;
+        }
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        skipLineFeed();
+        if (pos < limit) {
+            int count = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit - pos + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Drops the line feed following a carriage return that ended the last
+     * line, reading it first if it has not been buffered yet.
+     */
+    private void skipLineFeed() throws IOException {
+        if (!skipLF) {
+            return;
+        }
+        if (pos == limit) {
+            if (limit == buffer.length) {
+                pos = limit = 0;
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read <= 0) {
+                return;
+            }
+            limit += read;
+        }
+        if (buffer[pos] == '\n') {
+            pos++;
+        }
+        skipLF = false;
+    }
+}
@@ -0,0 +1,88 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads and executors of a component according to the
+ * {@code executor.mode} property of its {@link Config}.
+ * <p/>
+ * In {@code platform} mode every task runs on an ordinary thread, in
+ * {@code virtual} mode on a virtual thread of its own. Virtual threads are
+ * looked up reflectively, so this class still runs on JVMs without them; those
+ * fall back to platform threads.
+ */
+public final class Threads {
+
+	private static final Method NEW_VIRTUAL_EXECUTOR = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+	private static final Method START_VIRTUAL_THREAD = lookup(Thread.class, "startVirtualThread", Runnable.class);
+
+	private final boolean virtual;
+
+	/**
+	 * @param config
+	 *            the configuration containing the {@code executor.mode}
+	 */
+	public Threads(Config config) {
+		boolean requested = config.getString("executor.mode").trim().equals("virtual");
+		if (requested && (NEW_VIRTUAL_EXECUTOR == null || START_VIRTUAL_THREAD == null)) {
+			System.err.println("Virtual threads are not available on this JVM, using platform threads.");
+		}
+		this.virtual = requested && NEW_VIRTUAL_EXECUTOR != null && START_VIRTUAL_THREAD != null;
+	}
+
+	/**
+	 * Returns whether tasks are run on virtual threads.
+	 *
+	 * @return {@code true} in virtual mode
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Creates an unbounded executor starting a new thread for each task, or
+	 * reusing idle ones in platform mode.
+	 *
+	 * @return the executor
+	 */
+	public ExecutorService newExecutor() {
+		if (virtual) {
+			return (ExecutorService) invoke(NEW_VIRTUAL_EXECUTOR);
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Runs the given task on a new thread.
+	 *
+	 * @param task
+	 *            the task to run
+	 * @return the started thread
+	 */
+	public Thread start(Runnable task) {
+		if (virtual) {
+			return (Thread) invoke(START_VIRTUAL_THREAD, task);
+		}
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+
+	private static Method lookup(Class<?> type, String name, Class<?>... parameterTypes) {
+		try {
+			return type.getMethod(name, parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Object invoke(Method method, Object... args) {
+		try {
+			return method.invoke(null, args);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create virtual thread", e);
+		}
+	}
+}
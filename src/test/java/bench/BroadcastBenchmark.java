@@ -0,0 +1,120 @@
+package bench;
+
+import chatserver.Chatserver;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how fast a {@link Chatserver} delivers public messages to a room
+ * of recipients with a given output coalescing setup.
+ * <p/>
+ * Usage: {@code BroadcastBenchmark <batch size> <flush window> [recipients] [messages]}.<br/>
+ * Every message carries its send time, so each recipient can tell the delay
+ * until it arrived. See the {@code bench-broadcast} target of the ant build.
+ */
+public class BroadcastBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		int flushWindow = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		int recipients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int messages = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+		Config config = new Config("chatserver");
+		config.setProperty("output.batch.size", batchSize);
+		config.setProperty("output.flush.window", flushWindow);
+		config.setProperty("outbound.capacity", messages + 1);
+		// the benchmark is a single noisy client by design
+		for (String limit : new String[] { "rate.user.commands", "rate.user.bytes", "rate.ip.commands", "rate.ip.bytes" }) {
+			config.setProperty(limit, 0);
+		}
+		Chatserver chatserver = new Chatserver("bench", config,
+				new ByteArrayInputStream(new byte[0]), new PrintStream(NullOutputStream.getInstance()));
+		for (int i = 0; i <= recipients; i++) {
+			chatserver.getUsers().setProperty("bot" + i + ".password", "bench");
+		}
+		new Thread(chatserver).start();
+		Thread.sleep(500);
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+		int port = config.getInt("tcp.port");
+		Socket sender = login(address, port, "bot0");
+		List<Socket> sockets = new ArrayList<>();
+		final long[][] delays = new long[recipients][];
+		final CountDownLatch done = new CountDownLatch(recipients);
+		for (int i = 0; i < recipients; i++) {
+			final Socket socket = login(address, port, "bot" + (i + 1));
+			sockets.add(socket);
+			final long[] delay = delays[i] = new long[messages];
+			final int total = messages;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+						for (int n = 0; n < total;) {
+							String line = reader.readLine();
+							if (line == null) {
+								break;
+							}
+							if (line.startsWith("!send ")) {
+								long sent = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+								delay[n++] = System.nanoTime() - sent;
+							}
+						}
+					} catch (IOException e) {
+						System.err.println("Recipient failed: " + e.getMessage());
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+
+		OutputStream out = sender.getOutputStream();
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			out.write(("!send msg " + System.nanoTime() + "\n").getBytes());
+		}
+		done.await();
+		long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+		long[] all = new long[recipients * messages];
+		for (int i = 0; i < recipients; i++) {
+			System.arraycopy(delays[i], 0, all, i * messages, messages);
+		}
+		Arrays.sort(all);
+		System.out.printf("%-10s %8s %10s %8s %12s %12s %12s%n",
+				"batch", "window", "recipients", "ms", "delivered/s", "p50 us", "p99 us");
+		System.out.printf("%-10d %8d %10d %8d %12d %12d %12d%n",
+				batchSize, flushWindow, recipients, millis, (long) recipients * messages * 1000 / millis,
+				all[all.length / 2] / 1000, all[(int) (all.length * 0.99)] / 1000);
+
+		chatserver.exit();
+		sender.close();
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		System.exit(0);
+	}
+
+	private static Socket login(InetAddress address, int port, String username) throws IOException {
+		Socket socket = new Socket(address, port);
+		socket.getOutputStream().write(("!login " + username + " bench\n").getBytes());
+		// the reply proves that the user is online
+		new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+		return socket;
+	}
+}
@@ -0,0 +1,132 @@
+package bench;
+
+import chatserver.Chatserver;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many idle sessions a {@link Chatserver} holds in a given
+ * executor mode, and what they cost in threads and memory.
+ * <p/>
+ * Usage: {@code ExecutorModeBenchmark <platform|virtual> [sessions]}.<br/>
+ * Each mode has to be measured in a JVM of its own, see the
+ * {@code bench-executor} target of the ant build. The numbers include the
+ * client ends of the sessions, which are the same in both modes.
+ */
+public class ExecutorModeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "platform";
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		Config config = new Config("chatserver");
+		config.setProperty("executor.mode", mode);
+		config.setProperty("tcp.mode", "blocking");
+		// the benchmark is a single noisy client by design
+		for (String limit : new String[] { "rate.user.commands", "rate.user.bytes", "rate.ip.commands", "rate.ip.bytes" }) {
+			config.setProperty(limit, 0);
+		}
+		Chatserver chatserver = new Chatserver("bench", config,
+				new ByteArrayInputStream(new byte[0]), new PrintStream(NullOutputStream.getInstance()));
+		new Thread(chatserver).start();
+		Thread.sleep(500);
+
+		Snapshot before = Snapshot.take();
+		long start = System.nanoTime();
+		List<Socket> sockets = new ArrayList<>(sessions);
+		InetAddress address = InetAddress.getLoopbackAddress();
+		int port = config.getInt("tcp.port");
+		try {
+			for (int i = 0; i < sessions; i++) {
+				Socket socket = new Socket(address, port);
+				sockets.add(socket);
+				// a reply proves that the session is being served
+				socket.getOutputStream().write("!lookup nobody\n".getBytes());
+				skipLine(socket.getInputStream());
+			}
+		} catch (IOException e) {
+			System.err.printf("Stopped after %d sessions: %s%n", sockets.size(), e.getMessage());
+		}
+		long connectMillis = (System.nanoTime() - start) / 1_000_000;
+		Thread.sleep(1000);
+		Snapshot after = Snapshot.take();
+
+		System.out.printf("%-10s %10s %12s %10s %12s %12s %16s%n",
+				"mode", "sessions", "connect ms", "threads", "heap MB", "rss MB", "bytes/session");
+		long perSession = sockets.isEmpty() ? 0 : (after.memory() - before.memory()) / sockets.size();
+		System.out.printf("%-10s %10d %12d %10d %12.1f %12.1f %16d%n",
+				mode, sockets.size(), connectMillis, after.threads,
+				after.heap / 1048576.0, after.rss / 1048576.0, perSession);
+
+		chatserver.exit();
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		System.exit(0);
+	}
+
+	private static void skipLine(InputStream in) throws IOException {
+		for (int b; (b = in.read()) != '\n';) {
+			if (b < 0) {
+				throw new IOException("Connection closed by chatserver");
+			}
+		}
+	}
+
+	/**
+	 * Thread count, used heap and resident set size of this JVM.
+	 */
+	private static class Snapshot {
+		int threads;
+		long heap;
+		long rss;
+
+		static Snapshot take() {
+			System.gc();
+			Snapshot snapshot = new Snapshot();
+			snapshot.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			snapshot.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			snapshot.rss = readRss();
+			return snapshot;
+		}
+
+		/**
+		 * Prefers the resident set size, as platform thread stacks are not part
+		 * of the heap.
+		 */
+		long memory() {
+			return rss > 0 ? rss : heap;
+		}
+
+		private static long readRss() {
+			Path status = Paths.get("/proc/self/status");
+			if (!Files.isReadable(status)) {
+				return 0;
+			}
+			try {
+				for (String line : Files.readAllLines(status, Charset.defaultCharset())) {
+					if (line.startsWith("VmRSS:")) {
+						return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+				// fall through
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,795 @@
+package bench;
+
+import chatserver.Chatserver;
+import chatserver.DatagramEngine;
+import client.PeerConnectionPool;
+import client.PeerListener;
+import shared.Correlation;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives a {@link Chatserver} on the loopback interface with a crowd of
+ * simulated users and reports what it sustains.
+ * <p/>
+ * Usage: {@code LoadGenerator [key=value]...} with the keys
+ * <ul>
+ * <li>{@code sessions}: the number of simulated users, 1000 by default,</li>
+ * <li>{@code seconds}: how long to measure, 30 by default,</li>
+ * <li>{@code think}: the mean pause of a user between two commands in
+ * milliseconds, 100 by default,</li>
+ * <li>{@code mix}: the relative weights of the commands, e.g.
+ * {@code send=1,lookup=45,msg=30,list=10,register=9,login=5},</li>
+ * <li>{@code loops}: the number of selector threads driving the users, 2 by
+ * default.</li>
+ * </ul>
+ * Any other key is set on the configuration of the chatserver, e.g.
+ * {@code tcp.mode=reactor}. See the {@code bench-load} target of the ant build.
+ * <p/>
+ * The chatserver runs in this JVM with the rate limits lifted and a user
+ * {@code bot<n>} for every session. Each user logs in and registers, then
+ * issues one command at a time, drawn from the mix, pausing a random think
+ * time in between. All requests carry {@link Correlation} tags, so every
+ * reply is timed against its request. A {@code login} logs out, in and
+ * registers again; {@code list} is the paged UDP variant; {@code msg} looks up
+ * another user and sends it a private message over a
+ * {@link PeerConnectionPool}, timed until it is acknowledged. Public messages
+ * carry their send time, so every recipient reports the delivery latency of
+ * the broadcast.
+ * <p/>
+ * The report lists throughput, errors and the p50, p99 and p99.9 latencies of
+ * every command, and the same for the delivery of broadcasts.
+ */
+public class LoadGenerator {
+
+	private static final String[] COMMANDS = { "login", "logout", "register", "send", "lookup", "list", "msg" };
+	private static final String DEFAULT_MIX = "send=1,lookup=45,msg=30,list=10,register=9,login=5";
+	private static final long LIST_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+	private static final AtomicLong listRequests = new AtomicLong();
+
+	private final int sessions;
+	private final long think;
+	private final String[] mixCommands;
+	private final int[] mixWeights;
+	private final InetSocketAddress server;
+	private final InetSocketAddress serverDatagram;
+	private final String privateAddress;
+	private final PeerConnectionPool peers;
+	private final CountDownLatch ready;
+	private volatile boolean measuring;
+	private volatile boolean stopping;
+
+	private LoadGenerator(Map<String, String> settings, Config config, Config clientConfig) {
+		this.sessions = Integer.parseInt(settings.get("sessions"));
+		if (sessions < 2) {
+			throw new IllegalArgumentException("At least two sessions are needed to message each other");
+		}
+		this.think = Long.parseLong(settings.get("think"));
+		String[] entries = settings.get("mix").split(",");
+		this.mixCommands = new String[entries.length];
+		this.mixWeights = new int[entries.length];
+		int total = 0;
+		for (int i = 0; i < entries.length; i++) {
+			String[] entry = entries[i].trim().split("=");
+			if (index(entry[0]) < 0 || entry[0].equals("logout")) {
+				throw new IllegalArgumentException("Unknown command in mix: " + entry[0]);
+			}
+			mixCommands[i] = entry[0];
+			total += Integer.parseInt(entry[1]);
+			mixWeights[i] = total;
+		}
+		this.server = new InetSocketAddress("127.0.0.1", config.getInt("tcp.port"));
+		this.serverDatagram = new InetSocketAddress("127.0.0.1", config.getInt("udp.port"));
+		int port = clientConfig.getInt("tcp.port");
+		this.privateAddress = "127.0.0.1:" + port;
+		this.peers = new PeerConnectionPool(port, clientConfig.getInt("peer.idle.timeout"),
+				clientConfig.getInt("peer.ack.timeout"), clientConfig.getInt("peer.window"));
+		this.ready = new CountDownLatch(sessions);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new LinkedHashMap<>();
+		settings.put("sessions", "1000");
+		settings.put("seconds", "30");
+		settings.put("think", "100");
+		settings.put("mix", DEFAULT_MIX);
+		settings.put("loops", "2");
+		Config config = new Config("chatserver");
+		// the generator is a single noisy host by design
+		for (String limit : new String[] { "rate.user.commands", "rate.user.bytes", "rate.ip.commands", "rate.ip.bytes" }) {
+			config.setProperty(limit, 0);
+		}
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String key = arg.substring(0, equals);
+			if (settings.containsKey(key)) {
+				settings.put(key, arg.substring(equals + 1));
+			} else {
+				config.setProperty(key, arg.substring(equals + 1));
+			}
+		}
+
+		Chatserver chatserver = new Chatserver("load", config,
+				new ByteArrayInputStream(new byte[0]), new PrintStream(NullOutputStream.getInstance()));
+		LoadGenerator generator = new LoadGenerator(settings, config, new Config("client"));
+		for (int i = 0; i < generator.sessions; i++) {
+			chatserver.getUsers().setProperty("bot" + i + ".password", "bench");
+		}
+		new Thread(chatserver).start();
+		Thread.sleep(500);
+
+		final AtomicLong received = new AtomicLong();
+		PeerListener listener = new PeerListener(new Config("client").getInt("tcp.port"), 65536,
+				new PeerListener.Receiver() {
+					@Override
+					public void received(String message) {
+						received.incrementAndGet();
+					}
+
+					@Override
+					public void failed(IOException cause) {
+						System.err.println("Private connection failed: " + cause.getMessage());
+					}
+				});
+		new Thread(listener, "load-private").start();
+
+		EventLoop[] loops = new EventLoop[Integer.parseInt(settings.get("loops"))];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = generator.new EventLoop();
+			loops[i].thread = new Thread(loops[i], "load-" + i);
+			loops[i].thread.start();
+		}
+		long start = System.nanoTime();
+		int connected = 0;
+		for (int i = 0; i < generator.sessions; i++) {
+			try {
+				SocketChannel channel = SocketChannel.open(generator.server);
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				loops[i % loops.length].add(generator.new Session(i, channel));
+				connected++;
+			} catch (IOException e) {
+				System.err.printf("Stopped after %d sessions: %s%n", connected, e.getMessage());
+				for (int rest = i; rest < generator.sessions; rest++) {
+					generator.ready.countDown();
+				}
+				break;
+			}
+		}
+		generator.ready.await();
+		System.out.printf("%d sessions logged in and registered in %d ms%n", connected,
+				(System.nanoTime() - start) / 1_000_000);
+
+		long seconds = Long.parseLong(settings.get("seconds"));
+		generator.measuring = true;
+		for (EventLoop loop : loops) {
+			loop.execute(loop.startAll);
+		}
+		Thread.sleep(seconds * 1000);
+		generator.measuring = false;
+		generator.stopping = true;
+		// let the replies of the last commands arrive
+		Thread.sleep(1000);
+		for (EventLoop loop : loops) {
+			loop.done = true;
+			loop.selector.wakeup();
+		}
+
+		Latencies[] totals = new Latencies[COMMANDS.length];
+		Latencies deliveries = new Latencies();
+		int lost = 0;
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] = new Latencies();
+		}
+		for (EventLoop loop : loops) {
+			loop.thread.join();
+			for (int i = 0; i < totals.length; i++) {
+				totals[i].add(loop.latencies[i]);
+			}
+			deliveries.add(loop.deliveries);
+			lost += loop.lost;
+		}
+
+		System.out.printf("%-10s %10s %8s %10s %10s %10s %10s %10s%n",
+				"command", "count", "errors", "per s", "p50 us", "p99 us", "p999 us", "max us");
+		for (int i = 0; i < COMMANDS.length; i++) {
+			totals[i].print(COMMANDS[i], seconds);
+		}
+		deliveries.print("delivered", seconds);
+		System.out.printf("%d private messages received, %d sessions lost%n", received.get(), lost);
+
+		listener.close();
+		generator.peers.close();
+		chatserver.exit();
+		System.exit(0);
+	}
+
+	private static int index(String command) {
+		for (int i = 0; i < COMMANDS.length; i++) {
+			if (COMMANDS[i].equals(command)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A selector thread driving its share of the sessions, along with the
+	 * paged {@code !list} requests of those sessions on a datagram channel of
+	 * its own.<br/>
+	 * All latencies are recorded on this thread, so they need no locking.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final DatagramChannel datagrams;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final PriorityQueue<Session> timers = new PriorityQueue<>(16, new Comparator<Session>() {
+			@Override
+			public int compare(Session a, Session b) {
+				return Long.compare(a.nextAt, b.nextAt);
+			}
+		});
+		private final Map<Long, ListRequest> lists = new HashMap<>();
+		private final Random random = new Random();
+		private final Latencies[] latencies = new Latencies[COMMANDS.length];
+		private final Latencies deliveries = new Latencies();
+		private final Deque<Session> sessions = new ArrayDeque<>();
+		private Thread thread;
+		private volatile boolean done;
+		private int lost;
+		private long lastSweep = System.nanoTime();
+
+		private final Runnable startAll = new Runnable() {
+			@Override
+			public void run() {
+				for (Session session : sessions) {
+					schedule(session);
+				}
+			}
+		};
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+			datagrams = DatagramChannel.open();
+			datagrams.connect(serverDatagram);
+			datagrams.configureBlocking(false);
+			datagrams.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+			datagrams.register(selector, SelectionKey.OP_READ);
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new Latencies();
+			}
+		}
+
+		void add(final Session session) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+						sessions.add(session);
+						session.loop = EventLoop.this;
+						session.login();
+					} catch (IOException e) {
+						session.lost();
+					}
+				}
+			});
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!done) {
+					long now = System.nanoTime();
+					Session next = timers.peek();
+					selector.select(next == null ? 1000 : Math.max(1, (next.nextAt - now) / 1_000_000));
+					for (Runnable task; (task = tasks.poll()) != null;) {
+						task.run();
+					}
+					now = System.nanoTime();
+					while (!timers.isEmpty() && timers.peek().nextAt - now <= 0) {
+						timers.poll().issue();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.channel() == datagrams) {
+							receiveLists();
+							continue;
+						}
+						Session session = (Session) key.attachment();
+						try {
+							if (key.isValid() && key.isWritable()) {
+								session.flush();
+							}
+							if (key.isValid() && key.isReadable()) {
+								session.read(buffer);
+							}
+						} catch (IOException e) {
+							session.lost();
+						}
+					}
+					if (now - lastSweep > TimeUnit.SECONDS.toNanos(1)) {
+						lastSweep = now;
+						expireLists(now);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Event loop failed: " + e.getMessage());
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						System.err.println("Could not close channel");
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					System.err.println("Could not close selector");
+				}
+			}
+		}
+
+		void schedule(Session session) {
+			if (stopping || session.closed) {
+				return;
+			}
+			// exponentially distributed pauses, as of independent users
+			long pause = (long) (-Math.log(1 - random.nextDouble()) * think * 1_000_000);
+			session.nextAt = System.nanoTime() + pause;
+			timers.add(session);
+		}
+
+		void record(String command, long start, boolean ok) {
+			if (!measuring) {
+				return;
+			}
+			Latencies latency = latencies[index(command)];
+			if (ok) {
+				latency.record(System.nanoTime() - start);
+			} else {
+				latency.errors++;
+			}
+		}
+
+		void list(Session session) throws IOException {
+			long request = listRequests.incrementAndGet();
+			lists.put(request, new ListRequest(session, System.nanoTime()));
+			datagrams.write(ByteBuffer.wrap(("!list " + request).getBytes()));
+		}
+
+		private void receiveLists() {
+			try {
+				while (true) {
+					buffer.clear();
+					if (datagrams.read(buffer) <= 0) {
+						return;
+					}
+					buffer.flip();
+					byte[] data = new byte[Math.min(buffer.remaining(), 96)];
+					buffer.get(data);
+					String header = new String(data);
+					int newline = header.indexOf('\n');
+					String[] fields = (newline < 0 ? header : header.substring(0, newline)).trim().split(" ");
+					if (fields[0].equals("!busy")) {
+						// cannot tell which request was turned away, so all of them were
+						for (ListRequest pending : lists.values()) {
+							finish(pending, false);
+						}
+						lists.clear();
+					} else if (fields.length == 5) {
+						long request = Long.parseLong(fields[1]);
+						ListRequest pending = lists.get(request);
+						if (pending == null) {
+							continue;
+						}
+						if (pending.add(Long.parseLong(fields[2]), Integer.parseInt(fields[4]))) {
+							lists.remove(request);
+							finish(pending, true);
+						} else if (pending.received == pending.asked) {
+							datagrams.write(ByteBuffer.wrap(pending.nextRequest(request).getBytes()));
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Could not receive list: " + e.getMessage());
+			}
+		}
+
+		private void expireLists(long now) {
+			Iterator<ListRequest> pending = lists.values().iterator();
+			while (pending.hasNext()) {
+				ListRequest request = pending.next();
+				if (now - request.start > LIST_TIMEOUT) {
+					pending.remove();
+					finish(request, false);
+				}
+			}
+		}
+
+		private void finish(ListRequest request, boolean ok) {
+			record("list", request.start, ok);
+			schedule(request.session);
+		}
+	}
+
+	/**
+	 * The fragments of a paged {@code !list} reply received so far, asked for
+	 * a window at a time as the chatserver sends no more than that.
+	 */
+	private static class ListRequest {
+		final Session session;
+		final long start;
+		long version = -1;
+		int total;
+		int received;
+		int asked;
+
+		ListRequest(Session session, long start) {
+			this.session = session;
+			this.start = start;
+		}
+
+		/**
+		 * Counts a fragment, starting over if the list changed in between.
+		 *
+		 * @return {@code true} once all fragments arrived
+		 */
+		boolean add(long fragmentVersion, int total) {
+			if (fragmentVersion > version) {
+				// the chatserver sent the first fragment of the new version
+				version = fragmentVersion;
+				this.total = total;
+				received = 0;
+				asked = 1;
+			}
+			return fragmentVersion == version && ++received >= total;
+		}
+
+		/**
+		 * Returns the datagram asking for the next window of fragments.
+		 */
+		String nextRequest(long request) {
+			StringBuilder builder = new StringBuilder("!list ").append(request).append(' ').append(version);
+			int end = Math.min(total, asked + DatagramEngine.MAX_PAGES_PER_REQUEST);
+			for (; asked < end; asked++) {
+				builder.append(' ').append(asked);
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * A simulated user, issuing one command at a time.
+	 */
+	private class Session {
+		private final int id;
+		private final String username;
+		private final SocketChannel channel;
+		private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+		private final Map<Long, Request> requests = new HashMap<>();
+		private EventLoop loop;
+		private SelectionKey key;
+		private long nextTag;
+		private long nextAt;
+		private boolean closed;
+		private boolean registered;
+		private byte[] line = new byte[256];
+		private int length;
+
+		Session(int id, SocketChannel channel) {
+			this.id = id;
+			this.username = "bot" + id;
+			this.channel = channel;
+		}
+
+		void login() throws IOException {
+			request("login", "!login " + username + " bench");
+			request("register", "!register " + privateAddress);
+		}
+
+		/**
+		 * Issues the next command of the mix.
+		 */
+		void issue() {
+			if (closed) {
+				return;
+			}
+			int pick = loop.random.nextInt(mixWeights[mixWeights.length - 1]);
+			int i = 0;
+			while (mixWeights[i] <= pick) {
+				i++;
+			}
+			try {
+				switch (mixCommands[i]) {
+				case "login":
+					request("logout", "!logout");
+					login();
+					break;
+				case "register":
+					request("register", "!register " + privateAddress);
+					break;
+				case "send":
+					request("send", "!send " + System.nanoTime());
+					break;
+				case "lookup":
+					request("lookup", "!lookup " + other());
+					break;
+				case "list":
+					loop.list(this);
+					break;
+				default:
+					request("msg", "!lookup " + other());
+					break;
+				}
+			} catch (IOException e) {
+				lost();
+			}
+		}
+
+		private String other() {
+			int other = loop.random.nextInt(sessions - 1);
+			return "bot" + (other >= id ? other + 1 : other);
+		}
+
+		private void request(String command, String line) throws IOException {
+			long tag = ++nextTag;
+			requests.put(tag, new Request(command, System.nanoTime()));
+			write(Correlation.tag(tag) + " " + line);
+		}
+
+		void read(ByteBuffer buffer) throws IOException {
+			buffer.clear();
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Connection closed by chatserver");
+			}
+			buffer.flip();
+			int count = buffer.remaining();
+			if (length + count > line.length) {
+				line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+			}
+			buffer.get(line, length, count);
+			int scanned = length;
+			length += count;
+			int start = 0;
+			for (int i = scanned; i < length; i++) {
+				if (line[i] == '\n') {
+					received(new String(line, start, i - start).trim());
+					start = i + 1;
+				}
+			}
+			length -= start;
+			System.arraycopy(line, start, line, 0, length);
+		}
+
+		private void received(String reply) throws IOException {
+			int tagLength = Correlation.tagLength(reply);
+			if (tagLength > 0) {
+				Request request = requests.remove(Correlation.id(reply, tagLength));
+				if (request != null) {
+					answered(request, Correlation.untag(reply, tagLength));
+				}
+			} else if (reply.startsWith("!send ")) {
+				if (measuring) {
+					loop.deliveries.record(System.nanoTime() - Long.parseLong(reply.substring(reply.lastIndexOf(' ') + 1)));
+				}
+			} else if (reply.equals("!ping")) {
+				write("!pong");
+			} else if (reply.startsWith("!busy")) {
+				throw new IOException("Turned away by the chatserver");
+			}
+		}
+
+		private void answered(Request request, String reply) {
+			switch (request.command) {
+			case "login":
+				loop.record("login", request.start, reply.equals("Successfully logged in."));
+				return;
+			case "logout":
+				loop.record("logout", request.start, reply.equals("Successfully logged out."));
+				return;
+			case "register":
+				loop.record("register", request.start, reply.equals("Successfully registered private IP address."));
+				if (!registered) {
+					registered = true;
+					ready.countDown();
+					return;
+				}
+				break;
+			case "send":
+				loop.record("send", request.start, reply.isEmpty());
+				break;
+			case "lookup":
+				loop.record("lookup", request.start, true);
+				break;
+			default:
+				message(request.start, reply);
+				return;
+			}
+			loop.schedule(this);
+		}
+
+		/**
+		 * Sends a private message to the user just looked up, finishing the
+		 * command once it is acknowledged.
+		 */
+		private void message(final long start, String reply) {
+			String[] parts = reply.split(" ");
+			if (parts.length != 3 || !parts[0].equals("!register")) {
+				// not online or not registered right now
+				loop.record("msg", start, false);
+				loop.schedule(this);
+				return;
+			}
+			peers.send(parts[1], parts[2], username + ": " + start).whenComplete(new BiConsumer<String, Throwable>() {
+				@Override
+				public void accept(final String ack, final Throwable failure) {
+					loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							loop.record("msg", start, failure == null && ack.equals("!ack"));
+							loop.schedule(Session.this);
+						}
+					});
+				}
+			});
+		}
+
+		private void write(String line) throws IOException {
+			ByteBuffer data = ByteBuffer.wrap((line + "\n").getBytes());
+			if (pending.isEmpty()) {
+				channel.write(data);
+			}
+			if (data.hasRemaining()) {
+				pending.add(data);
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		void flush() throws IOException {
+			while (!pending.isEmpty()) {
+				channel.write(pending.peek());
+				if (pending.peek().hasRemaining()) {
+					return;
+				}
+				pending.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void lost() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			loop.lost++;
+			if (!registered) {
+				registered = true;
+				ready.countDown();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Could not close session");
+			}
+		}
+	}
+
+	private static class Request {
+		final String command;
+		final long start;
+
+		Request(String command, long start) {
+			this.command = command;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * A histogram of latencies with a resolution of about one percent, from
+	 * a microsecond up.
+	 */
+	private static class Latencies {
+		private static final int SUB_BITS = 7;
+		private final long[] counts = new long[(64 - SUB_BITS + 1) << SUB_BITS];
+		private long total;
+		private long max;
+		private long errors;
+
+		void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			counts[index(micros)]++;
+			total++;
+			max = Math.max(max, micros);
+		}
+
+		void add(Latencies other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			total += other.total;
+			max = Math.max(max, other.max);
+			errors += other.errors;
+		}
+
+		long percentile(double quantile) {
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return Math.min(value(i), max);
+				}
+			}
+			return max;
+		}
+
+		void print(String name, long seconds) {
+			if (total == 0 && errors == 0) {
+				return;
+			}
+			System.out.printf("%-10s %10d %8d %10d %10d %10d %10d %10d%n", name, total, errors, total / seconds,
+					percentile(0.5), percentile(0.99), percentile(0.999), max);
+		}
+
+		/**
+		 * Values below {@code 2^SUB_BITS} get a bucket each, larger ones share
+		 * {@code 2^(SUB_BITS-1)} buckets per power of two.
+		 */
+		private static int index(long value) {
+			if (value < 1 << SUB_BITS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+			return (shift << (SUB_BITS - 1)) + (int) (value >> shift);
+		}
+
+		/**
+		 * Returns the upper bound of the given bucket.
+		 */
+		private static long value(int index) {
+			if (index < 1 << SUB_BITS) {
+				return index;
+			}
+			int shift = (index >> (SUB_BITS - 1)) - 1;
+			return (((long) (index - (shift << (SUB_BITS - 1))) + 1) << shift) - 1;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package chatserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives each load signal of {@link AdmissionControl} past its limit, and
+ * checks that connections and {@code !list} requests are turned away then.
+ */
+public class AdmissionControlTest {
+
+	private static final int TIMEOUT = 5000;
+
+	private Config config;
+	private Chatserver chatserver;
+
+	@Before
+	public void setUp() throws Exception {
+		config = new Config("chatserver");
+		config.setProperty("tcp.mode", "reactor");
+		config.setProperty("tcp.port", 0);
+		config.setProperty("udp.port", 0);
+		config.setProperty("admission.max.sessions", 2);
+		config.setProperty("admission.max.backlog", 2);
+		config.setProperty("admission.max.latency", 100);
+		config.setProperty("admission.retry.after", 250);
+		chatserver = new Chatserver("admission", config, new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		chatserver.exit();
+		// exit() interrupts the calling thread, which the tests share
+		Thread.interrupted();
+	}
+
+	@Test
+	public void tooManySessionsOverload() {
+		AdmissionControl admission = new AdmissionControl(config, chatserver.getSessions());
+		ClientHandler first = connect();
+		assertFalse(admission.isOverloaded());
+		connect();
+		assertTrue(admission.isOverloaded());
+		chatserver.getSessions().remove(first);
+		assertFalse(admission.isOverloaded());
+		assertEquals("!busy 250\n", new String(admission.getBusyReply(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void backlogCountsTasksUntilTheyFinish() {
+		AdmissionControl admission = new AdmissionControl(config, chatserver.getSessions());
+		Tasks tasks = new Tasks();
+		Executor tracked = admission.track(tasks);
+		Runnable nothing = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+		tracked.execute(nothing);
+		assertFalse(admission.isOverloaded());
+		tracked.execute(nothing);
+		assertTrue(admission.isOverloaded());
+		tasks.runOne();
+		assertFalse(admission.isOverloaded());
+	}
+
+	@Test
+	public void slowCommandsOverloadUntilTheyAreForgotten() throws InterruptedException {
+		AdmissionControl admission = new AdmissionControl(config, chatserver.getSessions());
+		admission.record(10000000L);
+		assertFalse(admission.isOverloaded());
+		admission.record(1000000000L);
+		assertTrue(admission.isOverloaded());
+		// an idle chatserver recovers without commands to measure
+		Thread.sleep(1100);
+		assertFalse(admission.isOverloaded());
+	}
+
+	@Test
+	public void connectionIsTurnedAwayWhileOverloaded() throws Exception {
+		Reactor reactor = new Reactor(0, 1, 65536, chatserver);
+		new Thread(reactor, "reactor-accept").start();
+		try {
+			Socket first = connect(reactor);
+			Socket second = connect(reactor);
+			// accepted sessions count once they are registered
+			awaitSessions(2);
+
+			try (Socket third = connect(reactor)) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(third.getInputStream(),
+						StandardCharsets.UTF_8));
+				assertEquals("!busy 250", in.readLine());
+				assertNull(in.readLine());
+			}
+			assertEquals(2, chatserver.getSessions().getSessions().size());
+			first.close();
+			second.close();
+		} finally {
+			reactor.close();
+		}
+	}
+
+	@Test
+	public void listRequestIsTurnedAwayWhileOverloaded() throws Exception {
+		AdmissionControl admission = new AdmissionControl(config, chatserver.getSessions());
+		DatagramEngine engine = new DatagramEngine(0, 1, config.getInt("udp.fragment.size"),
+				chatserver.getSessions(), admission);
+		ExecutorService receivers = Executors.newSingleThreadExecutor();
+		engine.start(receivers);
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(TIMEOUT);
+			connect();
+			connect();
+			for (String request : new String[] { "!list", "!list 3" }) {
+				byte[] data = request.getBytes(StandardCharsets.UTF_8);
+				socket.send(new DatagramPacket(data, data.length,
+						new InetSocketAddress("127.0.0.1", engine.getPort())));
+				DatagramPacket reply = new DatagramPacket(new byte[256], 256);
+				socket.receive(reply);
+				assertEquals("!busy 250\n",
+						new String(reply.getData(), 0, reply.getLength(), StandardCharsets.UTF_8));
+			}
+		} finally {
+			engine.close();
+			receivers.shutdownNow();
+		}
+	}
+
+	private ClientHandler connect() {
+		ClientHandler handler = new ClientHandler(new Closeable() {
+			@Override
+			public void close() {
+			}
+		}, "127.0.0.1", NullOutputStream.getInstance(), chatserver);
+		chatserver.getSessions().add(handler);
+		return handler;
+	}
+
+	private static Socket connect(Reactor reactor) throws IOException {
+		Socket socket = new Socket("127.0.0.1", reactor.getPort());
+		socket.setSoTimeout(TIMEOUT);
+		return socket;
+	}
+
+	private void awaitSessions(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (chatserver.getSessions().getSessions().size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, chatserver.getSessions().getSessions().size());
+	}
+
+	/**
+	 * Keeps the tasks handed to it until the test runs them.
+	 */
+	private static class Tasks implements Executor {
+		private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		void runOne() {
+			tasks.poll().run();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package chatserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends {@code !list} requests to a {@link DatagramEngine} over loopback and
+ * parses requests in buffers the way its receivers do.
+ */
+public class DatagramEngineTest {
+
+	private static final int TIMEOUT = 5000;
+	/** Leaves 32 bytes of users per fragment. */
+	private static final int PAGE_SIZE = 96 + 32;
+
+	private Chatserver chatserver;
+	private DatagramEngine engine;
+	private ExecutorService receivers;
+	private DatagramSocket socket;
+
+	@Before
+	public void setUp() throws Exception {
+		Config config = new Config("chatserver");
+		config.setProperty("tcp.port", 0);
+		config.setProperty("udp.port", 0);
+		chatserver = new Chatserver("datagram", config, new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+		engine = new DatagramEngine(0, 1, config.getInt("udp.fragment.size"), chatserver.getSessions(),
+				new AdmissionControl(config, chatserver.getSessions()));
+		receivers = Executors.newSingleThreadExecutor();
+		engine.start(receivers);
+		socket = new DatagramSocket();
+		socket.setSoTimeout(TIMEOUT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		socket.close();
+		engine.close();
+		receivers.shutdownNow();
+		chatserver.exit();
+		// exit() interrupts the calling thread, which the tests share
+		Thread.interrupted();
+	}
+
+	@Test
+	public void commandsAndNumbersAreParsedInPlace() {
+		assertTrue(DatagramEngine.matches(buffer(" !list \n\0\0"), "!list".getBytes()));
+		assertFalse(DatagramEngine.matches(buffer("!lists"), "!list".getBytes()));
+		assertTrue(DatagramEngine.startsWith(buffer("!list 7"), "!list ".getBytes()));
+		assertFalse(DatagramEngine.startsWith(buffer("!list"), "!list ".getBytes()));
+
+		ByteBuffer request = buffer("12  0 345x 6");
+		assertEquals(12, DatagramEngine.nextNumber(request));
+		assertEquals(0, DatagramEngine.nextNumber(request));
+		assertEquals(345, DatagramEngine.nextNumber(request));
+		// stops at anything but a digit
+		assertEquals(-1, DatagramEngine.nextNumber(request));
+		assertEquals('x', request.get(request.position()));
+	}
+
+	@Test
+	public void plainListFollowsLogins() throws Exception {
+		assertEquals("", request("!list"));
+		login("bill.de");
+		login("alice.vienna.at");
+		String separator = System.lineSeparator();
+		assertEquals("alice.vienna.at" + separator + "bill.de" + separator, request("!list"));
+	}
+
+	@Test
+	public void otherDatagramsAreIgnored() throws Exception {
+		send("!lost");
+		send("!list x");
+		assertEquals("", request("!list"));
+	}
+
+	@Test
+	public void plainListIsCutShortToFitADatagram() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			login(String.format("user%04d.example.at", i));
+		}
+		String reply = request("!list");
+		assertTrue(reply.length() < Chatserver.UDP_BUFFER_SIZE);
+		String[] lines = reply.split(System.lineSeparator());
+		assertEquals("user0000.example.at", lines[0]);
+		int listed = lines.length - 1;
+		assertEquals(String.format("user%04d.example.at", listed - 1), lines[listed - 1]);
+		assertEquals("... " + (1000 - listed) + " more, ask for the paged list to get all of them", lines[listed]);
+	}
+
+	@Test
+	public void unknownVersionIsAnsweredWithTheFirstFragmentOnly() throws Exception {
+		restart(PAGE_SIZE);
+		loginUsers(100);
+		long version = chatserver.getSessions().getSnapshot().getVersion();
+		assertEquals("!list 5 " + version + " 0 25", header(request("!list 5")));
+		assertNothingReceived();
+		// an outdated version, whichever fragments it asks for
+		assertEquals("!list 6 " + version + " 0 25", header(request("!list 6 " + (version - 1) + " 3 4")));
+		assertNothingReceived();
+	}
+
+	@Test
+	public void requestIsAnsweredWithAWindowOfFragments() throws Exception {
+		restart(PAGE_SIZE);
+		loginUsers(100);
+		long version = chatserver.getSessions().getSnapshot().getVersion();
+		StringBuilder request = new StringBuilder("!list 7 " + version);
+		for (int seq = 1; seq < 25; seq++) {
+			request.append(' ').append(seq);
+		}
+		send(request.toString());
+		for (int seq = 1; seq <= DatagramEngine.MAX_PAGES_PER_REQUEST; seq++) {
+			assertEquals("!list 7 " + version + " " + seq + " 25", header(receive()));
+		}
+		assertNothingReceived();
+
+		// fragments that do not exist do not count
+		assertEquals("!list 8 " + version + " 24 25", header(request("!list 8 " + version + " 25 99 24")));
+		assertNothingReceived();
+	}
+
+	private void restart(int fragmentSize) throws IOException {
+		engine.close();
+		engine = new DatagramEngine(0, 1, fragmentSize, chatserver.getSessions(),
+				new AdmissionControl(chatserver.getConfig(), chatserver.getSessions()));
+		engine.start(receivers);
+	}
+
+	/**
+	 * Logs in users with names of 7 characters, so four of them fill a page.
+	 */
+	private void loginUsers(int count) {
+		for (int i = 0; i < count; i++) {
+			login(String.format("u%03d.at", i));
+		}
+	}
+
+	/**
+	 * Logs the given user in on a session of its own.
+	 */
+	private void login(String username) {
+		ClientHandler handler = new ClientHandler(new Closeable() {
+			@Override
+			public void close() {
+			}
+		}, "127.0.0.1", NullOutputStream.getInstance(), chatserver);
+		chatserver.getSessions().add(handler);
+		assertTrue(chatserver.getSessions().login(username, handler));
+	}
+
+	private String request(String request) throws IOException {
+		send(request);
+		return receive();
+	}
+
+	private void send(String request) throws IOException {
+		byte[] data = request.getBytes(StandardCharsets.UTF_8);
+		socket.send(new DatagramPacket(data, data.length, new InetSocketAddress("127.0.0.1", engine.getPort())));
+	}
+
+	private String receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[Chatserver.UDP_BUFFER_SIZE], Chatserver.UDP_BUFFER_SIZE);
+		socket.receive(packet);
+		return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+	}
+
+	private void assertNothingReceived() throws IOException {
+		socket.setSoTimeout(200);
+		try {
+			fail("received " + receive());
+		} catch (SocketTimeoutException e) {
+			// expected
+		} finally {
+			socket.setSoTimeout(TIMEOUT);
+		}
+	}
+
+	private static String header(String fragment) {
+		return fragment.substring(0, fragment.indexOf('\n'));
+	}
+
+	private static ByteBuffer buffer(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+	}
+}
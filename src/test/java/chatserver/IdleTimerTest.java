@@ -0,0 +1,119 @@
+package chatserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the wheel of an {@link IdleTimer} by hand, so expiry does not depend
+ * on the scheduler.
+ */
+public class IdleTimerTest {
+
+	private static final long TIMEOUT = 10000;
+	private static final long HEARTBEAT = 4000;
+	private static final long TICK = 100;
+
+	private Chatserver chatserver;
+	private IdleTimer timer;
+	private ByteArrayOutputStream log;
+
+	@Before
+	public void setUp() throws Exception {
+		Config config = new Config("chatserver");
+		config.setProperty("tcp.port", 0);
+		config.setProperty("udp.port", 0);
+		chatserver = new Chatserver("idle", config, new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+		log = new ByteArrayOutputStream();
+		timer = new IdleTimer(TIMEOUT, HEARTBEAT, TICK, new PrintStream(log, true));
+		// advanced by the test only
+		timer.close();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		chatserver.exit();
+		// exit() interrupts the calling thread, which the tests share
+		Thread.interrupted();
+	}
+
+	@Test
+	public void closesSessionOnceTimeoutPassed() {
+		ClientHandler session = connect();
+		long start = session.getLastActivity();
+
+		timer.advance(start + TIMEOUT - TICK);
+		assertFalse(session.isClosed());
+
+		timer.advance(start + TIMEOUT + TICK);
+		assertTrue(session.isClosed());
+		assertTrue(log.toString().contains("Closing idle session"));
+	}
+
+	@Test
+	public void pingsQuietSessionOncePerHeartbeat() {
+		ClientHandler session = connect();
+		long start = session.getLastActivity();
+
+		timer.advance(start + HEARTBEAT - TICK);
+		assertEquals(0, session.getLastPing());
+
+		timer.advance(start + HEARTBEAT + TICK);
+		long ping = session.getLastPing();
+		assertTrue(ping >= start + HEARTBEAT);
+
+		timer.advance(start + HEARTBEAT + 10 * TICK);
+		assertEquals(ping, session.getLastPing());
+
+		timer.advance(ping + HEARTBEAT + TICK);
+		assertTrue(session.getLastPing() > ping);
+		assertFalse(session.isClosed());
+	}
+
+	@Test
+	public void activityPostponesTimeout() throws Exception {
+		ClientHandler session = connect();
+		long start = session.getLastActivity();
+		Thread.sleep(2 * TICK);
+		session.dispatch("!pong");
+		long active = session.getLastActivity();
+		assertTrue(active > start);
+
+		timer.advance(start + TIMEOUT + TICK);
+		assertFalse(session.isClosed());
+
+		timer.advance(active + TIMEOUT + TICK);
+		assertTrue(session.isClosed());
+	}
+
+	@Test
+	public void skipsClosedSessions() {
+		ClientHandler session = connect();
+		long start = session.getLastActivity();
+		session.disconnect();
+
+		timer.advance(start + TIMEOUT + TICK);
+		assertEquals(0, session.getLastPing());
+		assertFalse(log.toString().contains("Closing idle session"));
+	}
+
+	private ClientHandler connect() {
+		ClientHandler session = new ClientHandler(new Closeable() {
+			@Override
+			public void close() {
+			}
+		}, "127.0.0.1", new ByteArrayOutputStream(), chatserver);
+		timer.add(session);
+		return session;
+	}
+}
@@ -0,0 +1,63 @@
+package chatserver;
+
+import org.junit.Test;
+import shared.BinaryProtocol;
+import shared.FrameEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes {@link Message}s the way their recipients do, checking that the
+ * encoding is done once and shared.
+ */
+public class MessageTest {
+
+	@Test
+	public void messageIsEncodedOncePerProtocol() {
+		Message message = Message.shared("!send alice.vienna.at hi");
+		assertTrue(message.isShared());
+		byte[] text = message.getBytes(false);
+		assertEquals("!send alice.vienna.at hi\n", new String(text, StandardCharsets.UTF_8));
+		assertSame(text, message.getBytes(false));
+
+		byte[] frame = message.getBytes(true);
+		assertArrayEquals(new FrameEncoder(BinaryProtocol.Direction.TO_CLIENT, false).encode(message.getLine()), frame);
+		assertSame(frame, message.getBytes(true));
+	}
+
+	@Test
+	public void lineFeedIsNotAddedTwice() {
+		assertEquals("hello\n", new String(new Message("hello\n").getBytes(false), StandardCharsets.UTF_8));
+		assertFalse(new Message("hello").isShared());
+	}
+
+	@Test
+	public void recipientsWriteFromDuplicatesOfOneBuffer() {
+		Message message = Message.shared("!send bill.de hello");
+		ByteBuffer buffer = message.getBuffer(false);
+		assertSame(buffer, message.getBuffer(false));
+		assertTrue(buffer.isReadOnly());
+		assertTrue(buffer.isDirect());
+		try {
+			buffer.duplicate().put(0, (byte) 'x');
+			fail("modified the shared buffer");
+		} catch (ReadOnlyBufferException e) {
+			// expected
+		}
+
+		ByteBuffer first = buffer.duplicate();
+		ByteBuffer second = buffer.duplicate();
+		byte[] bytes = new byte[first.remaining()];
+		first.get(bytes);
+		assertEquals("!send bill.de hello\n", new String(bytes, StandardCharsets.UTF_8));
+		// written by one recipient, still unread for the other
+		assertFalse(first.hasRemaining());
+		assertEquals(bytes.length, second.remaining());
+		assertEquals(bytes.length, buffer.remaining());
+		assertNotSame(buffer, message.getBuffer(true));
+	}
+}
@@ -0,0 +1,183 @@
+package chatserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the tasks of an {@link OutboundQueue} by hand, so what runs on the
+ * producer and what on the executors is plain to see.
+ */
+public class OutboundQueueTest {
+
+	private Chatserver chatserver;
+	private ClientHandler handler;
+	private ByteArrayOutputStream out;
+	private Tasks drainer;
+	private Tasks spiller;
+
+	@Before
+	public void setUp() throws Exception {
+		Config config = new Config("chatserver");
+		config.setProperty("tcp.port", 0);
+		config.setProperty("udp.port", 0);
+		chatserver = new Chatserver("outbound", config, new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+		out = new ByteArrayOutputStream();
+		handler = new ClientHandler(new Closeable() {
+			@Override
+			public void close() {
+			}
+		}, "127.0.0.1", out, chatserver);
+		drainer = new Tasks();
+		spiller = new Tasks();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		chatserver.exit();
+		// exit() interrupts the calling thread, which the tests share
+		Thread.interrupted();
+	}
+
+	@Test
+	public void spillingLeavesTheDiskToTheSpillExecutor() {
+		OutboundQueue queue = new OutboundQueue(handler, drainer, spiller, 4, OutboundQueue.Policy.SPILL);
+		offer(queue, 0, 50);
+		// nothing was written on this thread
+		assertEquals(1, drainer.size());
+		assertEquals(1, spiller.size());
+		assertEquals("", out.toString());
+
+		drainer.runAll();
+		assertEquals(lines(0, 4), written());
+		// later lines queue up behind the ones waiting to be spilled
+		offer(queue, 50, 60);
+		assertEquals(0, drainer.size());
+
+		spiller.runAll();
+		assertEquals(1, drainer.size());
+		offer(queue, 60, 70);
+		drainer.runAll();
+		spiller.runAll();
+		drainer.runAll();
+		assertEquals(lines(0, 70), written());
+		assertEquals(0, queue.getDropped());
+
+		// back to memory once the spill file is drained
+		offer(queue, 70, 72);
+		assertEquals(0, spiller.size());
+		drainer.runAll();
+		assertEquals(lines(0, 72), written());
+	}
+
+	@Test
+	public void closeDiscardsSpilledLines() {
+		OutboundQueue queue = new OutboundQueue(handler, drainer, spiller, 2, OutboundQueue.Policy.SPILL);
+		offer(queue, 0, 10);
+		spiller.runAll();
+		queue.close();
+		drainer.runAll();
+		spiller.runAll();
+		assertEquals("", out.toString());
+		offer(queue, 10, 12);
+		assertEquals(0, drainer.size());
+	}
+
+	@Test
+	public void dropOldestKeepsTheNewestLines() {
+		OutboundQueue queue = new OutboundQueue(handler, drainer, spiller, 3, OutboundQueue.Policy.DROP_OLDEST);
+		offer(queue, 0, 5);
+		drainer.runAll();
+		assertEquals(lines(2, 5), written());
+		assertEquals(2, queue.getDropped());
+		assertEquals(0, spiller.size());
+	}
+
+	@Test
+	public void disconnectClosesTheRecipient() {
+		OutboundQueue queue = new OutboundQueue(handler, drainer, spiller, 2, OutboundQueue.Policy.DISCONNECT);
+		offer(queue, 0, 2);
+		assertFalse(handler.isClosed());
+		offer(queue, 2, 3);
+		assertTrue(handler.isClosed());
+	}
+
+	@Test
+	public void heldQueueWaitsForResume() {
+		OutboundQueue queue = new OutboundQueue(handler, drainer, spiller, 8, OutboundQueue.Policy.DISCONNECT);
+		queue.hold();
+		offer(queue, 0, 3);
+		assertEquals(0, drainer.size());
+
+		queue.resume();
+		assertEquals(1, drainer.size());
+		drainer.runAll();
+		assertEquals(lines(0, 3), written());
+
+		// held while draining, it stops after the current message
+		offer(queue, 3, 6);
+		queue.hold();
+		drainer.runAll();
+		assertEquals(lines(0, 3), written());
+		queue.resume();
+		drainer.runAll();
+		assertEquals(lines(0, 6), written());
+	}
+
+	private static void offer(OutboundQueue queue, int from, int to) {
+		for (int i = from; i < to; i++) {
+			queue.offer(new Message("m" + i));
+		}
+	}
+
+	private static List<String> lines(int from, int to) {
+		List<String> lines = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			lines.add("m" + i);
+		}
+		return lines;
+	}
+
+	private List<String> written() {
+		String text = out.toString().trim();
+		return text.isEmpty() ? new ArrayList<String>() : Arrays.asList(text.split("\\r?\\n"));
+	}
+
+	/**
+	 * Keeps the tasks handed to it until the test runs them.
+	 */
+	private static class Tasks implements Executor {
+		private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		int size() {
+			return tasks.size();
+		}
+
+		void runAll() {
+			for (Runnable task; (task = tasks.poll()) != null;) {
+				task.run();
+			}
+		}
+	}
+}
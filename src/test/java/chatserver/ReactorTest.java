@@ -0,0 +1,172 @@
+package chatserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Talks to a {@link Reactor} over loopback, with commands split and merged
+ * across reads.
+ */
+public class ReactorTest {
+
+	private static final int TIMEOUT = 5000;
+	private static final int MAX_PENDING = 16384;
+
+	private Chatserver chatserver;
+	private Reactor reactor;
+
+	@Before
+	public void setUp() throws Exception {
+		Config config = new Config("chatserver");
+		config.setProperty("tcp.mode", "reactor");
+		config.setProperty("tcp.port", 0);
+		config.setProperty("udp.port", 0);
+		config.setProperty("rate.user.commands", 0);
+		config.setProperty("rate.user.bytes", 0);
+		config.setProperty("outbound.capacity", 256);
+		config.setProperty("outbound.policy", "disconnect");
+		chatserver = new Chatserver("reactor", config, new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+		reactor = new Reactor(0, 1, MAX_PENDING, chatserver);
+		new Thread(reactor, "reactor-accept").start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		reactor.close();
+		chatserver.exit();
+		// exit() interrupts the calling thread, which the tests share
+		Thread.interrupted();
+	}
+
+	@Test
+	public void linesSplitAcrossReadsAreJoined() throws Exception {
+		try (Socket socket = connect()) {
+			BufferedReader in = reader(socket);
+			OutputStream out = socket.getOutputStream();
+			for (String piece : new String[] { "!log", "in alice.vien", "na.at 123", "45", "\n" }) {
+				out.write(piece.getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				Thread.sleep(20);
+			}
+			assertEquals("Successfully logged in.", in.readLine());
+		}
+	}
+
+	@Test
+	public void commandsOfOneReadAreAllDispatched() throws Exception {
+		try (Socket socket = connect()) {
+			BufferedReader in = reader(socket);
+			write(socket, "!login alice.vienna.at 12345\n!logout\n!logout\n!login bill.de 23456\n");
+			assertEquals("Successfully logged in.", in.readLine());
+			assertEquals("Successfully logged out.", in.readLine());
+			assertEquals("You have to log in!", in.readLine());
+			assertEquals("Successfully logged in.", in.readLine());
+		}
+	}
+
+	@Test
+	public void linesEndAtLineFeedCarriageReturnOrBoth() throws Exception {
+		try (Socket socket = connect()) {
+			BufferedReader in = reader(socket);
+			write(socket, "!login alice.vienna.at 12345\r!logout\r\n!logout\n");
+			assertEquals("Successfully logged in.", in.readLine());
+			assertEquals("Successfully logged out.", in.readLine());
+			assertEquals("You have to log in!", in.readLine());
+
+			// a CRLF split across reads ends one line only
+			write(socket, "!login bill.de 23456\r");
+			Thread.sleep(50);
+			write(socket, "\n!logout\n");
+			assertEquals("Successfully logged in.", in.readLine());
+			assertEquals("Successfully logged out.", in.readLine());
+		}
+	}
+
+	@Test
+	public void closedConnectionLogsOutItsUser() throws Exception {
+		Socket socket = connect();
+		write(socket, "!login alice.vienna.at 12345\n");
+		assertEquals("Successfully logged in.", reader(socket).readLine());
+		assertTrue(chatserver.getSessions().getUsersOnline().contains("alice.vienna.at"));
+		socket.close();
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!chatserver.getSessions().getSessions().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(chatserver.getSessions().getSessions().isEmpty());
+		assertTrue(chatserver.getSessions().getUsersOnline().isEmpty());
+
+		// the user may log in again on a new connection
+		try (Socket again = connect()) {
+			write(again, "!login alice.vienna.at 12345\n");
+			assertEquals("Successfully logged in.", reader(again).readLine());
+		}
+	}
+
+	@Test
+	public void recipientNotReadingMeetsTheSlowConsumerPolicy() throws Exception {
+		Socket stalled = new Socket();
+		// keeps the bytes in flight to the recipient few
+		stalled.setReceiveBufferSize(4096);
+		stalled.connect(new InetSocketAddress("127.0.0.1", reactor.getPort()));
+		write(stalled, "!login bill.de 23456\n");
+		assertEquals("Successfully logged in.", reader(stalled).readLine());
+
+		try (Socket sender = connect()) {
+			write(sender, "!login alice.vienna.at 12345\n");
+			assertEquals("Successfully logged in.", reader(sender).readLine());
+			char[] text = new char[16384];
+			Arrays.fill(text, 'x');
+			String line = "!send " + new String(text) + "\n";
+			long deadline = System.currentTimeMillis() + 4 * TIMEOUT;
+			// far more than the socket buffers hold, unless the recipient is cut off first
+			for (int i = 0; i < 4096 && isOnline("bill.de") && System.currentTimeMillis() < deadline; i++) {
+				write(sender, line);
+			}
+			while (isOnline("bill.de") && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertFalse("disconnected as a slow consumer", isOnline("bill.de"));
+			assertTrue(isOnline("alice.vienna.at"));
+		} finally {
+			stalled.close();
+		}
+	}
+
+	private boolean isOnline(String username) {
+		return chatserver.getSessions().getUsersOnline().contains(username);
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket("127.0.0.1", reactor.getPort());
+		socket.setSoTimeout(TIMEOUT);
+		return socket;
+	}
+
+	private static BufferedReader reader(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	private static void write(Socket socket, String data) throws IOException {
+		socket.getOutputStream().write(data.getBytes(StandardCharsets.UTF_8));
+		socket.getOutputStream().flush();
+	}
+}
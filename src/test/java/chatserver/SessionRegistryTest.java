@@ -0,0 +1,169 @@
+package chatserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logs users in and out of the {@link SessionRegistry} of a chatserver, some
+ * of them racing each other, and checks the snapshots taken in between.
+ */
+public class SessionRegistryTest {
+
+	private Chatserver chatserver;
+	private SessionRegistry sessions;
+
+	@Before
+	public void setUp() throws Exception {
+		Config config = new Config("chatserver");
+		config.setProperty("tcp.port", 0);
+		config.setProperty("udp.port", 0);
+		chatserver = new Chatserver("sessions", config, new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+		sessions = chatserver.getSessions();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		chatserver.exit();
+		// exit() interrupts the calling thread, which the tests share
+		Thread.interrupted();
+	}
+
+	@Test
+	public void userIsLoggedInOnOneSessionOnly() throws Exception {
+		ClientHandler first = connect();
+		ClientHandler second = connect();
+		assertEquals("Successfully logged in.", first.login("alice.vienna.at", "12345"));
+		assertEquals("alice.vienna.at is already logged in on another connection.",
+				second.login("alice.vienna.at", "12345"));
+		assertSame(first, sessions.lookup("alice.vienna.at"));
+		assertNull(second.getUsername());
+
+		// logging in again on the same session is fine
+		assertTrue(sessions.login("alice.vienna.at", first));
+		assertFalse(sessions.login("alice.vienna.at", second));
+	}
+
+	@Test
+	public void concurrentLoginsLetOneSessionWin() throws Exception {
+		final List<ClientHandler> handlers = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			handlers.add(connect());
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger succeeded = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (final ClientHandler handler : handlers) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						if (sessions.login("bill.de", handler)) {
+							succeeded.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "login");
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, succeeded.get());
+		assertEquals(1, sessions.getLoggedIn().size());
+		assertTrue(handlers.contains(sessions.lookup("bill.de")));
+	}
+
+	@Test
+	public void logoutOnlyAffectsTheOwnSession() throws Exception {
+		ClientHandler first = connect();
+		ClientHandler second = connect();
+		first.login("alice.vienna.at", "12345");
+		sessions.logout("alice.vienna.at", second);
+		assertSame(first, sessions.lookup("alice.vienna.at"));
+
+		sessions.logout("alice.vienna.at", first);
+		assertNull(sessions.lookup("alice.vienna.at"));
+		assertEquals("Successfully logged in.", second.login("alice.vienna.at", "12345"));
+	}
+
+	@Test
+	public void removedSessionLogsOutItsUser() throws Exception {
+		ClientHandler handler = connect();
+		handler.login("alice.vienna.at", "12345");
+		assertTrue(sessions.getSessions().contains(handler));
+		assertTrue(sessions.getUsersOnline().contains("alice.vienna.at"));
+
+		sessions.remove(handler);
+		assertFalse(sessions.getSessions().contains(handler));
+		assertFalse(sessions.getUsersOnline().contains("alice.vienna.at"));
+		assertTrue(sessions.getLoggedIn().isEmpty());
+	}
+
+	@Test
+	public void snapshotIsSharedUntilTheNextLoginOrLogout() throws Exception {
+		OnlineSnapshot empty = sessions.getSnapshot();
+		assertTrue(empty.getUsers().isEmpty());
+		assertSame(empty, sessions.getSnapshot());
+
+		ClientHandler bill = connect();
+		ClientHandler alice = connect();
+		bill.login("bill.de", "23456");
+		alice.login("alice.vienna.at", "12345");
+		OnlineSnapshot both = sessions.getSnapshot();
+		assertEquals(empty.getVersion() + 2, both.getVersion());
+		assertEquals(Arrays.asList("alice.vienna.at", "bill.de"), both.getUsers());
+		assertEquals("alice.vienna.at" + System.lineSeparator() + "bill.de" + System.lineSeparator(),
+				reply(both));
+		assertSame(both, sessions.getSnapshot());
+
+		// a failed login changes nothing
+		connect().login("bill.de", "23456");
+		assertSame(both, sessions.getSnapshot());
+
+		bill.logout();
+		OnlineSnapshot one = sessions.getSnapshot();
+		assertEquals(both.getVersion() + 1, one.getVersion());
+		assertEquals(Arrays.asList("alice.vienna.at"), one.getUsers());
+		// taken earlier, it does not change
+		assertEquals(Arrays.asList("alice.vienna.at", "bill.de"), both.getUsers());
+	}
+
+	private static String reply(OnlineSnapshot snapshot) {
+		ByteBuffer buffer = snapshot.getReplyBuffer().duplicate();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private ClientHandler connect() {
+		ClientHandler handler = new ClientHandler(new Closeable() {
+			@Override
+			public void close() {
+			}
+		}, "127.0.0.1", NullOutputStream.getInstance(), chatserver);
+		sessions.add(handler);
+		return handler;
+	}
+}
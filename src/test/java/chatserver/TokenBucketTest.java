@@ -0,0 +1,69 @@
+package chatserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the debt and refill of a {@link TokenBucket} on a clock of its own.
+ */
+public class TokenBucketTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void burstUpToCapacityIsFree() {
+		TokenBucket bucket = new TokenBucket(10, 20, 0);
+		for (int i = 0; i < 20; i++) {
+			assertPause(0, bucket.take(1, 0));
+		}
+		assertFalse(bucket.isFull(0));
+	}
+
+	@Test
+	public void debtIsPaidOffAtTheRate() {
+		TokenBucket bucket = new TokenBucket(10, 20, 0);
+		assertPause(0, bucket.take(20, 0));
+		// five tokens short at ten per second
+		assertPause(SECOND / 2, bucket.take(5, 0));
+		assertPause(SECOND / 10, bucket.take(0, SECOND * 4 / 10));
+		assertPause(0, bucket.take(0, SECOND / 2));
+	}
+
+	@Test
+	public void debtAccumulatesAcrossTakes() {
+		TokenBucket bucket = new TokenBucket(100, 1, 0);
+		assertPause(0, bucket.take(1, 0));
+		assertPause(SECOND / 100, bucket.take(1, 0));
+		assertPause(SECOND * 3 / 100, bucket.take(2, 0));
+	}
+
+	@Test
+	public void refillStopsAtCapacity() {
+		TokenBucket bucket = new TokenBucket(10, 20, 0);
+		bucket.take(20, 0);
+		assertFalse(bucket.isFull(SECOND));
+		assertTrue(bucket.isFull(2 * SECOND));
+		// an hour of silence buys no more than the capacity
+		long later = 3600 * SECOND;
+		assertPause(0, bucket.take(20, later));
+		assertPause(SECOND / 10, bucket.take(1, later));
+	}
+
+	@Test
+	public void capacityIsAtLeastOne() {
+		TokenBucket bucket = new TokenBucket(1, 0, 0);
+		assertTrue(bucket.isFull(0));
+		assertPause(0, bucket.take(1, 0));
+		assertPause(SECOND, bucket.take(1, 0));
+	}
+
+	/**
+	 * Rates are kept as floating point, so pauses may be a nanosecond off.
+	 */
+	private static void assertPause(long expected, long actual) {
+		assertEquals(expected, actual, 1);
+	}
+}
@@ -0,0 +1,126 @@
+package client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the expiry, bound and refreshes of an {@link AddressCache}, with a
+ * refresher that only records whom it was asked to look up.
+ */
+public class AddressCacheTest {
+
+	private static final long TTL = 200;
+	private static final long NEGATIVE_TTL = 50;
+
+	private final List<String> refreshes = Collections.synchronizedList(new ArrayList<String>());
+	private AddressCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new AddressCache(3, TTL, NEGATIVE_TTL, 2, new Consumer<String>() {
+			@Override
+			public void accept(String username) {
+				refreshes.add(username);
+			}
+		});
+	}
+
+	@Test
+	public void addressExpiresAfterItsTtl() throws InterruptedException {
+		cache.put("bill.de", "127.0.0.1:1");
+		assertEquals("127.0.0.1:1", cache.get("bill.de").getAddress());
+		assertEquals("127.0.0.1:1", cache.peek("bill.de"));
+
+		Thread.sleep(TTL + 20);
+		assertNull(cache.get("bill.de"));
+		assertNull(cache.peek("bill.de"));
+	}
+
+	@Test
+	public void negativeAnswerExpiresSooner() throws InterruptedException {
+		cache.putNegative("bill.de", "bill.de is not online.");
+		AddressCache.Entry entry = cache.get("bill.de");
+		assertNull(entry.getAddress());
+		assertEquals("bill.de is not online.", entry.getReason());
+		assertTrue(entry.getRemaining() <= NEGATIVE_TTL);
+		// only addresses can be delivered to
+		assertNull(cache.peek("bill.de"));
+
+		Thread.sleep(NEGATIVE_TTL + 20);
+		assertNull(cache.get("bill.de"));
+		assertNull(cache.peek("bill.de"));
+		assertTrue(refreshes.isEmpty());
+	}
+
+	@Test
+	public void addressReplacesNegativeAnswer() {
+		cache.putNegative("bill.de", "bill.de is not online.");
+		cache.put("bill.de", "127.0.0.1:1");
+		assertEquals("127.0.0.1:1", cache.get("bill.de").getAddress());
+	}
+
+	@Test
+	public void leastRecentlyUsedIsDropped() {
+		cache.put("a.at", "127.0.0.1:1");
+		cache.put("b.at", "127.0.0.1:2");
+		cache.putNegative("c.at", "c.at is not online.");
+		cache.get("a.at");
+		cache.put("d.at", "127.0.0.1:4");
+
+		assertEquals(3, cache.size());
+		assertNull(cache.get("b.at"));
+		assertNotNull(cache.get("a.at"));
+		assertNotNull(cache.get("c.at"));
+		assertNotNull(cache.get("d.at"));
+	}
+
+	@Test
+	public void frequentContactIsRefreshedAheadOnce() throws InterruptedException {
+		cache.put("bill.de", "127.0.0.1:1");
+		cache.get("bill.de");
+		cache.get("bill.de");
+		// not yet close enough to expiry
+		assertTrue(refreshes.isEmpty());
+
+		Thread.sleep(TTL - 30);
+		assertNotNull(cache.get("bill.de"));
+		assertNotNull(cache.get("bill.de"));
+		assertEquals(Arrays.asList("bill.de"), refreshes);
+
+		cache.put("bill.de", "127.0.0.1:2");
+		assertEquals("127.0.0.1:2", cache.get("bill.de").getAddress());
+		assertEquals(1, refreshes.size());
+	}
+
+	@Test
+	public void failedRefreshMayBeRetried() throws InterruptedException {
+		cache.put("bill.de", "127.0.0.1:1");
+		Thread.sleep(TTL + 20);
+		assertNull(cache.peek("bill.de"));
+		assertNull(cache.peek("bill.de"));
+		assertEquals(Arrays.asList("bill.de"), refreshes);
+
+		// the lookup failed, the expired entry is still there
+		cache.refreshed("bill.de");
+		assertNull(cache.peek("bill.de"));
+		assertEquals(Arrays.asList("bill.de", "bill.de"), refreshes);
+	}
+
+	@Test
+	public void invalidateOnlyForgetsTheAddressGiven() {
+		cache.put("bill.de", "127.0.0.1:2");
+		cache.invalidate("bill.de", "127.0.0.1:1");
+		assertEquals("127.0.0.1:2", cache.peek("bill.de"));
+		cache.invalidate("bill.de", "127.0.0.1:2");
+		assertNull(cache.peek("bill.de"));
+		assertEquals(0, cache.size());
+	}
+}
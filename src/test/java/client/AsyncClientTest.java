@@ -0,0 +1,184 @@
+package client;
+
+import chatserver.Chatserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives two {@link AsyncClient}s against a chatserver on the configured
+ * ports, like the scenario tests do.
+ */
+public class AsyncClientTest {
+
+	private static final int TIMEOUT = 5000;
+
+	private Chatserver chatserver;
+	private AsyncClient alice;
+	private AsyncClient bill;
+
+	@Before
+	public void setUp() throws Exception {
+		chatserver = new Chatserver("chatserver", new Config("chatserver"), new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+		new Thread(chatserver, "chatserver").start();
+		alice = connect();
+		bill = connect();
+		get(alice.login("alice.vienna.at", "12345"));
+		get(bill.login("bill.de", "23456"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		alice.close();
+		bill.close();
+		chatserver.exit();
+		// exit() interrupts the calling thread, which the tests share
+		Thread.interrupted();
+	}
+
+	@Test
+	public void publicMessageIsPublishedToTheOthers() throws Exception {
+		BlockingQueue<AsyncClient.Message> received = subscribe(bill);
+		get(alice.send("hello everybody"));
+		AsyncClient.Message message = received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals("alice.vienna.at", message.getSender());
+		assertEquals("hello everybody", message.getText());
+		assertFalse(message.isPrivate());
+	}
+
+	@Test
+	public void failedRequestFailsItsFuture() throws Exception {
+		AsyncClient other = connect();
+		try {
+			other.login("bill.de", "wrong").get(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("logged in with a wrong password");
+		} catch (ExecutionException e) {
+			assertEquals("Wrong username or password.", e.getCause().getMessage());
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void privateMessageReachesTheRegisteredAddress() throws Exception {
+		BlockingQueue<AsyncClient.Message> received = subscribe(bill);
+		String address = "127.0.0.1:" + freePort();
+		get(bill.register(address));
+		assertEquals(address, get(alice.lookup("bill.de")));
+
+		get(alice.msg("bill.de", "just for you"));
+		AsyncClient.Message message = received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals("alice.vienna.at", message.getSender());
+		assertEquals("just for you", message.getText());
+		assertTrue(message.isPrivate());
+	}
+
+	@Test
+	public void concurrentRegistrationsShareOneListener() throws Exception {
+		final String address = "127.0.0.1:" + freePort();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<CompletableFuture<Void>> registered = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			final CompletableFuture<Void> result = new CompletableFuture<>();
+			registered.add(result);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						bill.register(address).whenComplete(new BiConsumer<Void, Throwable>() {
+							@Override
+							public void accept(Void value, Throwable failure) {
+								if (failure != null) {
+									result.completeExceptionally(failure);
+								} else {
+									result.complete(null);
+								}
+							}
+						});
+					} catch (InterruptedException e) {
+						result.completeExceptionally(e);
+					}
+				}
+			}, "register");
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(TIMEOUT);
+		}
+		// none of them failed to bind the port taken by another
+		for (CompletableFuture<Void> result : registered) {
+			get(result);
+		}
+	}
+
+	@Test
+	public void listHasTheUsersOnline() throws Exception {
+		List<String> users = get(alice.list());
+		assertTrue(users.toString(), users.contains("alice.vienna.at"));
+		assertTrue(users.toString(), users.contains("bill.de"));
+	}
+
+	private static AsyncClient connect() throws IOException {
+		AsyncClient client = new AsyncClient(new Config("client"));
+		client.connect();
+		return client;
+	}
+
+	private static BlockingQueue<AsyncClient.Message> subscribe(AsyncClient client) {
+		final BlockingQueue<AsyncClient.Message> received = new LinkedBlockingQueue<>();
+		client.messages().subscribe(new Flow.Subscriber<AsyncClient.Message>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(AsyncClient.Message message) {
+				received.add(message);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+		return received;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static <T> T get(CompletableFuture<T> future) throws Exception {
+		return future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+}
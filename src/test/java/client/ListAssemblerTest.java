@@ -0,0 +1,134 @@
+package client;
+
+import chatserver.DatagramEngine;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hands a {@link ListAssembler} the fragments of a {@code !list} reply in any
+ * order, with some lost, repeated or stale.
+ */
+public class ListAssemblerTest {
+
+	@Test
+	public void fragmentsArriveOutOfOrder() {
+		ListAssembler assembler = new ListAssembler(7);
+		assertTrue(add(assembler, "!list 7 1 2 3", "carol.at online\n"));
+		assertTrue(add(assembler, "!list 7 1 0 3", "alice.vienna.at online\n"));
+		assertFalse(assembler.isComplete());
+		assertTrue(add(assembler, "!list 7 1 1 3", "bill.de offline\n"));
+		assertTrue(assembler.isComplete());
+		assertEquals("alice.vienna.at online\nbill.de offline\ncarol.at online\n", assembler.getList());
+	}
+
+	@Test
+	public void retransmitAsksForMissingFragmentsOnly() {
+		ListAssembler assembler = new ListAssembler(7);
+		assertEquals("!list 7", assembler.retransmitRequest());
+		add(assembler, "!list 7 3 1 5", "b\n");
+		add(assembler, "!list 7 3 3 5", "d\n");
+		// only fragments known to have been sent are missing
+		assertEquals("!list 7 3 0 2", assembler.retransmitRequest());
+
+		add(assembler, "!list 7 3 0 5", "a\n");
+		add(assembler, "!list 7 3 4 5", "e\n");
+		assertEquals("!list 7 3 2", assembler.retransmitRequest());
+		add(assembler, "!list 7 3 2 5", "c\n");
+		assertTrue(assembler.isComplete());
+		assertEquals("a\nb\nc\nd\ne\n", assembler.getList());
+	}
+
+	@Test
+	public void fragmentsAreAskedForWindowByWindow() {
+		ListAssembler assembler = new ListAssembler(1);
+		assertNull(assembler.nextRequest());
+		add(assembler, "!list 1 4 0 40", "a\n");
+		assertEquals("!list 1 4" + seqs(1, 17), assembler.nextRequest());
+		// nothing more until the window arrived
+		assertNull(assembler.nextRequest());
+		assertEquals("!list 1 4" + seqs(1, 17), assembler.retransmitRequest());
+
+		for (int seq = 1; seq < 16; seq++) {
+			add(assembler, "!list 1 4 " + seq + " 40", "a\n");
+			assertNull(assembler.nextRequest());
+		}
+		assertEquals("!list 1 4 16", assembler.retransmitRequest());
+		add(assembler, "!list 1 4 16 40", "a\n");
+		assertEquals("!list 1 4" + seqs(17, 33), assembler.nextRequest());
+		for (int seq = 17; seq < 33; seq++) {
+			add(assembler, "!list 1 4 " + seq + " 40", "a\n");
+		}
+		assertEquals("!list 1 4" + seqs(33, 40), assembler.nextRequest());
+		for (int seq = 33; seq < 40; seq++) {
+			add(assembler, "!list 1 4 " + seq + " 40", "a\n");
+		}
+		assertNull(assembler.nextRequest());
+		assertTrue(assembler.isComplete());
+	}
+
+	@Test
+	public void retransmitRequestIsBounded() {
+		ListAssembler assembler = new ListAssembler(1);
+		// sent unasked, as an older chatserver does
+		add(assembler, "!list 1 0 999 1000", "a\n");
+		String[] parts = assembler.retransmitRequest().split(" ");
+		// command, request and version, then the missing fragments
+		assertEquals(3 + DatagramEngine.MAX_PAGES_PER_REQUEST, parts.length);
+		assertEquals("0", parts[3]);
+	}
+
+	@Test
+	public void duplicatesAndOtherRequestsAreIgnored() {
+		ListAssembler assembler = new ListAssembler(7);
+		assertTrue(add(assembler, "!list 7 1 0 2", "a\n"));
+		assertFalse(add(assembler, "!list 7 1 0 2", "a\n"));
+		assertFalse(add(assembler, "!list 6 1 1 2", "stale\n"));
+		assertFalse(add(assembler, "!list 7 1 2 2", "out of range\n"));
+		assertFalse(add(assembler, "!list 7 x 1 2", "garbage\n"));
+		assertFalse(add(assembler, "hello", ""));
+		assertFalse(assembler.isComplete());
+		assertTrue(add(assembler, "!list 7 1 1 2", "b\n"));
+		assertEquals("a\nb\n", assembler.getList());
+	}
+
+	@Test
+	public void newerVersionDiscardsOlderFragments() {
+		ListAssembler assembler = new ListAssembler(7);
+		add(assembler, "!list 7 1 0 2", "old\n");
+		assertTrue(add(assembler, "!list 7 2 1 3", "b\n"));
+		assertFalse(add(assembler, "!list 7 1 1 2", "old\n"));
+		assertEquals("!list 7 2 0", assembler.retransmitRequest());
+		add(assembler, "!list 7 2 0 3", "a\n");
+		add(assembler, "!list 7 2 2 3", "c\n");
+		assertTrue(assembler.isComplete());
+		assertEquals("a\nb\nc\n", assembler.getList());
+	}
+
+	@Test
+	public void busyReplyIsRemembered() {
+		ListAssembler assembler = new ListAssembler(7);
+		assertEquals(-1, assembler.getRetryAfter());
+		assertFalse(add(assembler, "!busy 250", ""));
+		assertEquals(250, assembler.getRetryAfter());
+		assertFalse(assembler.isComplete());
+	}
+
+	private static String seqs(int from, int to) {
+		StringBuilder builder = new StringBuilder();
+		for (int seq = from; seq < to; seq++) {
+			builder.append(' ').append(seq);
+		}
+		return builder.toString();
+	}
+
+	private static boolean add(ListAssembler assembler, String header, String users) {
+		byte[] datagram = (header + "\n" + users).getBytes(StandardCharsets.UTF_8);
+		// received into a larger buffer
+		byte[] buffer = new byte[datagram.length + 16];
+		System.arraycopy(datagram, 0, buffer, 0, datagram.length);
+		return assembler.add(buffer, datagram.length);
+	}
+}
@@ -0,0 +1,251 @@
+package client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends private messages through a {@link PeerConnectionPool} to a peer
+ * played by the test, which reads the lines and acknowledges them by hand.
+ */
+public class PeerConnectionPoolTest {
+
+	private static final int ACK_TIMEOUT = 5000;
+
+	private ServerSocket server;
+	private String address;
+	private PeerConnectionPool pool;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0);
+		server.setSoTimeout(ACK_TIMEOUT);
+		address = "127.0.0.1:" + server.getLocalPort();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (pool != null) {
+			pool.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void conversationReusesOneConnection() throws Exception {
+		pool = new PeerConnectionPool(0, 60000, ACK_TIMEOUT, 1);
+		CompletableFuture<String> first = pool.send("bill.de", address, "hello");
+		Connection connection = accept();
+		assertTrue(connection.readLine().startsWith("!stream "));
+		assertEquals("#1 hello", connection.readLine());
+		connection.writeLine("#1 !ack");
+		assertEquals("!ack", first.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+
+		CompletableFuture<String> second = pool.send("bill.de", address, "again");
+		assertEquals("#2 again", connection.readLine());
+		connection.writeLine("#2 !ack");
+		assertEquals("!ack", second.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+
+		assertEquals(1, pool.size());
+		assertNoConnection();
+	}
+
+	@Test
+	public void idleConnectionIsClosed() throws Exception {
+		pool = new PeerConnectionPool(0, 100, ACK_TIMEOUT, 1);
+		CompletableFuture<String> ack = pool.send("bill.de", address, "hello");
+		Connection connection = accept();
+		connection.readLine();
+		connection.readLine();
+		connection.writeLine("#1 !ack");
+		ack.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals(1, pool.size());
+
+		// closed by the sweep, seen as the end of the stream
+		assertNull(connection.readLine());
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void connectionClosedByPeerIsReplaced() throws Exception {
+		pool = new PeerConnectionPool(0, 60000, ACK_TIMEOUT, 1);
+		CompletableFuture<String> first = pool.send("bill.de", address, "hello");
+		Connection connection = accept();
+		String stream = connection.readLine();
+		connection.readLine();
+		connection.writeLine("#1 !ack");
+		first.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+		connection.close();
+
+		CompletableFuture<String> second = pool.send("bill.de", address, "again");
+		Connection replacement = accept();
+		// the same stream, so the listener can tell messages sent again
+		assertEquals(stream, replacement.readLine());
+		assertEquals("#2 again", replacement.readLine());
+		replacement.writeLine("#2 !ack");
+		assertEquals("!ack", second.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void windowOfMessagesIsSentWithoutWaiting() throws Exception {
+		pool = new PeerConnectionPool(0, 60000, ACK_TIMEOUT, 3);
+		CompletableFuture<String> first = pool.send("bill.de", address, "one");
+		CompletableFuture<String> second = pool.send("bill.de", address, "two");
+		CompletableFuture<String> third = pool.send("bill.de", address, "three");
+		Connection connection = accept();
+		connection.readLine();
+		assertEquals("#1 one", connection.readLine());
+		assertEquals("#2 two", connection.readLine());
+		assertEquals("#3 three", connection.readLine());
+
+		Sender fourth = new Sender("four");
+		assertTrue("blocked while the window is full", fourth.isBlocked());
+		connection.writeLine("#1 !ack");
+		assertEquals("!ack", first.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals("#4 four", connection.readLine());
+		assertFalse(second.isDone());
+		assertFalse(third.isDone());
+		fourth.await();
+	}
+
+	@Test
+	public void acknowledgementCoversAllMessagesBefore() throws Exception {
+		pool = new PeerConnectionPool(0, 60000, ACK_TIMEOUT, 10);
+		CompletableFuture<String> first = pool.send("bill.de", address, "one");
+		CompletableFuture<String> second = pool.send("bill.de", address, "two");
+		CompletableFuture<String> third = pool.send("bill.de", address, "three");
+		Connection connection = accept();
+		for (int i = 0; i < 4; i++) {
+			connection.readLine();
+		}
+		connection.writeLine("#2 !ack");
+		assertEquals("!ack", first.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals("!ack", second.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+		assertFalse(third.isDone());
+		connection.writeLine("#3 !ack");
+		assertEquals("!ack", third.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void senderBlockedOnEvictedConnectionUsesAFreshOne() throws Exception {
+		pool = new PeerConnectionPool(0, 60000, ACK_TIMEOUT, 1);
+		CompletableFuture<String> first = pool.send("bill.de", address, "one");
+		Connection connection = accept();
+		String stream = connection.readLine();
+		connection.readLine();
+		Sender second = new Sender("two");
+		assertTrue(second.isBlocked());
+
+		pool.evict("bill.de");
+		assertTrue(first.isCompletedExceptionally());
+		Connection replacement = accept();
+		assertNotEquals(stream, replacement.readLine());
+		assertEquals("#1 two", replacement.readLine());
+		replacement.writeLine("#1 !ack");
+		assertEquals("!ack", second.await().get(ACK_TIMEOUT, TimeUnit.MILLISECONDS));
+		// the evicted connection did not send it, nor stay open
+		assertNull(connection.readLine());
+	}
+
+	@Test
+	public void senderBlockedWhileThePoolClosesFails() throws Exception {
+		pool = new PeerConnectionPool(0, 60000, ACK_TIMEOUT, 1);
+		CompletableFuture<String> first = pool.send("bill.de", address, "one");
+		Connection connection = accept();
+		connection.readLine();
+		connection.readLine();
+		Sender second = new Sender("two");
+		assertTrue(second.isBlocked());
+
+		pool.close();
+		assertTrue(first.isCompletedExceptionally());
+		assertTrue(second.await().isCompletedExceptionally());
+		assertNull(connection.readLine());
+		assertEquals(0, pool.size());
+	}
+
+	private Connection accept() throws IOException {
+		return new Connection(server.accept());
+	}
+
+	private void assertNoConnection() throws IOException {
+		server.setSoTimeout(100);
+		try {
+			server.accept().close();
+			fail("opened a second connection");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Sends a line to bill.de on a thread of its own, as it may block.
+	 */
+	private class Sender extends Thread {
+		private final String line;
+		private volatile CompletableFuture<String> ack;
+
+		Sender(String line) {
+			super("sender");
+			this.line = line;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			ack = pool.send("bill.de", address, line);
+		}
+
+		boolean isBlocked() throws InterruptedException {
+			join(200);
+			return isAlive();
+		}
+
+		CompletableFuture<String> await() throws InterruptedException {
+			join(ACK_TIMEOUT);
+			assertFalse("still blocked", isAlive());
+			return ack;
+		}
+	}
+
+	/**
+	 * The side of the peer of a pooled connection.
+	 */
+	private static class Connection {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final PrintWriter out;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setSoTimeout(ACK_TIMEOUT);
+			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			this.out = new PrintWriter(socket.getOutputStream(), true);
+		}
+
+		String readLine() throws IOException {
+			return in.readLine();
+		}
+
+		void writeLine(String line) {
+			out.println(line);
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends private messages to a {@link PeerListener} the way
+ * {@link PeerConnectionPool} does, including messages sent again over a new
+ * connection.
+ */
+public class PeerListenerTest {
+
+	private static final int TIMEOUT = 5000;
+	private static final int MAX_LENGTH = 256;
+
+	private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+	private final BlockingQueue<IOException> failures = new LinkedBlockingQueue<>();
+	private PeerListener listener;
+
+	@Before
+	public void setUp() throws IOException {
+		listener = new PeerListener(0, MAX_LENGTH, new PeerListener.Receiver() {
+			@Override
+			public void received(String message) {
+				received.add(message);
+			}
+
+			@Override
+			public void failed(IOException cause) {
+				failures.add(cause);
+			}
+		});
+		new Thread(listener, "peer-listener").start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		listener.close();
+	}
+
+	@Test
+	public void untaggedMessagesAreAcknowledgedOneByOne() throws Exception {
+		try (Socket socket = connect()) {
+			write(socket, "alice.vienna.at: hello\r\nalice.vienna.at: again\n");
+			BufferedReader in = reader(socket);
+			assertEquals("!ack", in.readLine());
+			assertEquals("!ack", in.readLine());
+			assertEquals("alice.vienna.at: hello", next());
+			assertEquals("alice.vienna.at: again", next());
+		}
+	}
+
+	@Test
+	public void streamIsAcknowledgedUpToTheLatestMessage() throws Exception {
+		try (Socket socket = connect()) {
+			BufferedReader in = reader(socket);
+			write(socket, "!stream s1\n#1 one\n#2 two\n");
+			awaitAck(in, 2);
+			write(socket, "#3 three\n");
+			awaitAck(in, 3);
+			assertEquals("one", next());
+			assertEquals("two", next());
+			assertEquals("three", next());
+		}
+	}
+
+	@Test
+	public void messagesSentAgainAreDroppedButAcknowledged() throws Exception {
+		try (Socket first = connect()) {
+			write(first, "!stream s1\n#1 one\n#2 two\n");
+			awaitAck(reader(first), 2);
+		}
+		// the acknowledgement was lost, so the sender tries again
+		try (Socket second = connect()) {
+			write(second, "!stream s1\n#1 one\n#2 two\n#3 three\n");
+			awaitAck(reader(second), 3);
+		}
+		// another stream counts on its own
+		try (Socket other = connect()) {
+			write(other, "!stream s2\n#1 uno\n");
+			awaitAck(reader(other), 1);
+		}
+		assertEquals("one", next());
+		assertEquals("two", next());
+		assertEquals("three", next());
+		assertEquals("uno", next());
+		assertTrue(received.isEmpty());
+	}
+
+	@Test
+	public void tooLongMessageClosesItsConnectionOnly() throws Exception {
+		try (Socket socket = connect()) {
+			char[] text = new char[MAX_LENGTH * 2];
+			Arrays.fill(text, 'x');
+			write(socket, new String(text));
+			assertNull(reader(socket).readLine());
+		}
+		assertNotNull(failures.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		try (Socket socket = connect()) {
+			write(socket, "still there\n");
+			assertEquals("!ack", reader(socket).readLine());
+			assertEquals("still there", next());
+		}
+	}
+
+	private String next() throws InterruptedException {
+		return received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads acknowledgements until the one of the given message, as those of
+	 * earlier ones may arrive separately.
+	 */
+	private static void awaitAck(BufferedReader in, long seq) throws IOException {
+		for (String line; (line = in.readLine()) != null;) {
+			if (line.equals("#" + seq + " !ack")) {
+				return;
+			}
+			assertTrue(line, line.endsWith(" !ack"));
+		}
+		fail("no acknowledgement of #" + seq);
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket("127.0.0.1", listener.getPort());
+		socket.setSoTimeout(TIMEOUT);
+		return socket;
+	}
+
+	private static BufferedReader reader(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	private static void write(Socket socket, String data) throws IOException {
+		socket.getOutputStream().write(data.getBytes(StandardCharsets.UTF_8));
+		socket.getOutputStream().flush();
+	}
+}
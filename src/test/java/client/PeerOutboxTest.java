@@ -0,0 +1,200 @@
+package client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Config;
+import util.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a {@link PeerOutbox} on the calling thread, delivering to a client
+ * that records what it is handed.
+ */
+public class PeerOutboxTest {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private RecordingClient client;
+	private PeerOutbox outbox;
+
+	@Before
+	public void setUp() {
+		client = new RecordingClient();
+	}
+
+	@After
+	public void tearDown() {
+		if (outbox != null) {
+			outbox.close();
+		}
+	}
+
+	@Test
+	public void deliversInOrderAndForgetsDrainedQueues() {
+		outbox = new PeerOutbox(client, DIRECT, 0, 1000);
+		client.addresses.put("bill.de", "127.0.0.1:1");
+		for (int i = 0; i < 100; i++) {
+			assertTrue(outbox.offer("bill.de", "m" + i));
+		}
+		assertEquals(100, client.delivered.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("bill.de m" + i, client.delivered.get(i));
+		}
+		assertEquals(0, outbox.size());
+		assertEquals(0, outbox.getPendingBytes());
+	}
+
+	@Test
+	public void keepsOrderPerUserOnManyThreads() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		outbox = new PeerOutbox(client, executor, 0, 1 << 20);
+		Thread[] senders = new Thread[8];
+		for (int i = 0; i < senders.length; i++) {
+			final String username = "user" + i + ".at";
+			client.addresses.put(username, "127.0.0.1:1");
+			senders[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						outbox.offer(username, Integer.toString(j));
+					}
+				}
+			});
+			senders[i].start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (outbox.getPendingBytes() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(8000, client.delivered.size());
+		int[] next = new int[senders.length];
+		for (String delivery : client.delivered) {
+			int user = delivery.charAt(4) - '0';
+			assertEquals(delivery, "user" + user + ".at " + next[user]++, delivery);
+		}
+		assertEquals(0, outbox.size());
+		assertEquals(0, outbox.getPendingBytes());
+	}
+
+	@Test
+	public void parksUntilResumed() {
+		outbox = new PeerOutbox(client, DIRECT, 0, 1000);
+		outbox.offer("bill.de", "first");
+		outbox.offer("bill.de", "second");
+		assertTrue(client.delivered.isEmpty());
+		assertEquals(1, outbox.size());
+		assertEquals(11, outbox.getPendingBytes());
+		assertFalse(outbox.resume("alice.vienna.at"));
+
+		client.addresses.put("bill.de", "127.0.0.1:1");
+		assertTrue(outbox.resume("bill.de"));
+		assertEquals(Arrays.asList("bill.de first", "bill.de second"), client.delivered);
+		assertEquals(0, outbox.size());
+		assertFalse(outbox.resume("bill.de"));
+	}
+
+	@Test
+	public void sweepsExpiredMessagesOfParkedQueues() throws InterruptedException {
+		outbox = new PeerOutbox(client, DIRECT, 50, 1000);
+		for (int i = 0; i < 10; i++) {
+			outbox.offer("user" + i + ".at", "hello");
+		}
+		assertEquals(10, outbox.size());
+		for (int i = 0; i < 10; i++) {
+			assertNotNull("expired in time", client.expired.poll(2, TimeUnit.SECONDS));
+		}
+		assertTrue(client.delivered.isEmpty());
+		assertEquals(0, outbox.getPendingBytes());
+		// forgotten right after their last message expired
+		long deadline = System.currentTimeMillis() + 1000;
+		while (outbox.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, outbox.size());
+	}
+
+	@Test
+	public void dropsNewMessagesBeyondTheCap() {
+		outbox = new PeerOutbox(client, DIRECT, 0, 10);
+		assertTrue(outbox.offer("bill.de", "12345678"));
+		assertFalse(outbox.offer("bill.de", "abc"));
+		assertTrue(outbox.offer("alice.vienna.at", "ab"));
+		assertEquals(10, outbox.getPendingBytes());
+
+		client.addresses.put("bill.de", "127.0.0.1:1");
+		outbox.resume("bill.de");
+		assertEquals(2, outbox.getPendingBytes());
+		assertTrue(outbox.offer("bill.de", "abc"));
+		assertEquals(Arrays.asList("bill.de 12345678", "bill.de abc"), client.delivered);
+	}
+
+	@Test
+	public void capMakesRoomByDroppingExpiredMessages() throws InterruptedException {
+		outbox = new PeerOutbox(client, DIRECT, 30, 10);
+		// no sweeps, only the cap purges
+		outbox.close();
+		assertTrue(outbox.offer("bill.de", "12345678"));
+		assertFalse(outbox.offer("alice.vienna.at", "abc"));
+		Thread.sleep(60);
+		assertTrue(outbox.offer("alice.vienna.at", "abc"));
+		assertEquals("bill.de 12345678", client.expired.poll());
+		assertEquals(3, outbox.getPendingBytes());
+	}
+
+	/**
+	 * Hands out the addresses put in by the test and records deliveries.
+	 */
+	private static class RecordingClient extends Client {
+		final Map<String, String> addresses = new ConcurrentHashMap<>();
+		final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+		final BlockingQueue<String> expired = new LinkedBlockingQueue<>();
+
+		RecordingClient() {
+			super("outbox", new Config("client"), new ByteArrayInputStream(new byte[0]),
+					new PrintStream(NullOutputStream.getInstance()));
+		}
+
+		@Override
+		String getAddress(String username) {
+			return addresses.get(username);
+		}
+
+		@Override
+		void deliver(String username, String address, String message) {
+			delivered.add(username + " " + message);
+		}
+
+		@Override
+		void expired(String username, String message) {
+			expired.add(username + " " + message);
+		}
+	}
+}
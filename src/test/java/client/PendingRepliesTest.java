@@ -0,0 +1,57 @@
+package client;
+
+import org.junit.Test;
+import shared.CommandInterpreter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Routes replies to the {@link PendingReplies} they answer, in any order.
+ */
+public class PendingRepliesTest {
+
+	private final PendingReplies replies = new PendingReplies();
+
+	@Test
+	public void repliesCompleteTheirRequestsInAnyOrder() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CommandInterpreter toServer = new CommandInterpreter(new ByteArrayInputStream(new byte[0]), out);
+		CompletableFuture<String> lookup = replies.request(toServer, "!lookup bill.de");
+		CompletableFuture<String> list = replies.request(toServer, "!list");
+		assertEquals("#1 !lookup bill.de\n#2 !list\n",
+				new String(out.toByteArray(), StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n"));
+		assertEquals(2, replies.size());
+
+		assertTrue(replies.route("#2 alice.vienna.at"));
+		assertEquals("alice.vienna.at", list.getNow(null));
+		assertFalse(lookup.isDone());
+		// broadcasts and replies to nobody pass by
+		assertFalse(replies.route("alice.vienna.at: hi"));
+		assertFalse(replies.route("#2 again"));
+		assertFalse(replies.route("#9 unknown"));
+
+		assertTrue(replies.route("#1"));
+		assertEquals("", lookup.getNow(null));
+		assertEquals(0, replies.size());
+	}
+
+	@Test
+	public void closingFailsPendingAndLaterRequests() {
+		CompletableFuture<String> pending = new CompletableFuture<>();
+		replies.open(pending);
+		replies.close(new IOException("Client closed."));
+		assertTrue(pending.isCompletedExceptionally());
+
+		CompletableFuture<String> later = new CompletableFuture<>();
+		long id = replies.open(later);
+		assertTrue(later.isCompletedExceptionally());
+		assertFalse(replies.complete(id, "too late"));
+		assertEquals(0, replies.size());
+	}
+}
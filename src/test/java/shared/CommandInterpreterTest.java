@@ -0,0 +1,185 @@
+package shared;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Invokes commands through a {@link CommandInterpreter} and coalesces the
+ * lines it writes into a stream that fails when told to.
+ */
+public class CommandInterpreterTest {
+
+	private FailingOutputStream out;
+	private CommandInterpreter interpreter;
+
+	@Before
+	public void setUp() {
+		out = new FailingOutputStream();
+		interpreter = new CommandInterpreter(new ByteArrayInputStream(new byte[0]), out);
+		interpreter.useCoalescing(64, 0, null);
+	}
+
+	@Test
+	public void linesAreWrittenAtTheEndOfABatch() throws IOException {
+		interpreter.write(bytes("a\n"));
+		interpreter.write(bytes("b\n"));
+		assertEquals("", out.toString());
+		interpreter.endBatch();
+		assertEquals("a\nb\n", out.toString());
+	}
+
+	@Test
+	public void failedBatchIsNotWrittenAgain() throws IOException {
+		interpreter.write(bytes("a\n"));
+		out.failing = true;
+		try {
+			interpreter.flush();
+			fail("the write failed");
+		} catch (IOException e) {
+			// expected
+		}
+		out.failing = false;
+		interpreter.write(bytes("b\n"));
+		interpreter.flush();
+		assertEquals("b\n", out.toString());
+	}
+
+	@Test
+	public void failedBatchIsNotWrittenBeforeABuffer() throws IOException {
+		interpreter.write(bytes("a\n"));
+		out.failing = true;
+		try {
+			interpreter.write(bytes(new String(new char[64])));
+			fail("the write failed");
+		} catch (IOException e) {
+			// expected
+		}
+		out.failing = false;
+		interpreter.write(ByteBuffer.wrap(bytes("b\n")));
+		interpreter.flush();
+		assertEquals("b\n", out.toString());
+	}
+
+	@Test
+	public void argumentsAreSplitLikeARegularExpression() {
+		String[] lines = { "!send hello  world ", "!msg bill.de \thi  there", "!login alice", "!login", "!x \t a\tb c" };
+		for (String line : lines) {
+			for (int limit = 0; limit <= 3; limit++) {
+				int from = line.indexOf(' ') >= 0 ? line.indexOf(' ') : line.length();
+				String trimmed = line.trim();
+				String rest = trimmed.substring(Math.min(from, trimmed.length())).trim();
+				String[] expected = limit == 0 || rest.isEmpty() ? new String[0] : rest.split("\\s+", limit);
+				assertArrayEquals(line + ", limit " + limit, expected,
+						CommandInterpreter.tokenize(trimmed, Math.min(from, trimmed.length()), limit));
+				byte[] data = bytes(trimmed);
+				assertArrayEquals(line + ", limit " + limit, expected,
+						CommandInterpreter.tokenize(data, Math.min(from, data.length), data.length, limit));
+			}
+		}
+	}
+
+	@Test
+	public void commandsAreInvokedWithConvertedArguments() throws Throwable {
+		interpreter.register(new Commands());
+		assertEquals(Long.valueOf(5), interpreter.invoke("!add 2  3"));
+		assertEquals("yes and more", interpreter.invoke("!echo true yes and more"));
+		assertEquals("no", interpreter.invoke("!echo", new String[] { "false", "yes" }));
+		assertNull(interpreter.invoke("!nothing"));
+		assertNull(interpreter.invoke("  "));
+	}
+
+	@Test
+	public void badInvocationsAreIllegalArguments() throws Throwable {
+		interpreter.register(new Commands());
+		for (String line : new String[] { "!unknown", "!add 2" }) {
+			try {
+				interpreter.invoke(line);
+				fail(line);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		try {
+			interpreter.register(new Commands());
+			fail("registered twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void failureOfTheCommandIsWrapped() throws Throwable {
+		interpreter.register(new Commands());
+		try {
+			interpreter.invoke("!fail");
+			fail("the command failed");
+		} catch (InvocationTargetException e) {
+			assertEquals("failed", e.getCause().getMessage());
+		}
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Commands of every kind of signature.
+	 */
+	public static class Commands {
+
+		@Command
+		public long add(int a, long b) {
+			return a + b;
+		}
+
+		@Command("!echo")
+		public String echo(boolean agree, String text) {
+			return agree ? text : "no";
+		}
+
+		@Command
+		public void nothing() {
+		}
+
+		@Command
+		public String fail() throws IOException {
+			throw new IOException("failed");
+		}
+	}
+
+	/**
+	 * Collects what is written, unless failing.
+	 */
+	private static class FailingOutputStream extends OutputStream {
+		private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		private boolean failing;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (failing) {
+				throw new IOException("broken pipe");
+			}
+			written.write(b, off, len);
+		}
+
+		@Override
+		public String toString() {
+			return new String(written.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package shared;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Looks up command names in a {@link CommandTrie}, some sharing prefixes with
+ * each other.
+ */
+public class CommandTrieTest {
+
+	private final CommandTrie<String> trie = new CommandTrie<>(commands("!list", "!login", "!logout", "!lookup",
+			"!msg", "!gr\u00fc\u00df"));
+
+	@Test
+	public void onlyWholeNamesMatch() {
+		for (String name : new String[] { "!list", "!login", "!logout", "!lookup", "!msg" }) {
+			assertEquals(name, match(name));
+		}
+		assertNull(match("!lo"));
+		assertNull(match("!logins"));
+		assertNull(match("!LIST"));
+		assertNull(match(""));
+		assertNull(match("!"));
+	}
+
+	@Test
+	public void nameIsMatchedWithinTheBuffer() {
+		byte[] line = "#7 !logout now".getBytes(StandardCharsets.UTF_8);
+		assertEquals("!logout", trie.match(line, 3, 10));
+		assertNull(trie.match(line, 3, 9));
+		assertNull(trie.match(line, 0, 10));
+	}
+
+	@Test
+	public void namesAreMatchedAsUtf8() {
+		assertEquals("!gr\u00fc\u00df", match("!gr\u00fc\u00df"));
+		// the first byte of a two byte character is not enough
+		byte[] name = "!gr\u00fc".getBytes(StandardCharsets.UTF_8);
+		assertNull(trie.match(name, 0, name.length - 1));
+	}
+
+	private String match(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return trie.match(bytes, 0, bytes.length);
+	}
+
+	private static Map<String, String> commands(String... names) {
+		Map<String, String> commands = new HashMap<>();
+		for (String name : names) {
+			commands.put(name, name);
+		}
+		return commands;
+	}
+}
@@ -0,0 +1,81 @@
+package shared;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tells tagged from untagged lines, as text and as bytes, and checks that a
+ * {@link CommandInterpreter} answers with the tag of the request.
+ */
+public class CorrelationTest {
+
+	@Test
+	public void tagIsFollowedByASpaceOrEndsTheLine() {
+		assertEquals(2, tagLength("#7 !lookup bill.de"));
+		assertEquals(4, tagLength("#123"));
+		assertEquals(Correlation.tag(123).length(), tagLength(Correlation.tag(123) + " !list"));
+		for (String line : new String[] { "", "#", "# !list", "#7!list", "#x !list", "!list #7", " #7 !list" }) {
+			assertEquals(line, 0, tagLength(line));
+		}
+	}
+
+	@Test
+	public void idsTooLongForALongAreNoTags() {
+		assertEquals(19, tagLength("#999999999999999999 !list"));
+		assertEquals(0, tagLength("#9999999999999999999 !list"));
+		assertEquals(999999999999999999L, Correlation.id("#999999999999999999", 19));
+	}
+
+	@Test
+	public void tagIsSplitOffTheLine() {
+		String line = Correlation.tag(42) + " !send hello world";
+		int tagLength = Correlation.tagLength(line);
+		assertEquals(42, Correlation.id(line, tagLength));
+		assertEquals("!send hello world", Correlation.untag(line, tagLength));
+		assertEquals("", Correlation.untag("#42", 3));
+	}
+
+	@Test
+	public void repliesCarryTheTagOfTheirRequest() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CommandInterpreter interpreter = new CommandInterpreter(new ByteArrayInputStream(new byte[0]), out);
+		interpreter.register(new Object() {
+			@Command
+			public String echo(String text) {
+				return text;
+			}
+
+			@Command
+			public void nothing() {
+			}
+		});
+		interpreter.dispatch("#1 !echo hi");
+		interpreter.dispatch("#2 !nothing");
+		interpreter.dispatch("!nothing");
+		interpreter.dispatch("#3 unknown");
+		dispatch(interpreter, "#4 !echo ho");
+		dispatch(interpreter, "#5 !nothing");
+		dispatch(interpreter, "!echo untagged");
+		assertEquals(Arrays.asList("#1 hi", "#2", "#3 unknown", "#4 ho", "#5", "untagged"),
+				Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\\r?\\n")));
+	}
+
+	private static int tagLength(String line) {
+		int length = Correlation.tagLength(line);
+		byte[] data = ("  " + line).getBytes(StandardCharsets.UTF_8);
+		assertEquals(line, length, Correlation.tagLength(data, 2, data.length));
+		return length;
+	}
+
+	private static void dispatch(CommandInterpreter interpreter, String line) throws IOException {
+		byte[] data = (line + "\n").getBytes(StandardCharsets.UTF_8);
+		interpreter.dispatch(data, 0, data.length - 1);
+	}
+}
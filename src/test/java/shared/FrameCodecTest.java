@@ -0,0 +1,108 @@
+package shared;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips lines through a {@link FrameEncoder} and a {@link FrameDecoder}.
+ */
+public class FrameCodecTest {
+
+	@Test
+	public void commandsKeepTheirFields() throws IOException {
+		FrameEncoder encoder = new FrameEncoder(BinaryProtocol.Direction.TO_SERVER);
+		FrameDecoder decoder = new FrameDecoder(BinaryProtocol.Direction.TO_SERVER);
+
+		Frame login = decode(decoder, encoder.encode("!login alice.vienna.at  12345\n"));
+		assertEquals(BinaryProtocol.LOGIN, login.getOpcode());
+		assertArrayEquals(new String[] { "alice.vienna.at", "12345" }, login.getFields());
+
+		Frame send = decode(decoder, encoder.encode("!send hello\tthere  world"));
+		assertEquals(BinaryProtocol.SEND, send.getOpcode());
+		assertArrayEquals(new String[] { "hello\tthere  world" }, send.getFields());
+
+		Frame logout = decode(decoder, encoder.encode("!logout"));
+		assertEquals(BinaryProtocol.LOGOUT, logout.getOpcode());
+		assertEquals(0, logout.getFields().length);
+	}
+
+	@Test
+	public void otherLinesAreSentAsText() throws IOException {
+		FrameEncoder encoder = new FrameEncoder(BinaryProtocol.Direction.TO_SERVER);
+		FrameDecoder decoder = new FrameDecoder(BinaryProtocol.Direction.TO_SERVER);
+
+		// too few fields for the command
+		Frame login = decode(decoder, encoder.encode("!login alice.vienna.at\n"));
+		assertEquals(BinaryProtocol.TEXT, login.getOpcode());
+		assertArrayEquals(new String[] { "!login alice.vienna.at" }, login.getFields());
+
+		Frame list = decode(decoder, encoder.encode("!list"));
+		assertEquals(BinaryProtocol.TEXT, list.getOpcode());
+		assertArrayEquals(new String[] { "!list" }, list.getFields());
+
+		String unicode = "!send gr\u00fc\u00dfe \u4e16\u754c";
+		assertArrayEquals(new String[] { "gr\u00fc\u00dfe \u4e16\u754c" },
+				decode(decoder, encoder.encode(unicode)).getFields());
+	}
+
+	@Test
+	public void usernamesCrossTheWireOnce() throws IOException {
+		FrameEncoder encoder = new FrameEncoder(BinaryProtocol.Direction.TO_CLIENT);
+		FrameDecoder decoder = new FrameDecoder(BinaryProtocol.Direction.TO_CLIENT);
+
+		byte[] first = encoder.encode("!send alice.vienna.at hi bob");
+		byte[] second = encoder.encode("!send alice.vienna.at hi again");
+		byte[] other = encoder.encode("!send bill.de hi");
+		assertTrue(second.length < first.length - "alice.vienna.at".length());
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(first);
+		stream.write(second);
+		stream.write(other);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+		assertArrayEquals(new String[] { "alice.vienna.at", "hi bob" }, decoder.read(in).getFields());
+		assertArrayEquals(new String[] { "alice.vienna.at", "hi again" }, decoder.read(in).getFields());
+		assertArrayEquals(new String[] { "bill.de", "hi" }, decoder.read(in).getFields());
+		assertNull(decoder.read(in));
+	}
+
+	@Test
+	public void sharedEncoderInternsNothing() throws IOException {
+		FrameEncoder encoder = new FrameEncoder(BinaryProtocol.Direction.TO_CLIENT, false);
+		byte[] first = encoder.encode("!send alice.vienna.at hi");
+		assertArrayEquals(first, encoder.encode("!send alice.vienna.at hi"));
+		// any connection can decode it, whatever it interned before
+		assertArrayEquals(new String[] { "alice.vienna.at", "hi" },
+				decode(new FrameDecoder(BinaryProtocol.Direction.TO_CLIENT), first).getFields());
+	}
+
+	@Test(expected = IOException.class)
+	public void serverRejectsInternedFields() throws IOException {
+		byte[] frame = new FrameEncoder(BinaryProtocol.Direction.TO_CLIENT).encode("!send alice.vienna.at hi");
+		decode(new FrameDecoder(BinaryProtocol.Direction.TO_SERVER), frame);
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownReferenceIsRejected() throws IOException {
+		FrameEncoder encoder = new FrameEncoder(BinaryProtocol.Direction.TO_CLIENT);
+		encoder.encode("!send alice.vienna.at hi");
+		// refers to the name defined by the frame above, which the decoder never saw
+		decode(new FrameDecoder(BinaryProtocol.Direction.TO_CLIENT), encoder.encode("!send alice.vienna.at hi"));
+	}
+
+	@Test(expected = IOException.class)
+	public void oversizedFrameIsRejected() throws IOException {
+		byte[] frame = new FrameEncoder(BinaryProtocol.Direction.TO_SERVER).encode("!send " + new String(new char[100]));
+		decode(new FrameDecoder(BinaryProtocol.Direction.TO_SERVER, 64), frame);
+	}
+
+	private static Frame decode(FrameDecoder decoder, byte[] frame) throws IOException {
+		return decoder.read(new DataInputStream(new ByteArrayInputStream(frame)));
+	}
+}
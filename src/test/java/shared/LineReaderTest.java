@@ -0,0 +1,203 @@
+package shared;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds a {@link LineReader} in chunks of every size, so lines, terminators
+ * and characters end up split across reads.
+ */
+public class LineReaderTest {
+
+	private static final String UNICODE = "gr\u00fc\u00dfe \u4e16\u754c \ud83d\ude00!";
+
+	@Test
+	public void splitsLinesAtEveryTerminator() throws IOException {
+		String input = "!login alice 12345\r\n\n!list\r!send hi\n\r\nlast";
+		for (int chunk = 1; chunk <= input.length(); chunk++) {
+			assertEquals("chunks of " + chunk, lines("!login alice 12345", "", "!list", "!send hi", "", "last"),
+					readLines(input, chunk, Integer.MAX_VALUE));
+		}
+	}
+
+	@Test
+	public void keepsCharactersWhole() throws IOException {
+		for (int chunk = 1; chunk <= 8; chunk++) {
+			assertEquals(lines(UNICODE, UNICODE),
+					readLines(UNICODE + "\n" + UNICODE + "\n", chunk, Integer.MAX_VALUE));
+		}
+	}
+
+	@Test
+	public void oversizedLineIsHandedOutInChunks() throws IOException {
+		LineReader reader = new LineReader(new ChunkedInputStream(bytes("0123456789abcdefghij\nnext\n"), 3));
+		reader.setMaxLength(8);
+
+		assertTrue(reader.next());
+		assertEquals("01234567", reader.line());
+		assertTrue(reader.isHead());
+		assertFalse(reader.isTail());
+		assertTrue(reader.next());
+		assertEquals("89abcdef", reader.line());
+		assertFalse(reader.isHead());
+		assertFalse(reader.isTail());
+		assertTrue(reader.next());
+		assertEquals("ghij", reader.line());
+		assertFalse(reader.isHead());
+		assertTrue(reader.isTail());
+
+		assertTrue(reader.next());
+		assertEquals("next", reader.line());
+		assertTrue(reader.isHead());
+		assertTrue(reader.isTail());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void bufferStaysBoundedByMaxLength() throws IOException {
+		LineReader reader = new LineReader(new ByteArrayInputStream(new byte[1 << 20]));
+		reader.setMaxLength(100000);
+		int chunks = 0;
+		while (reader.next()) {
+			assertTrue(reader.end() - reader.start() <= 100000);
+			chunks++;
+		}
+		assertEquals(11, chunks);
+		assertTrue(reader.buffer().length <= 100001);
+	}
+
+	@Test
+	public void chunksNeverSplitCharacters() throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			line.append(UNICODE);
+		}
+		for (int max = 4; max <= 9; max++) {
+			for (int chunk = 1; chunk <= 5; chunk++) {
+				LineReader reader = new LineReader(new ChunkedInputStream(bytes(line + "\n"), chunk));
+				reader.setMaxLength(max);
+				ByteArrayOutputStream joined = new ByteArrayOutputStream();
+				do {
+					assertTrue(reader.next());
+					int length = reader.end() - reader.start();
+					assertTrue(length <= max);
+					// only a line ending right at a chunk boundary leaves an empty tail
+					assertTrue(length > 0 || reader.isTail());
+					// a chunk decodes on its own
+					StandardCharsets.UTF_8.newDecoder()
+							.decode(ByteBuffer.wrap(reader.buffer(), reader.start(), length));
+					joined.write(reader.buffer(), reader.start(), length);
+				} while (!reader.isTail());
+				assertEquals(line.toString(), new String(joined.toByteArray(), StandardCharsets.UTF_8));
+				assertFalse(reader.next());
+			}
+		}
+	}
+
+	@Test
+	public void lineAtMaxLengthIsWhole() throws IOException {
+		LineReader reader = new LineReader(new ByteArrayInputStream(bytes("12345678\n")));
+		reader.setMaxLength(8);
+		assertTrue(reader.next());
+		assertEquals("12345678", reader.line());
+		assertTrue(reader.isHead());
+		// the terminator is only seen after the limit was reached
+		if (!reader.isTail()) {
+			assertTrue(reader.next());
+			assertEquals("", reader.line());
+			assertTrue(reader.isTail());
+		}
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void remainingBytesAreReadAfterLines() throws IOException {
+		LineReader reader = new LineReader(new ChunkedInputStream(bytes("hello\r\n\u0000BIN"), 2));
+		assertTrue(reader.next());
+		assertEquals("hello", reader.line());
+		byte[] rest = new byte[4];
+		int count = 0;
+		for (int read; count < rest.length && (read = reader.read(rest, count, rest.length - count)) > 0;) {
+			count += read;
+		}
+		assertEquals(4, count);
+		assertArrayEquals(BinaryProtocol.PREFACE, rest);
+		assertEquals(-1, reader.read());
+	}
+
+	@Test
+	public void boundaryBacksOffIncompleteCharacters() {
+		byte[] data = bytes("a\u00fc\u4e16");
+		// a, then two bytes of u-umlaut, then three of the ideograph
+		assertEquals(1, LineReader.boundary(data, 0, 2));
+		assertEquals(3, LineReader.boundary(data, 0, 3));
+		assertEquals(3, LineReader.boundary(data, 0, 4));
+		assertEquals(3, LineReader.boundary(data, 0, 5));
+		assertEquals(6, LineReader.boundary(data, 0, 6));
+		// a chunk never becomes empty
+		assertEquals(5, LineReader.boundary(data, 3, 5));
+	}
+
+	private static List<String> readLines(String input, int chunk, int maxLength) throws IOException {
+		LineReader reader = new LineReader(new ChunkedInputStream(bytes(input), chunk));
+		reader.setMaxLength(maxLength);
+		List<String> lines = new ArrayList<>();
+		while (reader.next()) {
+			lines.add(new String(reader.buffer(), reader.start(), reader.end() - reader.start(),
+					StandardCharsets.UTF_8));
+		}
+		return lines;
+	}
+
+	private static List<String> lines(String... lines) {
+		List<String> list = new ArrayList<>();
+		for (String line : lines) {
+			list.add(line);
+		}
+		return list;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns at most a given number of bytes per read.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		private final byte[] data;
+		private final int chunk;
+		private int pos;
+
+		ChunkedInputStream(byte[] data, int chunk) {
+			this.data = data;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			return pos < data.length ? data[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos == data.length) {
+				return -1;
+			}
+			int count = Math.min(Math.min(len, chunk), data.length - pos);
+			System.arraycopy(data, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+	}
+}